@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so the allocation rate
+ * is reported together with the throughput. All JMH command line options
+ * (e.g. "-p documents=100000") are supported.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class BenchmarkRunner
+{
+
+  public static void main(String[] args) throws Exception
+  {
+    CommandLineOptions cmdOptions = new CommandLineOptions(args);
+    new Runner(new OptionsBuilder()
+      .parent(cmdOptions)
+      .addProfiler(GCProfiler.class)
+      .build()).run();
+  }
+}
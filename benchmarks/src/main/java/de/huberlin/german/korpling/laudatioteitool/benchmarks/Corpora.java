@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool.benchmarks;
+
+import ch.qos.logback.classic.Level;
+import de.huberlin.german.korpling.laudatioteitool.CorpusGenerator;
+import de.huberlin.german.korpling.laudatioteitool.LaudatioException;
+import java.io.File;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helpers for the synthetic corpora of the benchmarks.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public final class Corpora
+{
+
+  private Corpora()
+  {
+  }
+
+  /**
+   * Creates a reproducible corpus with {@link CorpusGenerator}.
+   *
+   * @param output A directory for the split layout or a file ending with
+   * ".xml" for a merged corpus.
+   * @param documents Number of document headers.
+   * @param preparationSteps Number of preparation headers per document.
+   * @param headerSize Number of text paragraphs per header.
+   * @return The output.
+   * @throws LaudatioException
+   */
+  public static File create(File output, int documents, int preparationSteps,
+    int headerSize) throws LaudatioException
+  {
+    CorpusGenerator generator = new CorpusGenerator(output);
+    generator.setDocuments(documents);
+    generator.setPreparationSteps(preparationSteps);
+    generator.setHeaderSize(headerSize);
+    generator.generate();
+    return output;
+  }
+
+  public static void delete(File f)
+  {
+    if (f.isDirectory())
+    {
+      for (File c : f.listFiles())
+      {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+
+  /**
+   * The tool logs every written header, which would dominate the 
+   * measurements.
+   */
+  public static void quietLogging()
+  {
+    ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(
+      Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+  }
+}
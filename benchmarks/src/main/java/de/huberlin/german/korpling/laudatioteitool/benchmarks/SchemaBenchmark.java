@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool.benchmarks;
+
+import com.thaiopensource.relaxng.jaxp.XMLSyntaxSchemaFactory;
+import de.huberlin.german.korpling.laudatioteitool.SchemaCache;
+import de.huberlin.german.korpling.laudatioteitool.TEIDocumentValidator;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+/**
+ * Cost of compiling the document header schema compared to taking it from
+ * the {@link SchemaCache}.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SchemaBenchmark
+{
+
+  private URL schemaLocation;
+
+  @Setup
+  public void setup()
+  {
+    schemaLocation = TEIDocumentValidator.class.getResource(
+      "default_document.rng");
+  }
+
+  @Benchmark
+  public Schema compileSchema() throws IOException, SAXException
+  {
+    StreamSource source = new StreamSource(schemaLocation.openStream(),
+      schemaLocation.toExternalForm());
+    return new XMLSyntaxSchemaFactory().newSchema(source);
+  }
+
+  @Benchmark
+  public Schema cachedSchema() throws IOException, SAXException
+  {
+    return SchemaCache.getInstance().getSchema(schemaLocation);
+  }
+}
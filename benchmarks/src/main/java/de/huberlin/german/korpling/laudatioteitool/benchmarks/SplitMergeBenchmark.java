@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool.benchmarks;
+
+import com.google.common.io.Files;
+import de.huberlin.german.korpling.laudatioteitool.LaudatioException;
+import de.huberlin.german.korpling.laudatioteitool.MergeTEI;
+import de.huberlin.german.korpling.laudatioteitool.SplitTEI;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of complete split, merge and validation runs over synthetic
+ * corpora. Larger corpora can be selected with "-p documents=100000".
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SplitMergeBenchmark
+{
+
+  @Param(
+  {
+    "10", "1000"
+  })
+  public int documents;
+
+  @Param(
+  {
+    "2"
+  })
+  public int preparationSteps;
+
+  @Param(
+  {
+    "1"
+  })
+  public int threads;
+
+  private File tmpDir;
+  private File splitDir;
+  private File mergedFile;
+  private File outputDir;
+
+  @Setup(Level.Trial)
+  public void createCorpus() throws LaudatioException
+  {
+    Corpora.quietLogging();
+    tmpDir = Files.createTempDir();
+    splitDir = Corpora.create(new File(tmpDir, "split"), documents,
+      preparationSteps, 1);
+    mergedFile = Corpora.create(new File(tmpDir, "merged.xml"), documents,
+      preparationSteps, 1);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteCorpus()
+  {
+    Corpora.delete(tmpDir);
+  }
+
+  @Setup(Level.Invocation)
+  public void createOutput()
+  {
+    outputDir = new File(tmpDir, "output");
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteOutput()
+  {
+    Corpora.delete(outputDir);
+  }
+
+  @Benchmark
+  public void split() throws LaudatioException
+  {
+    SplitTEI split = new SplitTEI(mergedFile, outputDir, null, null, null);
+    split.setThreads(threads);
+    split.split();
+  }
+
+  @Benchmark
+  public void splitStreaming() throws LaudatioException
+  {
+    SplitTEI split = new SplitTEI(mergedFile, outputDir, null, null, null);
+    split.setStreaming(true);
+    split.setThreads(threads);
+    split.split();
+  }
+
+  @Benchmark
+  public void validateInMemory() throws LaudatioException
+  {
+    SplitTEI split = new SplitTEI(mergedFile, null, null, null, null);
+    split.setThreads(threads);
+    split.validate();
+  }
+
+  @Benchmark
+  public void merge() throws LaudatioException
+  {
+    MergeTEI merge = new MergeTEI(splitDir, new File(outputDir, "merged.xml"),
+      null, null, null);
+    merge.setThreads(threads);
+    merge.merge();
+  }
+}
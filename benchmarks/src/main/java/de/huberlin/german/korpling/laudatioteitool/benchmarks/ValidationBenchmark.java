@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool.benchmarks;
+
+import com.google.common.io.Files;
+import de.huberlin.german.korpling.laudatioteitool.LaudatioException;
+import de.huberlin.german.korpling.laudatioteitool.TEIDocumentValidator;
+import de.huberlin.german.korpling.laudatioteitool.TEIValidator;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.jdom2.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Validation of a single document header file.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ValidationBenchmark
+{
+
+  @Param(
+  {
+    "1", "100"
+  })
+  public int headerSize;
+
+  private File corpusDir;
+  private File headerFile;
+  private TEIValidator validator;
+
+  @Setup
+  public void setup() throws LaudatioException
+  {
+    corpusDir = Corpora.create(Files.createTempDir(), 1, 1, headerSize);
+    headerFile = new File(corpusDir, "DocumentHeader/d0.xml");
+    validator = new TEIDocumentValidator();
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    Corpora.delete(corpusDir);
+  }
+
+  @Benchmark
+  public boolean validate() throws IOException
+  {
+    return validator.validate(headerFile);
+  }
+
+  @Benchmark
+  public Document validateAndBuild() throws IOException
+  {
+    return validator.validateAndBuild(headerFile);
+  }
+}
@@ -15,11 +15,16 @@
  */
 package de.huberlin.german.korpling.laudatioteitool;
 
-import com.google.common.io.Files;
+import com.google.common.base.Charsets;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.ResourceBundle;
@@ -55,6 +60,35 @@ public class App
       .addOption(new Option("schemecorpus", true, messages.getString("CORPUS SCHEME LOCATION")))
       .addOption(new Option("schemedoc", true, messages.getString("DOCUMENT SCHEME LOCATION")))
       .addOption(new Option("schemeprep", true, messages.getString("PREPARATION SCHEME LOCATION")))
+      .addOption(new Option("catalog", true, messages.getString("CATALOG LOCATION")))
+      .addOption(new Option("schemecache", true, messages.getString("SCHEME CACHE DIRECTORY")))
+      .addOption(new Option("offline", false, messages.getString("OFFLINE MODE")))
+      .addOption(new Option("threads", true, messages.getString("NUMBER OF THREADS")))
+      .addOption(new Option("streaming", false, messages.getString("STREAMING MODE")))
+      .addOption(new Option("compact", false, messages.getString("COMPACT OUTPUT")))
+      .addOption(new Option("raw", false, messages.getString("RAW SPLIT")))
+      .addOption(new Option("incremental", false, messages.getString("INCREMENTAL MERGE")))
+      .addOption(new Option("sorted", false, messages.getString("SORTED HEADERS")))
+      .addOption(new Option("extract", true, messages.getString("EXTRACT HEADER")))
+      .addOption(new Option("validateone", "validate-one", true, messages.getString("VALIDATE ONE HEADER")))
+      .addOption(new Option("generate", true, messages.getString("GENERATE SYNTHETIC CORPUS")))
+      .addOption(new Option("seed", true, messages.getString("GENERATOR SEED")))
+      .addOption(new Option("documents", true, messages.getString("GENERATOR DOCUMENTS")))
+      .addOption(new Option("preparations", true, messages.getString("GENERATOR PREPARATIONS")))
+      .addOption(new Option("headersize", true, messages.getString("GENERATOR HEADER SIZE")))
+      .addOption(new Option("errorsperfile", true, messages.getString("ERRORS PER FILE")))
+      .addOption(new Option("errorstotal", true, messages.getString("ERRORS TOTAL")))
+      .addOption(new Option("report", true, messages.getString("REPORT FORMAT")))
+      .addOption(new Option("reportfile", true, messages.getString("REPORT FILE")))
+      .addOption(new Option("failfast", "fail-fast", false, messages.getString("FAIL FAST")))
+      .addOption(new Option("maxerrors", "max-errors", true, messages.getString("MAX ERRORS")))
+      .addOption(new Option("nocache", false, messages.getString("NO VALIDATION CACHE")))
+      .addOption(new Option("batch", true, messages.getString("BATCH MODE")))
+      .addOption(new Option("parallel", true, messages.getString("PARALLEL CORPORA")))
+      .addOption(new Option("watch", true, messages.getString("WATCH MODE")))
+      .addOption(new Option("server", true, messages.getString("SERVER MODE")))
+      .addOption(new Option("serverroot", true, messages.getString("SERVER ROOT")))
+      .addOption(new Option("stats", false, messages.getString("STATS")))
       .addOption(new Option("help", false, messages.getString("SHOW THIS HELP")));
     
     HelpFormatter fmt = new HelpFormatter();
@@ -62,6 +96,8 @@ public class App
     String header = messages.getString("HELP HEADER");
     String footer = messages.getString("HELP FOOTER");
     
+    ErrorReporter reporter = new ErrorReporter(new PrintWriter(System.err));
+    ErrorBudget budget = null;
     try
     {
       CommandLineParser cliParser = new PosixParser();
@@ -75,6 +111,16 @@ public class App
         props = readConfig(cmd.getOptionValue("config"));
       } // end if "config" given
       fillPropertiesFromCommandLine(props, cmd);
+      configureSchemeCatalog(props);
+      reporter.setMaxErrorsPerFile((int) getNumber(props, "errorsperfile", 0));
+      reporter.setMaxErrors((int) getNumber(props, "errorstotal", 0));
+      budget = createErrorBudget(props);
+      
+      Metrics.getInstance().registerMBean();
+      if(isSet(props, "stats"))
+      {
+        printStatsOnExit();
+      }
       
       if(cmd.hasOption("help"))
       {
@@ -82,10 +128,7 @@ public class App
       }
       else if(cmd.hasOption("validate"))
       {
-        validate(cmd.getOptionValue("validate"), 
-          props.getProperty("schemecorpus"), 
-          props.getProperty("schemedoc"), 
-          props.getProperty("schemeprep"));
+        validate(cmd.getOptionValue("validate"), props, reporter, budget);
       }
       else if(cmd.hasOption("merge"))
       {
@@ -99,6 +142,12 @@ public class App
           props.getProperty("schemecorpus"), 
           props.getProperty("schemedoc"), 
           props.getProperty("schemeprep"));
+        merge.setThreads(getThreads(props));
+        merge.setCompact(isSet(props, "compact"));
+        merge.setIncremental(isSet(props, "incremental"));
+        merge.setSorted(isSet(props, "sorted"));
+        merge.setErrorBudget(budget);
+        merge.setErrorReporter(reporter);
         merge.merge();
         
         System.exit(0);
@@ -115,9 +164,142 @@ public class App
           props.getProperty("schemecorpus"), 
           props.getProperty("schemedoc"), 
           props.getProperty("schemeprep"));
+        split.setStreaming(isSet(props, "streaming"));
+        split.setThreads(getThreads(props));
+        split.setCompact(isSet(props, "compact"));
+        split.setRaw(isSet(props, "raw"));
+        split.setErrorBudget(budget);
+        split.setErrorReporter(reporter);
         split.split();
         System.exit(0);
       }
+      else if(cmd.hasOption("extract"))
+      {
+        if(cmd.getArgs().length < 1 || cmd.getArgs().length > 2)
+        {
+          System.out.println(messages.getString("YOU NEED TO GIVE THE MERGED CORPUS AS ARGUMENT"));
+          System.exit(-1);
+        }
+        ExtractTEI extract = createExtract(cmd.getOptionValue("extract"), 
+          cmd.getArgs()[0], props);
+        extract.setCompact(isSet(props, "compact"));
+        extract.setErrorBudget(budget);
+        extract.setErrorReporter(reporter);
+        if(cmd.getArgs().length == 2)
+        {
+          extract.extract(new File(cmd.getArgs()[1]));
+        }
+        else
+        {
+          extract.extract(System.out);
+        }
+        System.exit(0);
+      }
+      else if(cmd.hasOption("validateone"))
+      {
+        if(cmd.getArgs().length != 1)
+        {
+          System.out.println(messages.getString("YOU NEED TO GIVE THE MERGED CORPUS AS ARGUMENT"));
+          System.exit(-1);
+        }
+        ExtractTEI extract = createExtract(cmd.getOptionValue("validateone"), 
+          cmd.getArgs()[0], props);
+        extract.setErrorBudget(budget);
+        extract.setErrorReporter(reporter);
+        extract.validate();
+        System.out.println("Validation successfull");
+        System.exit(0);
+      }
+      else if(cmd.hasOption("batch"))
+      {
+        List<BatchRunner.Job> jobs = readBatchJobs(cmd);
+        if(jobs.isEmpty())
+        {
+          System.err.println(messages.getString("NO CORPORA FOUND"));
+          System.exit(1);
+        }
+        TeiTool tool = TeiTool.builder()
+          .corpusScheme(props.getProperty("schemecorpus"))
+          .documentScheme(props.getProperty("schemedoc"))
+          .preparationScheme(props.getProperty("schemeprep"))
+          .threads(getThreads(props))
+          .streaming(isSet(props, "streaming"))
+          .compact(isSet(props, "compact"))
+          .raw(isSet(props, "raw"))
+          .incremental(isSet(props, "incremental"))
+          .sorted(isSet(props, "sorted"))
+          // every job gets its own budget with the same limit
+          .maxErrors(budget == null ? 0 : budget.getMaxErrors())
+          .validationCache(!isSet(props, "nocache"))
+          .build();
+        BatchRunner runner = new BatchRunner(tool, jobs);
+        runner.setParallel((int) Math.max(1, getNumber(props, "parallel", 1)));
+        runner.setErrorReporter(reporter);
+        
+        List<BatchRunner.Result> results = runner.run();
+        BatchRunner.writeSummary(new OutputStreamWriter(System.out, 
+          Charsets.UTF_8), results);
+        for(BatchRunner.Result r : results)
+        {
+          if(r.getStatus() != BatchRunner.Status.VALID)
+          {
+            System.exit(1);
+          }
+        }
+        System.exit(0);
+      }
+      else if(cmd.hasOption("watch"))
+      {
+        final WatchTEI watch = new WatchTEI(
+          new File(cmd.getOptionValue("watch")),
+          props.getProperty("schemecorpus"), 
+          props.getProperty("schemedoc"), 
+          props.getProperty("schemeprep"));
+        watch.setErrorReporter(reporter);
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+          @Override
+          public void run()
+          {
+            watch.stop();
+          }
+        });
+        watch.watch();
+        return;
+      }
+      else if(cmd.hasOption("server"))
+      {
+        final TEIServer server = new TEIServer(
+          (int) getNumber(props, "server", 0), 
+          Runtime.getRuntime().availableProcessors(),
+          new File(props.getProperty("serverroot", ".")));
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+          @Override
+          public void run()
+          {
+            server.stop(1);
+          }
+        });
+        server.start();
+        // the server threads keep the application running
+        return;
+      }
+      else if(cmd.hasOption("generate"))
+      {
+        CorpusGenerator generator = new CorpusGenerator(
+          new File(cmd.getOptionValue("generate")));
+        generator.setSeed(getNumber(props, "seed", generator.getSeed()));
+        generator.setDocuments((int) getNumber(props, "documents", 
+          generator.getDocuments()));
+        generator.setPreparationSteps((int) getNumber(props, "preparations", 
+          generator.getPreparationSteps()));
+        generator.setHeaderSize((int) getNumber(props, "headersize", 
+          generator.getHeaderSize()));
+        generator.setCompact(isSet(props, "compact"));
+        generator.generate();
+        System.exit(0);
+      }
       else
       {
         fmt.printHelp(usage, header, opts, footer);
@@ -130,10 +312,22 @@ public class App
       System.err.println(ex.getMessage());
       fmt.printHelp(usage, header, opts, footer);
     }
+    catch (ValidationException ex)
+    {
+      printErrors(ex, reporter, budget);
+    }
     catch (LaudatioException ex)
     {
       System.err.println(ex.getMessage());
     }
+    catch (IOException ex)
+    {
+      System.err.println(ex.getMessage());
+    }
+    catch (IllegalArgumentException ex)
+    {
+      System.err.println(ex.getMessage());
+    }
     catch (UnsupportedOperationException ex)
     {
       System.err.println(ex.getMessage());
@@ -193,88 +387,305 @@ public class App
       String name = opt.getOpt();
       if(cmd.hasOption(opt.getOpt()))
       {
-        String value = cmd.getOptionValue(name);
+        // options without an argument are flags
+        String value = opt.hasArg() ? cmd.getOptionValue(name) : "true";
         props.put(name, value);
         log.debug(messages.getString("SETTING OPTION FROM CMD"), name, value);
       }
     }
   }
   
-  private static void validate(String arg, String corpusSchemeURL, 
-    String documentSchemeURL, String prepartionSchemeURL)
+  private static void configureSchemeCatalog(Properties props)
   {
-    File f = new File(arg);
-    if(!f.exists())
+    SchemeCatalog catalog = SchemeCatalog.getInstance();
+    if(props.getProperty("schemecache") != null)
     {
-      System.err.println("File " + f.getAbsolutePath() + " does not exist");
-      System.exit(-2);
+      catalog.setCacheDirectory(new File(props.getProperty("schemecache")));
     }
-    
-    if(f.isDirectory())
+    catalog.setOffline(isSet(props, "offline"));
+    String catalogFile = props.getProperty("catalog");
+    if(catalogFile != null)
     {
       try
       {
-        File out = File.createTempFile("tmpvalidation", ".xml");
-        out.deleteOnExit();
-        MergeTEI merge = new MergeTEI(f, out, 
-          corpusSchemeURL, documentSchemeURL, prepartionSchemeURL);
-        merge.merge();
-        
-        out.delete();
-        
-        // if we got until there without exception the document is valid
-        System.out.println("Validation successfull");
-        System.exit(0);
+        catalog.addCatalog(new File(catalogFile));
       }
-      catch (IOException ex)
+      catch(IOException ex)
       {
-        log.error("Could not create temporary file", ex);
+        log.warn(messages.getString("CATALOG NOT READABLE"), catalogFile, 
+          ex.getMessage());
       }
-      catch (LaudatioException ex)
+    }
+  }
+  
+  private static int getThreads(Properties props)
+  {
+    String threads = props.getProperty("threads", "1");
+    try
+    {
+      return Math.max(1, Integer.parseInt(threads.trim()));
+    }
+    catch(NumberFormatException ex)
+    {
+      log.warn(messages.getString("INVALID NUMBER OF THREADS"), threads);
+      return 1;
+    }
+  }
+  
+  private static long getNumber(Properties props, String name, 
+    long defaultValue)
+  {
+    String value = props.getProperty(name);
+    if(value == null)
+    {
+      return defaultValue;
+    }
+    try
+    {
+      return Long.parseLong(value.trim());
+    }
+    catch(NumberFormatException ex)
+    {
+      log.warn(messages.getString("INVALID NUMBER"), name, value);
+      return defaultValue;
+    }
+  }
+  
+  /**
+   * Creates the error budget for "failfast" or "maxerrors".
+   * 
+   * @return The budget or null if all errors should be collected.
+   */
+  private static ErrorBudget createErrorBudget(Properties props)
+  {
+    int maxErrors = (int) getNumber(props, "maxerrors", 0);
+    if(isSet(props, "failfast"))
+    {
+      maxErrors = 1;
+    }
+    return maxErrors > 0 ? new ErrorBudget(maxErrors) : null;
+  }
+  
+  /**
+   * Prints the collected {@link Metrics} to stderr when the JVM exits, which 
+   * also covers the {@link System#exit(int)} calls of the different modes.
+   */
+  private static void printStatsOnExit()
+  {
+    Runtime.getRuntime().addShutdownHook(new Thread()
+    {
+      @Override
+      public void run()
       {
-        System.err.println(ex.getLocalizedMessage());
+        try
+        {
+          Writer out = new OutputStreamWriter(System.err, Charsets.UTF_8);
+          Metrics.getInstance().writeSummary(out);
+          out.flush();
+        }
+        catch(IOException ex)
+        {
+          log.error(null, ex);
+        }
       }
+    });
+  }
+  
+  private static boolean isSet(Properties props, String flag)
+  {
+    return Boolean.parseBoolean(props.getProperty(flag, "false").trim());
+  }
+  
+  /**
+   * Reads the jobs from the manifest given by "-batch" or validates all 
+   * corpora matching the glob pattern. Additional arguments are treated as 
+   * patterns as well, since the shell might have expanded the pattern 
+   * already.
+   */
+  private static List<BatchRunner.Job> readBatchJobs(CommandLine cmd) 
+    throws IOException, LaudatioException
+  {
+    String arg = cmd.getOptionValue("batch");
+    File manifest = new File(arg);
+    if(manifest.isFile() && !CorpusFiles.isXMLFile(manifest.getName()) 
+      && !CorpusFiles.isZip(manifest))
+    {
+      return BatchRunner.readManifest(manifest);
     }
-    else
+    List<BatchRunner.Job> jobs = new ArrayList<BatchRunner.Job>();
+    jobs.addAll(BatchRunner.glob(arg));
+    for(String pattern : cmd.getArgs())
     {
-      try
+      jobs.addAll(BatchRunner.glob(pattern));
+    }
+    return jobs;
+  }
+  
+  private static void validate(String arg, Properties props, 
+    ErrorReporter reporter, ErrorBudget budget) throws LaudatioException
+  {
+    File f = new File(arg);
+    if(!f.exists())
+    {
+      System.err.println("File " + f.getAbsolutePath() + " does not exist");
+      System.exit(-2);
+    }
+    
+    ValidationReport report = null;
+    ValidationReport.Format reportFormat = null;
+    if(props.getProperty("report") != null)
+    {
+      reportFormat = ValidationReport.Format.parse(props.getProperty("report"));
+      report = new ValidationReport();
+    }
+    // the structured report replaces the messages on the standard output
+    boolean quiet = report != null && props.getProperty("reportfile") == null;
+    
+    int threads = getThreads(props);
+    String corpusSchemeURL = props.getProperty("schemecorpus");
+    String documentSchemeURL = props.getProperty("schemedoc");
+    String prepartionSchemeURL = props.getProperty("schemeprep");
+    
+    int exitCode = 1;
+    try
+    {
+      if(f.isDirectory() || CorpusFiles.isZip(f))
       {
-        File out = Files.createTempDir();
-        
-        SplitTEI split = new SplitTEI(f, out,
+        MergeTEI merge = new MergeTEI(f, null, 
           corpusSchemeURL, documentSchemeURL, prepartionSchemeURL);
-        split.split();
-        
-        deleteTemporaryDirectory(out);
-        
-        // if we got until there without exception the document is valid
-        System.out.println("Validation successfull");
-        System.exit(0);
+        merge.setThreads(threads);
+        merge.setSorted(isSet(props, "sorted"));
+        merge.setReport(report);
+        merge.setErrorBudget(budget);
+        merge.setErrorReporter(reporter);
+        // the cache is stored inside the directory
+        if(!isSet(props, "nocache") && f.isDirectory())
+        {
+          ValidationCache cache = ValidationCache.load(f);
+          merge.setValidationCache(cache);
+          try
+          {
+            merge.validate();
+          }
+          finally
+          {
+            saveCache(cache);
+          }
+        }
+        else
+        {
+          merge.validate();
+        }
       }
-      catch (IOException ex)
+      else
       {
-        log.error("Could not create temporary file", ex);
+        SplitTEI split = new SplitTEI(f, null,
+          corpusSchemeURL, documentSchemeURL, prepartionSchemeURL);
+        split.setStreaming(isSet(props, "streaming"));
+        split.setThreads(threads);
+        split.setReport(report);
+        split.setErrorBudget(budget);
+        split.setErrorReporter(reporter);
+        // validate the headers in memory without writing them
+        split.validate();
       }
-      catch (LaudatioException ex)
+      
+      // if we got until there without exception the document is valid
+      if(!quiet)
       {
-        System.err.println(ex.getLocalizedMessage());
+        System.out.println("Validation successfull");
       }
+      exitCode = 0;
+    }
+    catch (ValidationException ex)
+    {
+      printErrors(ex, reporter, budget);
+    }
+    catch (LaudatioException ex)
+    {
+      System.err.println(ex.getLocalizedMessage());
+    }
+    
+    if(report != null)
+    {
+      report.finish();
+      writeReport(report, reportFormat, props.getProperty("reportfile"));
     }
 
     // non-valid per default
-    System.exit(1);
+    System.exit(exitCode);
+  }
+  
+  private static ExtractTEI createExtract(String id, String mergedFile, 
+    Properties props)
+  {
+    return new ExtractTEI(new File(mergedFile), id, 
+      props.getProperty("schemecorpus"), 
+      props.getProperty("schemedoc"), 
+      props.getProperty("schemeprep"));
+  }
+  
+  private static void writeReport(ValidationReport report, 
+    ValidationReport.Format format, String reportFile)
+  {
+    try
+    {
+      if(reportFile == null)
+      {
+        Writer out = new OutputStreamWriter(System.out, Charsets.UTF_8);
+        report.write(out, format);
+        out.flush();
+      }
+      else
+      {
+        Writer out = new XMLFileOutput(false).open(new File(reportFile));
+        try
+        {
+          report.write(out, format);
+        }
+        finally
+        {
+          out.close();
+        }
+      }
+    }
+    catch(IOException ex)
+    {
+      log.error(messages.getString("REPORT NOT WRITTEN"), ex.getMessage());
+    }
   }
   
-  private static void deleteTemporaryDirectory(File f) throws IOException {
-  if (f.isDirectory()) {
-    for (File c : f.listFiles())
+  private static void saveCache(ValidationCache cache)
+  {
+    try
     {
-      deleteTemporaryDirectory(c);
+      cache.save();
+    }
+    catch(IOException ex)
+    {
+      log.warn(messages.getString("VALIDATION CACHE NOT WRITTEN"), 
+        cache.getIndexFile().getPath(), ex.getMessage());
     }
   }
-  if (!f.delete())
+  
+  private static void printErrors(ValidationException ex, 
+    ErrorReporter reporter, ErrorBudget budget)
   {
-    throw new IOException("Failed to delete file: " + f);
+    try
+    {
+      // the errors were already reported after each file
+      reporter.finish();
+    }
+    catch(IOException ioex)
+    {
+      log.error(null, ioex);
+    }
+    System.err.println();
+    System.err.println(ex.getLocalizedMessage());
+    if(budget != null && budget.isExhausted())
+    {
+      System.err.println(String.format(messages.getString(
+        "VALIDATION STOPPED"), budget.getErrorCount()));
+    }
   }
 }
-}
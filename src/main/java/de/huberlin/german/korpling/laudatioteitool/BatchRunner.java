@@ -0,0 +1,581 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Validates, splits and merges many corpora in one process. The compiled 
+ * schemes are shared by all jobs and several corpora can be processed at the
+ * same time.
+ * 
+ * The jobs are either read from a manifest file or all corpora matching a 
+ * glob pattern are validated.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class BatchRunner
+{
+
+  private final static Logger log = LoggerFactory.getLogger(BatchRunner.class);
+  private static final ResourceBundle messages =
+    ResourceBundle.getBundle("de/huberlin/german/korpling/laudatioteitool/Messages");
+
+  public enum Operation
+  {
+    VALIDATE, SPLIT, MERGE
+  }
+
+  public enum Status
+  {
+    VALID, INVALID, FAILED
+  }
+
+  private final TeiTool tool;
+  private final List<Job> jobs;
+  private int parallel = 1;
+  private ErrorReporter errorReporter;
+
+  /**
+   * @param tool The configuration used for all jobs.
+   * @param jobs 
+   */
+  public BatchRunner(TeiTool tool, List<Job> jobs)
+  {
+    this.tool = tool;
+    this.jobs = new ArrayList<Job>(jobs);
+  }
+
+  /**
+   * Executes all jobs. A job that failed does not stop the other ones.
+   * 
+   * @return The results in the same order as the jobs.
+   */
+  public List<Result> run()
+  {
+    List<Result> results = new ArrayList<Result>(jobs.size());
+    if (parallel <= 1)
+    {
+      for (Job job : jobs)
+      {
+        results.add(execute(job));
+      }
+      return results;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallel);
+    try
+    {
+      List<Future<Result>> futures = new ArrayList<Future<Result>>();
+      for (final Job job : jobs)
+      {
+        futures.add(executor.submit(new Callable<Result>()
+        {
+          @Override
+          public Result call() throws Exception
+          {
+            return execute(job);
+          }
+        }));
+      }
+      // every job gets a result, even if waiting for another one failed
+      for (int i = 0; i < jobs.size(); i++)
+      {
+        results.add(getResult(futures.get(i), jobs.get(i)));
+      }
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+    return results;
+  }
+
+  private static Result getResult(Future<Result> future, Job job)
+  {
+    Result result = new Result(job);
+    try
+    {
+      return future.get();
+    }
+    catch (InterruptedException ex)
+    {
+      // the remaining jobs are not waited for either
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      result.message = messages.getString("BATCH JOB INTERRUPTED");
+    }
+    catch (ExecutionException ex)
+    {
+      // execute() catches all exceptions by itself
+      log.error(null, ex.getCause());
+      result.message = ex.getCause().toString();
+    }
+    catch (CancellationException ex)
+    {
+      result.message = messages.getString("BATCH JOB INTERRUPTED");
+    }
+    result.status = Status.FAILED;
+    return result;
+  }
+
+  private Result execute(Job job)
+  {
+    long start = System.nanoTime();
+    Result result = new Result(job);
+    try
+    {
+      TeiTool.Result r = null;
+      switch (job.getOperation())
+      {
+        case VALIDATE:
+          r = tool.validate(job.getInput());
+          break;
+        case SPLIT:
+          r = tool.split(job.getInput(), job.getOutput());
+          break;
+        case MERGE:
+          r = tool.merge(job.getInput(), job.getOutput());
+          break;
+      }
+      if (r.isValid())
+      {
+        result.status = Status.VALID;
+      }
+      else
+      {
+        result.status = Status.INVALID;
+        result.message = r.getMessage();
+        result.errors = r.getErrorCount();
+        reportErrors(r.getErrors());
+      }
+    }
+    catch (LaudatioException ex)
+    {
+      result.status = Status.FAILED;
+      result.message = ex.getMessage();
+    }
+    catch (RuntimeException ex)
+    {
+      // e.g. a missing header directory
+      log.debug(null, ex);
+      result.status = Status.FAILED;
+      result.message = ex.getMessage() == null ? ex.toString() : ex.getMessage();
+    }
+    catch (Error ex)
+    {
+      // e.g. a StackOverflowError or OutOfMemoryError caused by one corpus
+      log.error(null, ex);
+      result.status = Status.FAILED;
+      result.message = ex.toString();
+    }
+    result.nanos = System.nanoTime() - start;
+    log.info(messages.getString("BATCH JOB FINISHED"), new Object[]
+      {
+        job, result.status, TimeUnit.NANOSECONDS.toMillis(result.nanos)
+      });
+    return result;
+  }
+
+  private void reportErrors(TEIValidator.Errors errors)
+  {
+    if (errorReporter != null)
+    {
+      // keep the reports of parallel jobs apart
+      synchronized (errorReporter)
+      {
+        try
+        {
+          errorReporter.report(errors);
+        }
+        catch (IOException ex)
+        {
+          log.error(null, ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes a table with the result and duration of each job and a summary.
+   * 
+   * @param out
+   * @param results
+   * @throws IOException 
+   */
+  public static void writeSummary(Writer out, List<Result> results) throws
+    IOException
+  {
+    String format = "%-9s %-8s %7s %10s  %s\n";
+    out.write(String.format(format, "Operation", "Result", "Errors",
+      "Time (ms)", "Corpus"));
+    int[] count = new int[Status.values().length];
+    long nanos = 0;
+    for (Result r : results)
+    {
+      out.write(String.format(format,
+        r.getJob().getOperation().name().toLowerCase(Locale.ENGLISH),
+        r.getStatus().name().toLowerCase(Locale.ENGLISH), r.getErrors(),
+        TimeUnit.NANOSECONDS.toMillis(r.getNanos()),
+        r.getJob().getInput().getPath()));
+      if (r.getStatus() == Status.FAILED)
+      {
+        out.write(String.format(format, "", "", "", "", r.getMessage()));
+      }
+      count[r.getStatus().ordinal()]++;
+      nanos += r.getNanos();
+    }
+    out.write(String.format("%d corpora: %d valid, %d invalid, %d failed, "
+      + "%d ms in total\n", results.size(), count[Status.VALID.ordinal()],
+      count[Status.INVALID.ordinal()], count[Status.FAILED.ordinal()],
+      TimeUnit.NANOSECONDS.toMillis(nanos)));
+    out.flush();
+  }
+
+  /**
+   * Reads the jobs from a manifest file. Each line contains an operation 
+   * ("validate", "split" or "merge"), the input and for "split" and "merge"
+   * the output. A line with only a path is validated. Paths containing 
+   * spaces must be quoted, relative paths are resolved against the directory
+   * of the manifest. Empty lines and lines starting with "#" are ignored.
+   * 
+   * <pre>
+   * validate corpora/first
+   * merge corpora/second merged/second.xml
+   * split "merged/third corpus.xml" corpora/third
+   * </pre>
+   * 
+   * @param manifest
+   * @return
+   * @throws IOException If the manifest could not be read.
+   * @throws LaudatioException If a line is malformed.
+   */
+  public static List<Job> readManifest(File manifest) throws IOException,
+    LaudatioException
+  {
+    File baseDir = manifest.getAbsoluteFile().getParentFile();
+    List<Job> result = new ArrayList<Job>();
+    int lineNr = 0;
+    for (String line : Files.readLines(manifest, Charsets.UTF_8))
+    {
+      lineNr++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#"))
+      {
+        continue;
+      }
+      List<String> tokens = tokenize(line);
+      Operation op = Operation.VALIDATE;
+      for (Operation candidate : Operation.values())
+      {
+        if (tokens.size() > 1 && candidate.name().equalsIgnoreCase(
+          tokens.get(0)))
+        {
+          op = candidate;
+          tokens.remove(0);
+        }
+      }
+      int expected = op == Operation.VALIDATE ? 1 : 2;
+      if (tokens.size() != expected)
+      {
+        throw new LaudatioException(String.format(messages.getString(
+          "MALFORMED MANIFEST LINE"), manifest.getPath(), lineNr, line));
+      }
+      File input = resolve(baseDir, tokens.get(0));
+      File output = expected == 2 ? resolve(baseDir, tokens.get(1)) : null;
+      result.add(new Job(op, input, output));
+    }
+    return result;
+  }
+
+  private static List<String> tokenize(String line)
+  {
+    List<String> tokens = new ArrayList<String>();
+    StringBuilder current = null;
+    boolean quoted = false;
+    for (char c : line.toCharArray())
+    {
+      if (c == '"')
+      {
+        quoted = !quoted;
+        if (current == null)
+        {
+          current = new StringBuilder();
+        }
+      }
+      else if (Character.isWhitespace(c) && !quoted)
+      {
+        if (current != null)
+        {
+          tokens.add(current.toString());
+          current = null;
+        }
+      }
+      else
+      {
+        if (current == null)
+        {
+          current = new StringBuilder();
+        }
+        current.append(c);
+      }
+    }
+    if (current != null)
+    {
+      tokens.add(current.toString());
+    }
+    return tokens;
+  }
+
+  private static File resolve(File baseDir, String path)
+  {
+    File f = new File(path);
+    return f.isAbsolute() ? f : new File(baseDir, path);
+  }
+
+  /**
+   * Creates a validation job for every file or directory matching a glob 
+   * pattern. The wildcards "*" and "?" can be used in every part of the path
+   * but do not match the path separator.
+   * 
+   * @param pattern E.g. "corpora/*" or "/data/*&#47;merged.xml"
+   * @return The jobs sorted by path.
+   */
+  public static List<Job> glob(String pattern)
+  {
+    String path = pattern.replace(File.separatorChar, '/');
+    String[] parts = path.split("/");
+    List<File> matches = new ArrayList<File>();
+    File start = path.startsWith("/") ? new File(File.separator) : null;
+    expand(start, parts, 0, matches);
+    Collections.sort(matches);
+
+    List<Job> result = new ArrayList<Job>();
+    for (File f : matches)
+    {
+      result.add(new Job(Operation.VALIDATE, f, null));
+    }
+    return result;
+  }
+
+  private static void expand(File dir, String[] parts, int idx,
+    List<File> matches)
+  {
+    if (idx == parts.length)
+    {
+      if (dir != null && dir.exists())
+      {
+        matches.add(dir);
+      }
+      return;
+    }
+    String part = parts[idx];
+    if (part.isEmpty())
+    {
+      expand(dir, parts, idx + 1, matches);
+    }
+    else if (part.indexOf('*') < 0 && part.indexOf('?') < 0)
+    {
+      expand(dir == null ? new File(part) : new File(dir, part), parts, 
+        idx + 1, matches);
+    }
+    else
+    {
+      Pattern regex = Pattern.compile(toRegex(part));
+      File[] children = (dir == null ? new File(".") : dir).listFiles();
+      if (children == null)
+      {
+        return;
+      }
+      Arrays.sort(children);
+      for (File c : children)
+      {
+        if (!c.getName().startsWith(".") 
+          && regex.matcher(c.getName()).matches())
+        {
+          expand(dir == null ? new File(c.getName()) : c, parts, idx + 1, 
+            matches);
+        }
+      }
+    }
+  }
+
+  private static String toRegex(String glob)
+  {
+    StringBuilder sb = new StringBuilder();
+    StringBuilder literal = new StringBuilder();
+    for (char c : glob.toCharArray())
+    {
+      if (c == '*' || c == '?')
+      {
+        if (literal.length() > 0)
+        {
+          sb.append(Pattern.quote(literal.toString()));
+          literal.setLength(0);
+        }
+        sb.append(c == '*' ? ".*" : ".");
+      }
+      else
+      {
+        literal.append(c);
+      }
+    }
+    if (literal.length() > 0)
+    {
+      sb.append(Pattern.quote(literal.toString()));
+    }
+    return sb.toString();
+  }
+
+  public int getParallel()
+  {
+    return parallel;
+  }
+
+  /**
+   * Set the number of corpora which are processed at the same time.
+   * 
+   * @param parallel 
+   */
+  public void setParallel(int parallel)
+  {
+    this.parallel = parallel;
+  }
+
+  public ErrorReporter getErrorReporter()
+  {
+    return errorReporter;
+  }
+
+  /**
+   * Set a reporter for the errors of invalid corpora.
+   * 
+   * @param errorReporter The reporter or null.
+   */
+  public void setErrorReporter(ErrorReporter errorReporter)
+  {
+    this.errorReporter = errorReporter;
+  }
+
+  /**
+   * A single operation on a corpus.
+   */
+  public static class Job
+  {
+
+    private final Operation operation;
+    private final File input;
+    private final File output;
+
+    public Job(Operation operation, File input, File output)
+    {
+      Preconditions.checkArgument(operation == Operation.VALIDATE 
+        || output != null, "output is missing");
+      this.operation = operation;
+      this.input = input;
+      this.output = output;
+    }
+
+    public Operation getOperation()
+    {
+      return operation;
+    }
+
+    public File getInput()
+    {
+      return input;
+    }
+
+    public File getOutput()
+    {
+      return output;
+    }
+
+    @Override
+    public String toString()
+    {
+      return operation.name().toLowerCase(Locale.ENGLISH) + " " + input.getPath()
+        + (output == null ? "" : " " + output.getPath());
+    }
+  }
+
+  /**
+   * The outcome of a job.
+   */
+  public static class Result
+  {
+
+    private final Job job;
+    private Status status = Status.FAILED;
+    private int errors = 0;
+    private String message;
+    private long nanos;
+
+    public Result(Job job)
+    {
+      this.job = job;
+    }
+
+    public Job getJob()
+    {
+      return job;
+    }
+
+    public Status getStatus()
+    {
+      return status;
+    }
+
+    /**
+     * @return The number of reported errors if the corpus was invalid.
+     */
+    public int getErrors()
+    {
+      return errors;
+    }
+
+    public String getMessage()
+    {
+      return message;
+    }
+
+    public long getNanos()
+    {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Access to the files of a corpus, which can be compressed with gzip 
+ * (".xml.gz") or be part of a zip archive.
+ * 
+ * A file inside a zip archive is addressed like a file in a directory with
+ * the name of the archive, e.g. "corpus.zip/DocumentHeader/doc1.xml". All
+ * data is decompressed while reading, nothing is extracted to the disk.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public final class CorpusFiles
+{
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final Metrics.Counter bytesRead =
+    Metrics.getInstance().counter("bytes_read");
+
+  /**
+   * The errors of a corpus that was read from a stream are reported for this
+   * name. It is not a file, so the source lines are never looked up.
+   */
+  public static final File STREAM_INPUT = new File("<input stream>");
+
+  /**
+   * Reading the central directory of a big archive is expensive, thus the
+   * recently used archives are kept open. The key contains the modification
+   * time and size, so a changed archive is opened again. An evicted archive
+   * is only closed when the last stream reading from it was closed.
+   */
+  private static final LoadingCache<String, Archive> archives = CacheBuilder.
+    newBuilder().maximumSize(4)
+    .removalListener(new RemovalListener<String, Archive>()
+  {
+    @Override
+    public void onRemoval(RemovalNotification<String, Archive> notification)
+    {
+      notification.getValue().evict();
+    }
+  })
+    .build(new CacheLoader<String, Archive>()
+  {
+    @Override
+    public Archive load(String key) throws Exception
+    {
+      return new Archive(new ZipFile(key.substring(0, key.indexOf('\n'))));
+    }
+  });
+
+  private CorpusFiles()
+  {
+  }
+
+  /**
+   * True for the names of header files, which are either plain or gzip
+   * compressed XML files.
+   */
+  public static boolean isXMLFile(String name)
+  {
+    return name.endsWith(".xml") || name.endsWith(".xml.gz");
+  }
+
+  public static boolean isGzip(File file)
+  {
+    return file.getName().endsWith(".gz");
+  }
+
+  public static boolean isZip(File file)
+  {
+    return file.getName().endsWith(".zip") && file.isFile();
+  }
+
+  /**
+   * Opens a file for reading and decompresses it if needed.
+   * 
+   * @param file A file on the disk or inside a zip archive.
+   * @return A buffered stream, which must be closed by the caller.
+   * @throws IOException 
+   */
+  public static InputStream open(File file) throws IOException
+  {
+    InputStream in;
+    if (file.isFile())
+    {
+      in = new BufferedInputStream(Metrics.getInstance().meter(
+        new FileInputStream(file), bytesRead), BUFFER_SIZE);
+    }
+    else
+    {
+      in = openArchiveEntry(file);
+    }
+    return isGzip(file) ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+  }
+
+  /**
+   * Opens the header files of a sub-directory like "DocumentHeader", which 
+   * are read from a directory while they are iterated.
+   * 
+   * @param corpus A directory or zip archive.
+   * @param name The name of the sub-directory.
+   * @param sorted If true the files are sorted by their name, otherwise they
+   * are in the order of the directory or archive.
+   * @return The header files, which must be closed, or null if the 
+   * sub-directory does not exist.
+   * @throws IOException 
+   */
+  public static HeaderFiles openHeaders(File corpus, String name, 
+    boolean sorted) throws IOException
+  {
+    if (corpus.isDirectory())
+    {
+      File dir = new File(corpus, name);
+      return dir.isDirectory() ? HeaderFiles.open(dir, sorted) : null;
+    }
+    // the entries of an archive are in memory anyway
+    File[] files = listHeaders(corpus, name);
+    if (files == null)
+    {
+      return null;
+    }
+    if (sorted)
+    {
+      Arrays.sort(files);
+    }
+    return HeaderFiles.of(Arrays.asList(files));
+  }
+
+  /**
+   * Lists the header files of a sub-directory like "DocumentHeader".
+   * 
+   * @param corpus A directory or zip archive. The sub-directories of an 
+   * archive can also be inside a single top-level directory.
+   * @param name The name of the sub-directory.
+   * @return The header files in the order of the directory or archive, or 
+   * null if the sub-directory does not exist.
+   * @throws IOException 
+   */
+  public static File[] listHeaders(File corpus, String name) throws
+    IOException
+  {
+    List<File> result = new ArrayList<File>();
+    if (corpus.isDirectory())
+    {
+      File dir = new File(corpus, name);
+      if (!dir.isDirectory())
+      {
+        return null;
+      }
+      for (File f : dir.listFiles())
+      {
+        if (isXMLFile(f.getName()) && f.isFile())
+        {
+          result.add(f);
+        }
+      }
+    }
+    else
+    {
+      boolean found = false;
+      Archive archive = acquireArchive(corpus);
+      try
+      {
+        Enumeration<? extends ZipEntry> entries = archive.zip.entries();
+        while (entries.hasMoreElements())
+        {
+          ZipEntry e = entries.nextElement();
+          String[] path = e.getName().split("/");
+          if (path.length >= 2 && path.length <= 3 
+            && name.equals(path[path.length - 2]))
+          {
+            found = true;
+            if (!e.isDirectory() && isXMLFile(path[path.length - 1]))
+            {
+              result.add(new File(corpus, e.getName()));
+            }
+          }
+        }
+      }
+      finally
+      {
+        archive.release();
+      }
+      if (!found)
+      {
+        return null;
+      }
+    }
+    return result.toArray(new File[result.size()]);
+  }
+
+  private static InputStream openArchiveEntry(File file) throws IOException
+  {
+    // find the archive in the parent directories
+    String entryName = file.getName();
+    File archive = file.getParentFile();
+    while (archive != null && !archive.isFile())
+    {
+      entryName = archive.getName() + "/" + entryName;
+      archive = archive.getParentFile();
+    }
+    if (archive == null || !isZip(archive))
+    {
+      throw new FileNotFoundException(file.getPath());
+    }
+
+    final Archive zip = acquireArchive(archive);
+    try
+    {
+      ZipEntry entry = zip.zip.getEntry(entryName);
+      if (entry == null)
+      {
+        throw new FileNotFoundException(file.getPath());
+      }
+      InputStream in = new BufferedInputStream(Metrics.getInstance().meter(
+        zip.zip.getInputStream(entry), bytesRead), BUFFER_SIZE);
+      // the archive is used until the stream is closed
+      return new FilterInputStream(in)
+      {
+        private boolean released = false;
+
+        @Override
+        public void close() throws IOException
+        {
+          try
+          {
+            super.close();
+          }
+          finally
+          {
+            if (!released)
+            {
+              released = true;
+              zip.release();
+            }
+          }
+        }
+      };
+    }
+    catch (IOException ex)
+    {
+      zip.release();
+      throw ex;
+    }
+    catch (RuntimeException ex)
+    {
+      zip.release();
+      throw ex;
+    }
+  }
+
+  /**
+   * Get an open archive, which must be released afterwards.
+   */
+  private static Archive acquireArchive(File archive) throws IOException
+  {
+    String key = archive.getAbsolutePath() + "\n" + archive.lastModified() 
+      + "\n" + archive.length();
+    try
+    {
+      while (true)
+      {
+        Archive result = archives.get(key);
+        if (result.acquire())
+        {
+          return result;
+        }
+        // closed right after it was evicted, the cache opens it again
+      }
+    }
+    catch (ExecutionException ex)
+    {
+      Throwables.propagateIfInstanceOf(ex.getCause(), IOException.class);
+      throw Throwables.propagate(ex.getCause());
+    }
+  }
+
+  /**
+   * An open archive which counts its users.
+   */
+  private static class Archive
+  {
+
+    private final ZipFile zip;
+    private int references = 0;
+    private boolean evicted = false;
+    private boolean closed = false;
+
+    public Archive(ZipFile zip)
+    {
+      this.zip = zip;
+    }
+
+    /**
+     * @return False if the archive is already closed.
+     */
+    public synchronized boolean acquire()
+    {
+      if (closed)
+      {
+        return false;
+      }
+      references++;
+      return true;
+    }
+
+    public synchronized void release()
+    {
+      references--;
+      closeIfUnused();
+    }
+
+    public synchronized void evict()
+    {
+      evicted = true;
+      closeIfUnused();
+    }
+
+    private void closeIfUnused()
+    {
+      if (evicted && references == 0 && !closed)
+      {
+        closed = true;
+        try
+        {
+          zip.close();
+        }
+        catch (IOException ex)
+        {
+          // ignore
+        }
+      }
+    }
+  }
+}
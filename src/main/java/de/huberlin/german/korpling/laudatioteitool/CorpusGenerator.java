@@ -0,0 +1,362 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Preconditions;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+import java.util.ResourceBundle;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates synthetic corpora that are valid against the default LAUDATIO
+ * schemes. The same seed and settings always produce the same corpus.
+ * 
+ * If the output file name ends with ".xml" (or ".xml.gz" for a compressed 
+ * file) a merged corpus is written,
+ * otherwise the output is a directory with the same layout that 
+ * {@link SplitTEI} creates.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class CorpusGenerator
+{
+
+  private final static Logger log = LoggerFactory.getLogger(CorpusGenerator.class);
+  private static final ResourceBundle messages = ResourceBundle.getBundle(
+    "de/huberlin/german/korpling/laudatioteitool/Messages");
+
+  private static final Namespace TEI_NS = TEICorpusWriter.TEI_NS;
+
+  private static final String[] ANNOTATION_KEYS = new String[]
+  {
+    "tok", "pos", "lemma", "norm", "morph", "sentence", "clause", "syntax",
+    "gloss", "translation"
+  };
+
+  private static final String[] WORDS = new String[]
+  {
+    "corpus", "text", "annotation", "token", "manuscript", "edition",
+    "sentence", "word", "layer", "transcription", "source", "document",
+    "historical", "german", "language", "linguistic", "data", "tool",
+    "format", "header"
+  };
+
+  private final File output;
+  private long seed = 0;
+  private int documents = 10;
+  private int preparationSteps = 2;
+  private int headerSize = 1;
+  private XMLFileOutput xmlOutput = new XMLFileOutput(false);
+
+  public CorpusGenerator(File output)
+  {
+    this.output = output;
+  }
+
+  public void generate() throws LaudatioException
+  {
+    Random random = new Random(seed);
+    try
+    {
+      if (isMerged())
+      {
+        generateMerged(random);
+      }
+      else
+      {
+        generateSplit(random);
+      }
+    }
+    catch (IOException ex)
+    {
+      throw new LaudatioException(ex.getLocalizedMessage());
+    }
+    log.info(messages.getString("GENERATED CORPUS"), documents,
+      output.getPath());
+  }
+
+  public boolean isMerged()
+  {
+    return CorpusFiles.isXMLFile(output.getName());
+  }
+
+  private void generateMerged(Random random) throws IOException,
+    LaudatioException
+  {
+    File parent = output.getAbsoluteFile().getParentFile();
+    if (!parent.exists() && !parent.mkdirs())
+    {
+      throw new LaudatioException(messages.getString(
+        "COULD NOT CREATE MERGED OUTPUTFILE: I CAN'T CREATE THE DIRECTORIES"));
+    }
+
+    Writer out = xmlOutput.open(output);
+    try
+    {
+      TEICorpusWriter writer = xmlOutput.createCorpusWriter(out);
+      writer.startCorpus();
+      writer.writeHeader(createCorpusHeader(random));
+
+      // the preparation headers are nested inside the document corpus
+      writer.startCorpus();
+      for (int i = 0; i < documents; i++)
+      {
+        writer.writeHeader(createDocumentHeader(random, i));
+      }
+
+      writer.startCorpus();
+      for (int i = 0; i < documents; i++)
+      {
+        for (int j = 0; j < preparationSteps; j++)
+        {
+          writer.writeHeader(createPreparationHeader(random, i, j));
+        }
+      }
+      writer.endCorpus();
+
+      writer.endCorpus();
+      writer.endCorpus();
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  private void generateSplit(Random random) throws IOException,
+    LaudatioException
+  {
+    File corpusDir = createDirectory("CorpusHeader");
+    File documentDir = createDirectory("DocumentHeader");
+    File preparationDir = createDirectory("PreparationHeader");
+
+    Element corpusHeader = createCorpusHeader(random);
+    write(SplitTEI.createHeaderDocument(corpusHeader,
+      TEICorpusValidator.DEFAULT_SCHEME_URL),
+      new File(corpusDir, getTitle(corpusHeader) + ".xml"));
+
+    for (int i = 0; i < documents; i++)
+    {
+      write(SplitTEI.createHeaderDocument(createDocumentHeader(random, i),
+        TEIDocumentValidator.DEFAULT_SCHEME_URL),
+        new File(documentDir, getDocumentId(i) + ".xml"));
+    }
+
+    for (int i = 0; i < documents; i++)
+    {
+      for (int j = 0; j < preparationSteps; j++)
+      {
+        Element preparationHeader = createPreparationHeader(random, i, j);
+        write(SplitTEI.createHeaderDocument(preparationHeader,
+          TEIPreparationValidator.DEFAULT_SCHEME_URL),
+          new File(preparationDir, getAnnotationKey(preparationHeader) 
+          + ".xml"));
+      }
+    }
+  }
+
+  private File createDirectory(String name) throws LaudatioException
+  {
+    File dir = new File(output, name);
+    if (!dir.exists() && !dir.mkdirs())
+    {
+      throw new LaudatioException(messages.getString(
+        "COULD NOT CREATE DIRECTORY") + dir.getAbsolutePath());
+    }
+    return dir;
+  }
+
+  private void write(Document doc, File file) throws IOException
+  {
+    xmlOutput.write(doc, file);
+  }
+
+  private Element createCorpusHeader(Random random)
+  {
+    return createHeader(random, "CorpusHeader", null,
+      new Element("title", TEI_NS).setText("Synthetic corpus " + seed));
+  }
+
+  private Element createDocumentHeader(Random random, int document)
+  {
+    String id = getDocumentId(document);
+    return createHeader(random, "DocumentHeader", id,
+      new Element("title", TEI_NS).setText("Document " + document));
+  }
+
+  private Element createPreparationHeader(Random random, int document,
+    int step)
+  {
+    String annotation = ANNOTATION_KEYS[random.nextInt(ANNOTATION_KEYS.length)];
+    String documentID = getDocumentId(document);
+    Element title = new Element("title", TEI_NS)
+      .setAttribute("type", "AnnotationKey")
+      .setAttribute("corresp", "#" + documentID + "_" + step + "_" + annotation)
+      .setText(annotation);
+    Element header = createHeader(random, "PreparationHeader", null, title);
+
+    // reference the annotated document
+    Element sourceDesc = header.getChild("fileDesc", TEI_NS).getChild(
+      "sourceDesc", TEI_NS);
+    sourceDesc.removeContent();
+    sourceDesc.addContent(new Element("list", TEI_NS)
+      .setAttribute("type", "CorpusDocument")
+      .addContent(new Element("item", TEI_NS)
+      .setAttribute("n", "1")
+      .setAttribute("corresp", "#" + documentID)
+      .setText(documentID)));
+    return header;
+  }
+
+  /**
+   * Creates a minimal header. The publication statement contains 
+   * {@link #getHeaderSize() } paragraphs of random text.
+   */
+  private Element createHeader(Random random, String type, String id,
+    Element title)
+  {
+    Element fileDesc = new Element("fileDesc", TEI_NS);
+    if (id != null)
+    {
+      fileDesc.setAttribute("id", id, Namespace.XML_NAMESPACE);
+    }
+    fileDesc.addContent(new Element("titleStmt", TEI_NS).addContent(title));
+
+    Element publicationStmt = new Element("publicationStmt", TEI_NS);
+    for (int i = 0; i < headerSize; i++)
+    {
+      publicationStmt.addContent(new Element("p", TEI_NS).setText(
+        createParagraph(random)));
+    }
+    fileDesc.addContent(publicationStmt);
+
+    fileDesc.addContent(new Element("sourceDesc", TEI_NS).addContent(
+      new Element("p", TEI_NS).setText("Generated with seed " + seed)));
+
+    return new Element("teiHeader", TEI_NS).setAttribute("type", type)
+      .addContent(fileDesc);
+  }
+
+  private static String createParagraph(Random random)
+  {
+    int length = 10 + random.nextInt(20);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < length; i++)
+    {
+      if (i > 0)
+      {
+        sb.append(' ');
+      }
+      sb.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return sb.append('.').toString();
+  }
+
+  private static String getDocumentId(int document)
+  {
+    return "d" + document;
+  }
+
+  private static String getTitle(Element header)
+  {
+    return header.getChild("fileDesc", TEI_NS).getChild("titleStmt", TEI_NS)
+      .getChildText("title", TEI_NS);
+  }
+
+  private static String getAnnotationKey(Element header)
+  {
+    return header.getChild("fileDesc", TEI_NS).getChild("titleStmt", TEI_NS)
+      .getChild("title", TEI_NS).getAttributeValue("corresp");
+  }
+
+  public File getOutput()
+  {
+    return output;
+  }
+
+  public long getSeed()
+  {
+    return seed;
+  }
+
+  public void setSeed(long seed)
+  {
+    this.seed = seed;
+  }
+
+  public int getDocuments()
+  {
+    return documents;
+  }
+
+  public void setDocuments(int documents)
+  {
+    Preconditions.checkArgument(documents >= 1,
+      "the number of documents must be at least 1");
+    this.documents = documents;
+  }
+
+  public int getPreparationSteps()
+  {
+    return preparationSteps;
+  }
+
+  /**
+   * Sets the number of preparation headers per document. A merged corpus
+   * needs at least one preparation header.
+   */
+  public void setPreparationSteps(int preparationSteps)
+  {
+    Preconditions.checkArgument(preparationSteps >= 1,
+      "the number of preparation steps must be at least 1");
+    this.preparationSteps = preparationSteps;
+  }
+
+  public boolean isCompact()
+  {
+    return xmlOutput.isCompact();
+  }
+
+  /**
+   * If set, the corpus is written without indentation.
+   */
+  public void setCompact(boolean compact)
+  {
+    this.xmlOutput = new XMLFileOutput(compact);
+  }
+
+  public int getHeaderSize()
+  {
+    return headerSize;
+  }
+
+  /**
+   * Sets the number of random text paragraphs in each header.
+   */
+  public void setHeaderSize(int headerSize)
+  {
+    Preconditions.checkArgument(headerSize >= 1,
+      "the header size must be at least 1");
+    this.headerSize = headerSize;
+  }
+}
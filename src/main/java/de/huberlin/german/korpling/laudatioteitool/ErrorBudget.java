@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of errors collected by several validators and threads.
+ * As soon as the budget is used up the validation of the current file is 
+ * aborted and no further headers are parsed, validated or written.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class ErrorBudget
+{
+
+  private final int maxErrors;
+  private final AtomicInteger errors = new AtomicInteger();
+
+  /**
+   * @param maxErrors The number of errors after which the validation is
+   * stopped, 1 stops at the first error.
+   */
+  public ErrorBudget(int maxErrors)
+  {
+    Preconditions.checkArgument(maxErrors > 0, "maxErrors must be positive");
+    this.maxErrors = maxErrors;
+  }
+
+  /**
+   * Takes one error from the budget.
+   * 
+   * @return False if the budget was already used up and the error should be 
+   * dropped.
+   */
+  public boolean take()
+  {
+    int current;
+    do
+    {
+      current = errors.get();
+      if (current >= maxErrors)
+      {
+        return false;
+      }
+    }
+    while (!errors.compareAndSet(current, current + 1));
+    return true;
+  }
+
+  /**
+   * @return True if no more errors should be collected.
+   */
+  public boolean isExhausted()
+  {
+    return errors.get() >= maxErrors;
+  }
+
+  public int getMaxErrors()
+  {
+    return maxErrors;
+  }
+
+  public int getErrorCount()
+  {
+    return errors.get();
+  }
+}
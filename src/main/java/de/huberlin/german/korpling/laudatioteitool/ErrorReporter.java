@@ -0,0 +1,407 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Writes a human readable report of parser errors which shows the affected
+ * line of the source file for each error.
+ * 
+ * Each file is read only once and only up to the last affected line, and 
+ * only the affected lines are kept in memory. Merged corpora with a 
+ * {@link HeaderIndex} are read from the last header before the first
+ * affected line. The report is written to the output file by file. The 
+ * number of reported errors can be limited per file and in total for each
+ * report, so a reporter can be shared by several corpora.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class ErrorReporter
+{
+
+  private final static Logger log = LoggerFactory.getLogger(ErrorReporter.class);
+
+  private final Writer out;
+  private int maxErrorsPerFile = 0;
+  private int maxErrors = 0;
+
+  /**
+   * The counts of the single file reports since the last 
+   * {@link #finish() }.
+   */
+  private final Map<File, Integer> reportedPerFile = 
+    new HashMap<File, Integer>();
+  private int reportedTotal = 0;
+  private int skippedErrors = 0;
+  private final Set<File> skippedFiles = new HashSet<File>();
+
+  /**
+   * The indexes of merged corpora, null if a file has none.
+   */
+  private final Map<File, HeaderIndex> indexes = 
+    new HashMap<File, HeaderIndex>();
+
+  public ErrorReporter(Writer out)
+  {
+    this.out = out;
+  }
+
+  /**
+   * Reports all errors, grouped by file.
+   * 
+   * @param errors
+   * @throws IOException If the report could not be written.
+   */
+  public synchronized void report(TEIValidator.Errors errors)
+    throws IOException
+  {
+    int reported = 0;
+    int skippedErrors = 0;
+    int skippedFiles = 0;
+    for (Map.Entry<File, List<SAXParseException>> e : errors.entrySet())
+    {
+      if (e.getValue().isEmpty())
+      {
+        continue;
+      }
+      if (maxErrors > 0 && reported >= maxErrors)
+      {
+        skippedErrors += e.getValue().size();
+        skippedFiles++;
+      }
+      else
+      {
+        reported += report(e.getKey(), e.getValue(), 
+          limit(e.getValue().size(), 0, reported));
+      }
+    }
+    if (skippedFiles > 0)
+    {
+      out.write("... " + skippedErrors + " more errors in " + skippedFiles 
+        + " other files\n");
+    }
+    out.flush();
+  }
+
+  /**
+   * Reports the errors of a single file or of a single header of a merged
+   * corpus as soon as it was validated. The limits apply to all errors 
+   * reported by this method until {@link #finish() } is called. This method
+   * can be called by several threads at the same time.
+   * 
+   * @param file
+   * @param errors
+   * @throws IOException If the report could not be written.
+   */
+  public synchronized void report(File file, List<SAXParseException> errors)
+    throws IOException
+  {
+    if (errors.isEmpty())
+    {
+      return;
+    }
+    Integer fileReported = reportedPerFile.get(file);
+    if (fileReported == null)
+    {
+      fileReported = 0;
+    }
+    int limit = limit(errors.size(), fileReported, reportedTotal);
+    if (limit == 0)
+    {
+      skippedErrors += errors.size();
+      skippedFiles.add(file);
+      return;
+    }
+    int shown = report(file, errors, limit);
+    reportedTotal += shown;
+    reportedPerFile.put(file, fileReported + shown);
+    out.flush();
+  }
+
+  /**
+   * Ends the reports of single files. Writes the number of errors which were
+   * not reported because of the limits and resets the counts of the limits.
+   * 
+   * @throws IOException If the report could not be written.
+   */
+  public synchronized void finish() throws IOException
+  {
+    if (skippedErrors > 0)
+    {
+      out.write("... " + skippedErrors + " more errors in " 
+        + skippedFiles.size() + (skippedFiles.size() > 1 ? " files\n" 
+        : " file\n"));
+    }
+    reportedPerFile.clear();
+    reportedTotal = 0;
+    skippedErrors = 0;
+    skippedFiles.clear();
+    out.flush();
+  }
+
+  /**
+   * @param errors The number of errors to report.
+   * @param fileReported The number of errors already reported for the file.
+   * @param totalReported The number of errors already reported in total.
+   * @return The number of errors which may be reported.
+   */
+  private int limit(int errors, int fileReported, int totalReported)
+  {
+    int limit = errors;
+    if (maxErrorsPerFile > 0)
+    {
+      limit = Math.min(limit, Math.max(0, maxErrorsPerFile - fileReported));
+    }
+    if (maxErrors > 0)
+    {
+      limit = Math.min(limit, Math.max(0, maxErrors - totalReported));
+    }
+    return limit;
+  }
+
+  /**
+   * @param limit The number of errors to show.
+   * @return The number of reported errors.
+   */
+  private int report(File file, List<SAXParseException> errors, 
+    int limit) throws IOException
+  {
+    List<SAXParseException> shown = errors.subList(0, limit);
+
+    TreeSet<Integer> lineNumbers = new TreeSet<Integer>();
+    for (SAXParseException ex : shown)
+    {
+      if (ex.getLineNumber() >= 1)
+      {
+        lineNumbers.add(ex.getLineNumber());
+      }
+    }
+    // the lines of a stream can't be read again
+    Map<Integer, String> lines = CorpusFiles.STREAM_INPUT.equals(file)
+      ? new HashMap<Integer, String>() : readLines(file, lineNumbers);
+
+    String header = file.getPath() + " has " + errors.size()
+      + (errors.size() > 1 ? " errors" : " error");
+    out.write(header);
+    out.write("\n");
+    out.write(Strings.repeat("=", header.length()));
+    out.write("\n");
+
+    for (SAXParseException ex : shown)
+    {
+      int columnNr = ex.getColumnNumber();
+      int lineNr = ex.getLineNumber();
+
+      out.write("[line " + lineNr + "/column " + columnNr + "]\n");
+      String caption = ex.getLocalizedMessage();
+      out.write(caption);
+      out.write("\n");
+
+      String line = lines.get(lineNr);
+      if (line == null)
+      {
+        line = "";
+      }
+      else
+      {
+        // output complete affected line 
+        out.write(line);
+        out.write("\n");
+
+        // output a marker for the columns
+        out.write(Strings.padStart("^", columnNr, ' '));
+        out.write("\n");
+      }
+
+      out.write(Strings.repeat("-", Math.min(80, Math.max(caption.length(),
+        line.length()))));
+      out.write("\n");
+    }
+    if (shown.size() < errors.size())
+    {
+      out.write("... " + (errors.size() - shown.size()) + " more errors\n");
+    }
+    return shown.size();
+  }
+
+  /**
+   * Reads only the requested lines of a file.
+   */
+  private Map<Integer, String> readLines(File file,
+    TreeSet<Integer> lineNumbers)
+  {
+    Map<Integer, String> result = new HashMap<Integer, String>();
+    if (lineNumbers.isEmpty())
+    {
+      return result;
+    }
+    try
+    {
+      HeaderIndex.Entry header = findHeader(file, lineNumbers.first());
+      InputStream in;
+      Charset charset;
+      int lineNr;
+      if (header == null)
+      {
+        in = CorpusFiles.open(file);
+        charset = Charsets.UTF_8;
+        lineNr = 0;
+      }
+      else
+      {
+        // continue counting at the line of the header
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.seek(header.getStart());
+        in = Channels.newInputStream(raf.getChannel());
+        charset = Charset.forName(indexes.get(file).getCharset());
+        lineNr = (int) header.getLine() - 1;
+      }
+      try
+      {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+          charset));
+        int lastLine = lineNumbers.last();
+        String line;
+        while (lineNr < lastLine && (line = reader.readLine()) != null)
+        {
+          lineNr++;
+          if (lineNumbers.contains(lineNr))
+          {
+            result.put(lineNr, line);
+          }
+        }
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch (IOException ex)
+    {
+      log.error("Could not read {}: {}", file, ex.getMessage());
+    }
+    return result;
+  }
+
+  /**
+   * Finds the last header of a merged corpus whose first line is completely
+   * before the given line.
+   *
+   * @return The header or null if the file has to be read from the start.
+   */
+  private HeaderIndex.Entry findHeader(File file, int lineNr)
+  {
+    HeaderIndex index = getIndex(file);
+    if (index == null)
+    {
+      return null;
+    }
+    HeaderIndex.Entry found = null;
+    for (HeaderIndex.Entry e : index.getEntries())
+    {
+      if (e.getLine() > lineNr 
+        || (e.getLine() == lineNr && e.getColumn() > 1))
+      {
+        break;
+      }
+      found = e;
+    }
+    return found;
+  }
+
+  /**
+   * Get the index of a merged corpus, but only if it was already saved by 
+   * splitting or extracting from the corpus.
+   */
+  private HeaderIndex getIndex(File file)
+  {
+    if (!indexes.containsKey(file))
+    {
+      HeaderIndex index = null;
+      if (new File(file.getPath() + HeaderIndex.FILE_SUFFIX).isFile())
+      {
+        try
+        {
+          index = HeaderIndex.open(file);
+        }
+        catch (LaudatioException ex)
+        {
+          log.warn("Could not use the header index of {}: {}", file, 
+            ex.getMessage());
+        }
+        catch (IOException ex)
+        {
+          log.warn("Could not use the header index of {}: {}", file, 
+            ex.getMessage());
+        }
+      }
+      indexes.put(file, index);
+    }
+    return indexes.get(file);
+  }
+
+  public int getMaxErrorsPerFile()
+  {
+    return maxErrorsPerFile;
+  }
+
+  /**
+   * Limits the number of reported errors per file.
+   * 
+   * @param maxErrorsPerFile The limit or 0 to report all errors.
+   */
+  public void setMaxErrorsPerFile(int maxErrorsPerFile)
+  {
+    this.maxErrorsPerFile = maxErrorsPerFile;
+  }
+
+  public int getMaxErrors()
+  {
+    return maxErrors;
+  }
+
+  /**
+   * Limits the total number of errors reported by each call of
+   * {@link #report(de.huberlin.german.korpling.laudatioteitool.TEIValidator.Errors) }
+   * or by the single file reports until {@link #finish() }.
+   * 
+   * @param maxErrors The limit or 0 to report all errors.
+   */
+  public void setMaxErrors(int maxErrors)
+  {
+    this.maxErrors = maxErrors;
+  }
+}
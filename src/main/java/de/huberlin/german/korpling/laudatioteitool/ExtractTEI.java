@@ -0,0 +1,339 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ResourceBundle;
+import org.jdom2.output.Format;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts and validates a single header of a merged corpus. The position
+ * of the header is looked up in the {@link HeaderIndex} of the corpus and
+ * only the bytes of this header are read.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class ExtractTEI
+{
+
+  private static final ResourceBundle messages =
+    ResourceBundle.getBundle("de/huberlin/german/korpling/laudatioteitool/Messages");
+  private final static Logger log = LoggerFactory.getLogger(ExtractTEI.class);
+
+  private static final Metrics.Timer writeTimer =
+    Metrics.getInstance().timer("write");
+  private static final Metrics.Counter bytesRead =
+    Metrics.getInstance().counter("bytes_read");
+  private static final Metrics.Counter bytesWritten =
+    Metrics.getInstance().counter("bytes_written");
+  private static final Metrics.Counter headersWritten =
+    Metrics.getInstance().counter("headers_written");
+
+  private final File inputFile;
+  private final String id;
+  private final String corpusSchemeURL, documentSchemeURL, preparationSchemeURL;
+
+  private HeaderIndex index;
+  private XMLFileOutput output = new XMLFileOutput(false);
+  private ValidationReport report;
+  private ErrorBudget errorBudget;
+  private ErrorReporter errorReporter;
+
+  /**
+   * @param inputFile The merged corpus.
+   * @param id The "xml:id", title, "corresp" attribute or split file name
+   * of the header.
+   * @param corpusSchemeURL
+   * @param documentSchemeURL
+   * @param preparationSchemeURL
+   */
+  public ExtractTEI(File inputFile, String id, String corpusSchemeURL,
+    String documentSchemeURL, String preparationSchemeURL)
+  {
+    this.inputFile = inputFile;
+    this.id = id;
+    this.corpusSchemeURL = corpusSchemeURL;
+    this.documentSchemeURL = documentSchemeURL;
+    this.preparationSchemeURL = preparationSchemeURL;
+  }
+
+  /**
+   * Writes the header as a TEI document to a file and validates the written
+   * file.
+   *
+   * @param outputFile
+   * @throws LaudatioException
+   */
+  public void extract(File outputFile) throws LaudatioException
+  {
+    try
+    {
+      FileOutputStream out = new FileOutputStream(outputFile);
+      try
+      {
+        write(out);
+      }
+      finally
+      {
+        out.close();
+      }
+      log.info(messages.getString("WRITTEN HEADER"), outputFile.getPath());
+
+      TEIValidator validator = createValidator(findHeader().getType());
+      long start = System.nanoTime();
+      boolean valid = validator.validate(outputFile);
+      record(outputFile, validator, valid, start);
+      checkErrors(validator);
+    }
+    catch(IOException ex)
+    {
+      throw new LaudatioException(ex.getLocalizedMessage());
+    }
+  }
+
+  /**
+   * Writes the header as a TEI document to a stream and validates it.
+   * Reported errors refer to the lines of the merged corpus.
+   *
+   * @param out The stream, which is not closed.
+   * @throws LaudatioException
+   */
+  public void extract(OutputStream out) throws LaudatioException
+  {
+    try
+    {
+      write(out);
+    }
+    catch(IOException ex)
+    {
+      throw new LaudatioException(ex.getLocalizedMessage());
+    }
+    validate();
+  }
+
+  /**
+   * Validates the header without writing it. Reported errors refer to the
+   * lines of the merged corpus.
+   *
+   * @throws LaudatioException
+   */
+  public void validate() throws LaudatioException
+  {
+    try
+    {
+      HeaderIndex.Entry header = findHeader();
+      TEIValidator validator = createValidator(header.getType());
+      Charset charset = Charset.forName(getIndex().getCharset());
+      // the errors in the header should point to the merged corpus
+      Format format = Format.getCompactFormat();
+      String prefix = SplitTEI.getRawPrefix(header.getInheritedNamespaces(),
+        validator.getSchemaLocation(), charset, format);
+      int prefixLines = prefix.split("\n", -1).length - 1;
+      // the header starts after the "<TEI>" element in the last prefix line
+      int prefixColumns = prefix.length() - prefix.lastIndexOf('\n') - 1;
+
+      RandomAccessFile file = new RandomAccessFile(inputFile, "r");
+      try
+      {
+        InputStream in = new SequenceInputStream(Collections.enumeration(
+          Arrays.asList(
+          new ByteArrayInputStream(prefix.getBytes(charset)),
+          RawHeaderScanner.openStream(file.getChannel(), header.getStart(),
+          header.getEnd()),
+          new ByteArrayInputStream(SplitTEI.getRawSuffix(format).
+          getBytes(charset)))));
+        long start = System.nanoTime();
+        boolean valid = validator.validate(in, inputFile,
+          header.getLine() - 1 - prefixLines, prefixLines + 1,
+          header.getColumn() - 1 - prefixColumns);
+        record(inputFile, validator, valid, start);
+      }
+      finally
+      {
+        file.close();
+      }
+      checkErrors(validator);
+    }
+    catch(IOException ex)
+    {
+      throw new LaudatioException(ex.getLocalizedMessage());
+    }
+  }
+
+  private void write(OutputStream out) throws LaudatioException, IOException
+  {
+    HeaderIndex.Entry header = findHeader();
+    long start = System.nanoTime();
+    RandomAccessFile file = new RandomAccessFile(inputFile, "r");
+    long written;
+    try
+    {
+      written = SplitTEI.copyRawHeader(file.getChannel(), header.getStart(),
+        header.getEnd(), header.getInheritedNamespaces(),
+        Charset.forName(getIndex().getCharset()),
+        createValidator(header.getType()).getSchemaLocation(),
+        output.getFormat(), Channels.newChannel(out));
+    }
+    finally
+    {
+      file.close();
+    }
+    out.flush();
+
+    bytesRead.add(header.getLength());
+    bytesWritten.add(written);
+    writeTimer.stop(start);
+    headersWritten.increment();
+  }
+
+  private HeaderIndex getIndex() throws LaudatioException, IOException
+  {
+    if(index == null)
+    {
+      index = HeaderIndex.open(inputFile);
+    }
+    return index;
+  }
+
+  private HeaderIndex.Entry findHeader() throws LaudatioException, IOException
+  {
+    HeaderIndex.Entry header = getIndex().get(id);
+    if(header == null)
+    {
+      throw new LaudatioException(String.format(messages.getString(
+        "HEADER NOT FOUND"), id, inputFile.getPath()));
+    }
+    return header;
+  }
+
+  private TEIValidator createValidator(String type)
+  {
+    TEIValidator validator;
+    if("corpus".equals(type))
+    {
+      validator = corpusSchemeURL == null ? new TEICorpusValidator()
+        : new FromURLValidator(corpusSchemeURL);
+    }
+    else if("document".equals(type))
+    {
+      validator = documentSchemeURL == null ? new TEIDocumentValidator()
+        : new FromURLValidator(documentSchemeURL);
+    }
+    else
+    {
+      validator = preparationSchemeURL == null ? new TEIPreparationValidator()
+        : new FromURLValidator(preparationSchemeURL);
+    }
+    validator.setHeaderType(type);
+    validator.setErrorBudget(errorBudget);
+    validator.setErrorReporter(errorReporter);
+    return validator;
+  }
+
+  private void checkErrors(TEIValidator validator) throws ValidationException
+  {
+    if(!validator.getErrors().isEmpty())
+    {
+      throw new ValidationException("Header is not valid",
+        validator.getErrors());
+    }
+  }
+
+  private void record(File f, TEIValidator validator, boolean valid,
+    long start)
+  {
+    if(report != null)
+    {
+      report.add(f, validator, valid, false, System.nanoTime() - start);
+    }
+  }
+
+  public boolean isCompact()
+  {
+    return output.isCompact();
+  }
+
+  /**
+   * If set, the "TEI" element around the header is written without
+   * indentation. The header itself is always copied unchanged.
+   *
+   * @param compact
+   */
+  public void setCompact(boolean compact)
+  {
+    this.output = new XMLFileOutput(compact);
+  }
+
+  public ValidationReport getReport()
+  {
+    return report;
+  }
+
+  /**
+   * Set a report which records the result and duration of the validation.
+   *
+   * @param report The report or null.
+   */
+  public void setReport(ValidationReport report)
+  {
+    this.report = report;
+  }
+
+  public ErrorBudget getErrorBudget()
+  {
+    return errorBudget;
+  }
+
+  /**
+   * Set a budget for the number of reported errors.
+   *
+   * @param errorBudget The budget or null to report all errors.
+   */
+  public void setErrorBudget(ErrorBudget errorBudget)
+  {
+    this.errorBudget = errorBudget;
+  }
+
+  public ErrorReporter getErrorReporter()
+  {
+    return errorReporter;
+  }
+
+  /**
+   * Set a reporter which gets the errors of each header as soon as it was
+   * validated.
+   * 
+   * @param errorReporter The reporter or null to report the errors only with
+   * the {@link ValidationException}.
+   */
+  public void setErrorReporter(ErrorReporter errorReporter)
+  {
+    this.errorReporter = errorReporter;
+  }
+}
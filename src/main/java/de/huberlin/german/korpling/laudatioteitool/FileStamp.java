@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The size, modification time and SHA-1 hash of a file, taken before the file
+ * is validated or parsed. Afterwards {@link #isUnchanged(java.io.File) }
+ * tells if the content that was read is still the one the stamp describes,
+ * so a result is never recorded for a file that was changed meanwhile.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class FileStamp
+{
+
+  /**
+   * A file modified less than this before the stamp was taken could be
+   * changed again without a different modification time.
+   */
+  private static final long TIMESTAMP_RESOLUTION = 2000;
+
+  private final long size;
+  private final long modified;
+  private final byte[] contentHash;
+  private final long takenAt;
+
+  private FileStamp(long size, long modified, byte[] contentHash,
+    long takenAt)
+  {
+    this.size = size;
+    this.modified = modified;
+    this.contentHash = contentHash;
+    this.takenAt = takenAt;
+  }
+
+  /**
+   * Takes the stamp of a file, this reads the whole file.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static FileStamp of(File file) throws IOException
+  {
+    long takenAt = System.currentTimeMillis();
+    long modified = file.lastModified();
+    long size = file.length();
+    return new FileStamp(size, modified, hash(file), takenAt);
+  }
+
+  /**
+   * Checks if the file still has the content of the stamp. The file is only
+   * hashed again if it was modified shortly before the stamp was taken.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public boolean isUnchanged(File file) throws IOException
+  {
+    if (file.length() != size || file.lastModified() != modified)
+    {
+      return false;
+    }
+    if (modified + TIMESTAMP_RESOLUTION > takenAt)
+    {
+      // a change would not be visible in the modification time
+      return Arrays.equals(contentHash, hash(file));
+    }
+    return true;
+  }
+
+  public long getSize()
+  {
+    return size;
+  }
+
+  public long getModified()
+  {
+    return modified;
+  }
+
+  public byte[] getContentHash()
+  {
+    return contentHash;
+  }
+
+  public static byte[] hash(File file) throws IOException
+  {
+    return Files.hash(file, Hashing.sha1()).asBytes();
+  }
+}
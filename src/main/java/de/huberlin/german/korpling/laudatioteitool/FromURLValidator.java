@@ -4,11 +4,11 @@
  */
 package de.huberlin.german.korpling.laudatioteitool;
 
-import static de.huberlin.german.korpling.laudatioteitool.TEIValidator.compactSchemaFactory;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ResourceBundle;
-import javax.xml.validation.Validator;
+import javax.xml.validation.Schema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
@@ -24,25 +24,24 @@ public class FromURLValidator extends TEIValidator
   private static final ResourceBundle messages =
     ResourceBundle.getBundle("de/huberlin/german/korpling/laudatioteitool/Messages");
   
-  private Validator validator = null;
+  private Schema schema = null;
+  private final String url;
 
   public FromURLValidator(String url)
   {
+    this.url = url;
     try
     {
-      if(url.endsWith(".rng"))
-      {
-        this.validator = xmlSchemaFactory.newSchema(new URL(url)).newValidator();
-      }
-      else
-      {
-        this.validator = compactSchemaFactory.newSchema(new URL(url)).newValidator();
-      }
+      this.schema = SchemaCache.getInstance().getSchema(new URL(url));
     }
     catch (MalformedURLException ex)
     {
       log.error(messages.getString("MALFORMED URL"), url, ex.getMessage());
     }
+    catch (IOException ex)
+    {
+      log.error(messages.getString("SCHEME NOT READABLE"), url, ex.getMessage());
+    }
     catch (SAXException ex)
     {
       log.error(messages.getString("PARSING EXCEPTION"), ex.getMessage());
@@ -51,9 +50,15 @@ public class FromURLValidator extends TEIValidator
 
   
   @Override
-  public Validator getValidator()
+  public Schema getSchema()
+  {
+    return schema;
+  }
+
+  @Override
+  public String getSchemaLocation()
   {
-    return validator;
+    return url;
   }
   
 }
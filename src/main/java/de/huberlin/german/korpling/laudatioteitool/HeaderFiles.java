@@ -0,0 +1,377 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The header files of a directory like "DocumentHeader", which are read from
+ * the directory while they are iterated. Thus the processing of the first
+ * files can start before the whole directory was read and huge directories
+ * don't need to be held in memory.
+ *
+ * Without sorting the files are returned in the order of the file system.
+ * Sorted by name the directory has to be read completely first, but only
+ * chunks of a limited number of names are sorted in memory. If there are
+ * more files the sorted chunks are written to temporary files and merged
+ * while iterating.
+ *
+ * I/O errors while iterating are thrown as {@link DirectoryIteratorException}.
+ * The files can only be iterated once and must be closed afterwards.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class HeaderFiles implements Iterable<File>, Closeable
+{
+
+  private final static Logger log = LoggerFactory.getLogger(HeaderFiles.class);
+
+  /**
+   * Number of file names which are sorted in memory.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 100000;
+
+  private static final DirectoryStream.Filter<Path> HEADER_FILTER =
+    new DirectoryStream.Filter<Path>()
+  {
+    @Override
+    public boolean accept(Path entry) throws IOException
+    {
+      return CorpusFiles.isXMLFile(entry.getFileName().toString())
+        && Files.isRegularFile(entry);
+    }
+  };
+
+  private final File dir;
+  private Iterator<File> files;
+  private DirectoryStream<Path> stream;
+  private final List<Run> runs = new ArrayList<Run>();
+  private boolean iterated = false;
+
+  private HeaderFiles(File dir)
+  {
+    this.dir = dir;
+  }
+
+  /**
+   * Opens the header files of a directory.
+   *
+   * @param dir
+   * @param sorted If true the files are sorted by their name.
+   * @return
+   * @throws IOException
+   */
+  public static HeaderFiles open(File dir, boolean sorted) throws IOException
+  {
+    return open(dir, sorted, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Opens the header files of a directory.
+   *
+   * @param dir
+   * @param sorted If true the files are sorted by their name.
+   * @param chunkSize Maximal number of names which are sorted in memory.
+   * @return
+   * @throws IOException
+   */
+  public static HeaderFiles open(File dir, boolean sorted, int chunkSize)
+    throws IOException
+  {
+    Preconditions.checkArgument(chunkSize > 0);
+    HeaderFiles result = new HeaderFiles(dir);
+    result.stream = Files.newDirectoryStream(dir.toPath(), HEADER_FILTER);
+    if(!sorted)
+    {
+      result.files = Iterators.transform(result.stream.iterator(),
+        new Function<Path, File>()
+      {
+        @Override
+        public File apply(Path input)
+        {
+          return input.toFile();
+        }
+      });
+      return result;
+    }
+
+    try
+    {
+      result.sort(chunkSize);
+    }
+    catch(DirectoryIteratorException ex)
+    {
+      result.close();
+      throw ex.getCause();
+    }
+    catch(IOException ex)
+    {
+      result.close();
+      throw ex;
+    }
+    return result;
+  }
+
+  /**
+   * Wraps files which are already known, e.g. the files of a zip archive.
+   *
+   * @param files
+   * @return
+   */
+  public static HeaderFiles of(List<File> files)
+  {
+    HeaderFiles result = new HeaderFiles(null);
+    result.files = files.iterator();
+    return result;
+  }
+
+  /**
+   * External merge sort of the file names.
+   */
+  private void sort(int chunkSize) throws IOException
+  {
+    List<String> chunk = new ArrayList<String>();
+    try
+    {
+      for(Path p : stream)
+      {
+        chunk.add(p.getFileName().toString());
+        if(chunk.size() >= chunkSize)
+        {
+          runs.add(Run.write(chunk));
+          chunk.clear();
+        }
+      }
+    }
+    finally
+    {
+      stream.close();
+      stream = null;
+    }
+
+    Iterator<String> names;
+    if(runs.isEmpty())
+    {
+      // everything fits into memory
+      Collections.sort(chunk);
+      names = chunk.iterator();
+    }
+    else
+    {
+      if(!chunk.isEmpty())
+      {
+        runs.add(Run.write(chunk));
+      }
+      log.debug("merging {} sorted chunks of {}", runs.size(), dir);
+      names = new MergeIterator(runs);
+    }
+    files = Iterators.transform(names, new Function<String, File>()
+    {
+      @Override
+      public File apply(String name)
+      {
+        return new File(dir, name);
+      }
+    });
+  }
+
+  @Override
+  public Iterator<File> iterator()
+  {
+    Preconditions.checkState(!iterated,
+      "the header files can only be iterated once");
+    iterated = true;
+    return files;
+  }
+
+  /**
+   * Closes the directory and deletes the temporary files.
+   *
+   * @throws IOException
+   */
+  @Override
+  public void close() throws IOException
+  {
+    if(stream != null)
+    {
+      stream.close();
+      stream = null;
+    }
+    for(Run r : runs)
+    {
+      r.close();
+    }
+    runs.clear();
+  }
+
+  /**
+   * A sorted chunk of names in a temporary file.
+   */
+  private static class Run implements Comparable<Run>
+  {
+
+    private final File file;
+    private DataInputStream in;
+    private int remaining;
+    private String current;
+
+    private Run(File file, int count)
+    {
+      this.file = file;
+      this.remaining = count;
+    }
+
+    public static Run write(List<String> names) throws IOException
+    {
+      Collections.sort(names);
+      File file = File.createTempFile("teitool-names", ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file)));
+      try
+      {
+        for(String name : names)
+        {
+          out.writeUTF(name);
+        }
+      }
+      catch(IOException ex)
+      {
+        out.close();
+        file.delete();
+        throw ex;
+      }
+      out.close();
+      return new Run(file, names.size());
+    }
+
+    /**
+     * Reads the next name into {@link #current}.
+     *
+     * @return False if there are no more names.
+     */
+    public boolean advance() throws IOException
+    {
+      if(in == null)
+      {
+        in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file)));
+      }
+      if(remaining == 0)
+      {
+        current = null;
+        close();
+        return false;
+      }
+      current = in.readUTF();
+      remaining--;
+      return true;
+    }
+
+    public void close() throws IOException
+    {
+      if(in != null)
+      {
+        in.close();
+        in = null;
+      }
+      file.delete();
+    }
+
+    @Override
+    public int compareTo(Run other)
+    {
+      return current.compareTo(other.current);
+    }
+  }
+
+  /**
+   * Merges the sorted runs, only the current name of each run is in memory.
+   */
+  private static class MergeIterator implements Iterator<String>
+  {
+
+    private final PriorityQueue<Run> queue = new PriorityQueue<Run>();
+
+    public MergeIterator(List<Run> runs) throws IOException
+    {
+      for(Run r : runs)
+      {
+        if(r.advance())
+        {
+          queue.add(r);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      return !queue.isEmpty();
+    }
+
+    @Override
+    public String next()
+    {
+      Run r = queue.poll();
+      if(r == null)
+      {
+        throw new NoSuchElementException();
+      }
+      String name = r.current;
+      try
+      {
+        if(r.advance())
+        {
+          queue.add(r);
+        }
+      }
+      catch(IOException ex)
+      {
+        throw new DirectoryIteratorException(ex);
+      }
+      return name;
+    }
+
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
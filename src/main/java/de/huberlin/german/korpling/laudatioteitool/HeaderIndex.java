@@ -0,0 +1,516 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLStreamException;
+import org.jdom2.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps the headers of a merged corpus to their position in the file, so a
+ * single header can be read without parsing or splitting the whole corpus.
+ *
+ * The index is stored in a binary file next to the merged corpus. Each
+ * header can be found by the "xml:id" of its "fileDesc", its title, the
+ * "corresp" attribute of its title or the name {@link SplitTEI} would give
+ * its file. The index is built again if the size or content of the corpus
+ * changed, the SHA-1 hash of the corpus is only calculated again if the
+ * modification time differs from the recorded one.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class HeaderIndex
+{
+
+  private final static Logger log = LoggerFactory.getLogger(HeaderIndex.class);
+  private static final ResourceBundle messages =
+    ResourceBundle.getBundle("de/huberlin/german/korpling/laudatioteitool/Messages");
+
+  public static final String FILE_SUFFIX = ".teitool-index";
+
+  private static final int MAGIC = 0x54454948;
+  private static final int VERSION = 2;
+
+  /**
+   * Modification times closer than this to the time the index was written
+   * are not trusted, since the file could have been changed again within the
+   * resolution of the file system timestamps.
+   */
+  private static final long TIMESTAMP_RESOLUTION = 2000;
+
+  private final File corpusFile;
+  private final File indexFile;
+  private long size;
+  private long modified;
+  private byte[] contentHash;
+  private String charset;
+  private long writtenAt = 0;
+  private final List<Entry> entries = new ArrayList<Entry>();
+  private final Map<String, Entry> keys = new LinkedHashMap<String, Entry>();
+  private boolean rebuilt = false;
+
+  private HeaderIndex(File corpusFile)
+  {
+    this.corpusFile = corpusFile;
+    this.indexFile = new File(corpusFile.getPath() + FILE_SUFFIX);
+  }
+
+  /**
+   * Loads the index of a merged corpus. If there is none or if it is out of
+   * date it is built and saved.
+   *
+   * @param corpusFile An uncompressed merged corpus.
+   * @return
+   * @throws LaudatioException If the corpus does not exist, can not be
+   * indexed or if it is not well-formed.
+   * @throws IOException If the corpus could not be read.
+   */
+  public static HeaderIndex open(File corpusFile) throws LaudatioException,
+    IOException
+  {
+    if(!corpusFile.isFile())
+    {
+      throw new LaudatioException(messages.getString(
+        "INPUT FILE DOES NOT EXIST"));
+    }
+    if(CorpusFiles.isGzip(corpusFile))
+    {
+      throw new LaudatioException(String.format(messages.getString(
+        "COULD NOT INDEX"), corpusFile.getPath()));
+    }
+    HeaderIndex index = new HeaderIndex(corpusFile);
+    if(index.indexFile.isFile())
+    {
+      try
+      {
+        index.read();
+        if(index.isCurrent())
+        {
+          return index;
+        }
+      }
+      catch(IOException ex)
+      {
+        log.warn("Ignoring unreadable header index {}: {}",
+          index.indexFile.getPath(), ex.getMessage());
+      }
+      catch(RuntimeException ex)
+      {
+        // e.g. an invalid array size or index in a damaged file
+        log.warn("Ignoring damaged header index {}: {}",
+          index.indexFile.getPath(), ex.toString());
+      }
+    }
+
+    index.build();
+    try
+    {
+      index.save();
+    }
+    catch(IOException ex)
+    {
+      // e.g. a read-only directory, the index can be used anyway
+      log.warn("Could not save header index {}: {}",
+        index.indexFile.getPath(), ex.getMessage());
+    }
+    return index;
+  }
+
+  /**
+   * Checks if the loaded index still describes the corpus file. If only the
+   * modification time changed, it is updated in the index file.
+   */
+  private boolean isCurrent() throws IOException
+  {
+    long currentModified = corpusFile.lastModified();
+    if(size != corpusFile.length())
+    {
+      return false;
+    }
+    if(modified == currentModified
+      && modified + TIMESTAMP_RESOLUTION < writtenAt)
+    {
+      return true;
+    }
+    // the file was touched, but the content might still be the same
+    if(Arrays.equals(contentHash, hash(corpusFile)))
+    {
+      modified = currentModified;
+      try
+      {
+        save();
+      }
+      catch(IOException ex)
+      {
+        log.warn("Could not save header index {}: {}",
+          indexFile.getPath(), ex.getMessage());
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private void build() throws LaudatioException, IOException
+  {
+    long start = System.nanoTime();
+    entries.clear();
+    keys.clear();
+    rebuilt = true;
+
+    // get the timestamp before reading so a concurrent change is not missed
+    modified = corpusFile.lastModified();
+    size = corpusFile.length();
+    contentHash = hash(corpusFile);
+
+    RandomAccessFile file = new RandomAccessFile(corpusFile, "r");
+    try
+    {
+      RawHeaderScanner scanner = new RawHeaderScanner(file.getChannel());
+      if(scanner.getCharset() == null)
+      {
+        throw new LaudatioException(String.format(messages.getString(
+          "COULD NOT INDEX"), corpusFile.getPath()));
+      }
+      charset = scanner.getCharset().name();
+
+      Multiset<String> preparationNames = HashMultiset.create();
+      boolean corpusHeaderFound = false;
+      long line = 1;
+      long column = 1;
+      long lineCountedTo = 0;
+      RawHeaderScanner.Header header;
+      while((header = scanner.next()) != null)
+      {
+        String type;
+        if(header.getDepth() == 1 && !corpusHeaderFound)
+        {
+          corpusHeaderFound = true;
+          type = "corpus";
+        }
+        else if(header.getDepth() == 2)
+        {
+          type = "document";
+        }
+        else if(header.getDepth() == 3)
+        {
+          type = "preparation";
+        }
+        else
+        {
+          continue;
+        }
+
+        long lines = scanner.countLines(lineCountedTo, header.getStart());
+        long columns = scanner.countColumns(lineCountedTo, header.getStart());
+        line += lines;
+        column = lines > 0 ? columns + 1 : column + columns;
+        lineCountedTo = header.getStart();
+        Entry entry = new Entry(type, header.getStart(), header.getEnd(),
+          line, column, header.getInheritedNamespaces());
+        entries.add(entry);
+
+        RawHeaderScanner.Names names = header.readNames();
+        addKey(names.getId(), entry);
+        if(names.getTitle() != null)
+        {
+          addKey(Text.normalizeString(names.getTitle()), entry);
+        }
+        String corresp = names.getCorresp();
+        if(corresp != null)
+        {
+          addKey(corresp, entry);
+          if("preparation".equals(type))
+          {
+            // the file name of the split header
+            preparationNames.add(corresp);
+            int count = preparationNames.count(corresp);
+            addKey(count > 1 ? corresp + "_" + count : corresp, entry);
+          }
+        }
+      }
+    }
+    catch(XMLStreamException ex)
+    {
+      throw new LaudatioException(ex.getLocalizedMessage());
+    }
+    finally
+    {
+      file.close();
+    }
+    log.info(messages.getString("BUILT HEADER INDEX"), corpusFile.getPath(),
+      entries.size(),
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  /**
+   * Adds a key for an entry, the first header with a key wins.
+   */
+  private void addKey(String key, Entry entry)
+  {
+    if(key != null && !key.isEmpty() && !keys.containsKey(key))
+    {
+      keys.put(key, entry);
+    }
+  }
+
+  /**
+   * Writes the index file.
+   *
+   * @throws IOException
+   */
+  public void save() throws IOException
+  {
+    File tmpFile = new File(indexFile.getPath() + ".part");
+    long now = System.currentTimeMillis();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(tmpFile)));
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(now);
+      out.writeLong(size);
+      out.writeLong(modified);
+      out.writeByte(contentHash.length);
+      out.write(contentHash);
+      out.writeUTF(charset);
+
+      out.writeInt(entries.size());
+      for(Entry e : entries)
+      {
+        out.writeUTF(e.type);
+        out.writeLong(e.start);
+        out.writeLong(e.end);
+        out.writeLong(e.line);
+        out.writeLong(e.column);
+        out.writeUTF(e.inheritedNamespaces);
+      }
+
+      out.writeInt(keys.size());
+      for(Map.Entry<String, Entry> k : keys.entrySet())
+      {
+        out.writeUTF(k.getKey());
+        out.writeInt(entries.indexOf(k.getValue()));
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+    Files.move(tmpFile, indexFile);
+    writtenAt = now;
+  }
+
+  private void read() throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+      new FileInputStream(indexFile)));
+    try
+    {
+      if(in.readInt() != MAGIC || in.readInt() != VERSION)
+      {
+        throw new IOException("unknown format");
+      }
+      writtenAt = in.readLong();
+      size = in.readLong();
+      modified = in.readLong();
+      contentHash = new byte[in.readUnsignedByte()];
+      in.readFully(contentHash);
+      charset = in.readUTF();
+
+      int count = in.readInt();
+      for(int i = 0; i < count; i++)
+      {
+        entries.add(new Entry(in.readUTF(), in.readLong(), in.readLong(),
+          in.readLong(), in.readLong(), in.readUTF()));
+      }
+
+      count = in.readInt();
+      for(int i = 0; i < count; i++)
+      {
+        keys.put(in.readUTF(), entries.get(in.readInt()));
+      }
+    }
+    catch(EOFException ex)
+    {
+      throw new IOException("truncated file", ex);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private static byte[] hash(File file) throws IOException
+  {
+    return Files.hash(file, Hashing.sha1()).asBytes();
+  }
+
+  /**
+   * Get the header for a key.
+   *
+   * @param key An "xml:id", title, "corresp" attribute or file name.
+   * @return The header or null if there is none with this key.
+   */
+  public Entry get(String key)
+  {
+    return keys.get(key);
+  }
+
+  /**
+   * @return All keys in the order of the headers in the corpus.
+   */
+  public Set<String> getKeys()
+  {
+    return Collections.unmodifiableSet(keys.keySet());
+  }
+
+  public List<Entry> getEntries()
+  {
+    return Collections.unmodifiableList(entries);
+  }
+
+  public File getCorpusFile()
+  {
+    return corpusFile;
+  }
+
+  public File getIndexFile()
+  {
+    return indexFile;
+  }
+
+  /**
+   * @return The name of the encoding of the corpus.
+   */
+  public String getCharset()
+  {
+    return charset;
+  }
+
+  /**
+   * @return True if the index was built when opening it, false if it was
+   * loaded from the index file.
+   */
+  public boolean isRebuilt()
+  {
+    return rebuilt;
+  }
+
+  /**
+   * The position of a header in the merged corpus.
+   */
+  public static class Entry
+  {
+
+    private final String type;
+    private final long start;
+    private final long end;
+    private final long line;
+    private final long column;
+    private final String inheritedNamespaces;
+
+    private Entry(String type, long start, long end, long line, long column,
+      String inheritedNamespaces)
+    {
+      this.type = type;
+      this.start = start;
+      this.end = end;
+      this.line = line;
+      this.column = column;
+      this.inheritedNamespaces = inheritedNamespaces;
+    }
+
+    /**
+     * @return "corpus", "document" or "preparation"
+     */
+    public String getType()
+    {
+      return type;
+    }
+
+    /**
+     * @return The byte offset of the header.
+     */
+    public long getStart()
+    {
+      return start;
+    }
+
+    /**
+     * @return The byte offset after the header.
+     */
+    public long getEnd()
+    {
+      return end;
+    }
+
+    public long getLength()
+    {
+      return end - start;
+    }
+
+    /**
+     * @return The line the header starts at, beginning with 1.
+     */
+    public long getLine()
+    {
+      return line;
+    }
+
+    /**
+     * @return The column the header starts at in its first line, beginning
+     * with 1.
+     */
+    public long getColumn()
+    {
+      return column;
+    }
+
+    /**
+     * @return The prefixed namespace declarations of the enclosing
+     * "teiCorpus" elements.
+     */
+    public String getInheritedNamespaces()
+    {
+      return inheritedNamespaces;
+    }
+  }
+}
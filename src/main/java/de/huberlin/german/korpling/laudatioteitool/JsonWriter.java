@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedList;
+
+/**
+ * Minimal streaming JSON writer for the structured results of the tool.
+ * 
+ * <pre>
+ * json.beginObject().name("valid").value(true).endObject();
+ * </pre>
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class JsonWriter
+{
+
+  private final Writer out;
+  /**
+   * For each open object or array: true if no value was written yet.
+   */
+  private final LinkedList<Boolean> first = new LinkedList<Boolean>();
+  private boolean afterName = false;
+
+  public JsonWriter(Writer out)
+  {
+    this.out = out;
+  }
+
+  public JsonWriter beginObject() throws IOException
+  {
+    beforeValue();
+    out.write('{');
+    first.push(Boolean.TRUE);
+    return this;
+  }
+
+  public JsonWriter endObject() throws IOException
+  {
+    first.pop();
+    out.write('}');
+    return this;
+  }
+
+  public JsonWriter beginArray() throws IOException
+  {
+    beforeValue();
+    out.write('[');
+    first.push(Boolean.TRUE);
+    return this;
+  }
+
+  public JsonWriter endArray() throws IOException
+  {
+    first.pop();
+    out.write(']');
+    return this;
+  }
+
+  public JsonWriter name(String name) throws IOException
+  {
+    beforeValue();
+    writeString(name);
+    out.write(':');
+    afterName = true;
+    return this;
+  }
+
+  public JsonWriter value(String value) throws IOException
+  {
+    beforeValue();
+    if (value == null)
+    {
+      out.write("null");
+    }
+    else
+    {
+      writeString(value);
+    }
+    return this;
+  }
+
+  public JsonWriter value(long value) throws IOException
+  {
+    beforeValue();
+    out.write(Long.toString(value));
+    return this;
+  }
+
+  public JsonWriter value(boolean value) throws IOException
+  {
+    beforeValue();
+    out.write(value ? "true" : "false");
+    return this;
+  }
+
+  public void flush() throws IOException
+  {
+    out.flush();
+  }
+
+  private void beforeValue() throws IOException
+  {
+    if (afterName)
+    {
+      afterName = false;
+    }
+    else if (!first.isEmpty())
+    {
+      if (first.peek())
+      {
+        first.set(0, Boolean.FALSE);
+      }
+      else
+      {
+        out.write(',');
+      }
+    }
+  }
+
+  private void writeString(String s) throws IOException
+  {
+    out.write('"');
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      switch (c)
+      {
+        case '"':
+          out.write("\\\"");
+          break;
+        case '\\':
+          out.write("\\\\");
+          break;
+        case '\n':
+          out.write("\\n");
+          break;
+        case '\r':
+          out.write("\\r");
+          break;
+        case '\t':
+          out.write("\\t");
+          break;
+        default:
+          if (c < 0x20)
+          {
+            out.write(String.format("\\u%04x", (int) c));
+          }
+          else
+          {
+            out.write(c);
+          }
+      }
+    }
+    out.write('"');
+  }
+}
@@ -21,6 +21,9 @@ package de.huberlin.german.korpling.laudatioteitool;
  */
 public class LaudatioException extends Exception
 {
+
+  private static final long serialVersionUID = 1L;
+
   public LaudatioException(String message)
   {
     super(message);
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which header file was written to which byte range of a merged
+ * file, so an incremental merge can copy the unchanged headers from the
+ * previous merged file instead of validating, parsing and formatting them
+ * again.
+ *
+ * The state is stored in a binary file next to the merged file. Like in the
+ * {@link ValidationCache} a header file is identified by the SHA-1 hash of
+ * its content, which is only calculated again if the size or modification
+ * time changed. The state is only used if the merged file itself was not
+ * changed since and the same input directory and output format are used.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class MergeState
+{
+
+  private final static Logger log = LoggerFactory.getLogger(MergeState.class);
+
+  public static final String FILE_SUFFIX = ".teitool-merge";
+
+  private static final int MAGIC = 0x5445494D;
+  private static final int VERSION = 1;
+
+  /**
+   * Modification times closer than this to the time the state was written
+   * are not trusted, since the file could have been changed again within the
+   * resolution of the file system timestamps.
+   */
+  private static final long TIMESTAMP_RESOLUTION = 2000;
+
+  private final File outputFile;
+  private final File stateFile;
+
+  private String inputDir;
+  private boolean compact;
+  private long writtenAt = 0;
+  private long outputSize = -1;
+  private long outputModified = -1;
+
+  /**
+   * The headers of the previous merged file.
+   */
+  private final Map<String, Entry> previous = new HashMap<String, Entry>();
+
+  /**
+   * The headers of the merged file that is written now, in the order of the
+   * file.
+   */
+  private final List<Entry> current = new ArrayList<Entry>();
+
+  private RandomAccessFile previousOutput;
+  private int reusedCount = 0;
+
+  private MergeState(File outputFile)
+  {
+    this.outputFile = outputFile;
+    this.stateFile = new File(outputFile.getPath() + FILE_SUFFIX);
+  }
+
+  /**
+   * Loads the state of the previous merge into a file. The state is empty if
+   * it is missing, unreadable or does not match the merged file, the input
+   * directory or the output format.
+   *
+   * @param outputFile The merged file.
+   * @param inputDir The corpus directory which is merged now.
+   * @param compact The output format of the merge now.
+   * @return
+   */
+  public static MergeState load(File outputFile, File inputDir,
+    boolean compact)
+  {
+    MergeState state = new MergeState(outputFile);
+    if(state.stateFile.isFile() && outputFile.isFile())
+    {
+      try
+      {
+        state.read();
+        if(!inputDir.getAbsolutePath().equals(state.inputDir)
+          || compact != state.compact
+          || outputFile.length() != state.outputSize
+          || outputFile.lastModified() != state.outputModified)
+        {
+          log.info("Merged file {} or its input changed, merging all headers",
+            outputFile.getPath());
+          state.previous.clear();
+        }
+      }
+      catch(IOException ex)
+      {
+        log.warn("Ignoring unreadable merge state {}: {}",
+          state.stateFile.getPath(), ex.getMessage());
+        state.previous.clear();
+      }
+      catch(RuntimeException ex)
+      {
+        // e.g. an invalid array size in a damaged file
+        log.warn("Ignoring damaged merge state {}: {}",
+          state.stateFile.getPath(), ex.toString());
+        state.previous.clear();
+      }
+    }
+    state.inputDir = inputDir.getAbsolutePath();
+    state.compact = compact;
+    return state;
+  }
+
+  /**
+   * Checks if a header file is unchanged since the previous merge.
+   *
+   * @param file
+   * @param validator The validator for the file, the header is only reused
+   * if the schema did not change either.
+   * @return The entry of the header in the previous merged file or null if
+   * the header needs to be merged again.
+   * @throws IOException
+   */
+  public Entry getUnchanged(File file, TEIValidator validator)
+    throws IOException
+  {
+    String schemaHash = validator.getSchemaHash();
+    Entry entry;
+    synchronized(this)
+    {
+      entry = previous.get(getKey(file));
+    }
+    if(entry == null || schemaHash == null
+      || !schemaHash.equals(entry.schemaHash))
+    {
+      return null;
+    }
+
+    long size = file.length();
+    long modified = file.lastModified();
+    if(entry.size == size && entry.modified == modified
+      && modified + TIMESTAMP_RESOLUTION < writtenAt)
+    {
+      return entry;
+    }
+    // the file was touched, but the content might still be the same
+    if(entry.size == size
+      && Arrays.equals(entry.contentHash, FileStamp.hash(file)))
+    {
+      return new Entry(entry.key, size, modified, entry.contentHash,
+        schemaHash, entry.start, entry.end);
+    }
+    return null;
+  }
+
+  /**
+   * Reads a header from the previous merged file.
+   *
+   * @param entry
+   * @return The header exactly as it was written before.
+   * @throws IOException
+   */
+  public synchronized String readPrevious(Entry entry) throws IOException
+  {
+    if(previousOutput == null)
+    {
+      previousOutput = new RandomAccessFile(outputFile, "r");
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) (entry.end - entry.start));
+    long position = entry.start;
+    while(buffer.hasRemaining())
+    {
+      int read = previousOutput.getChannel().read(buffer, position);
+      if(read < 0)
+      {
+        throw new EOFException(outputFile.getPath());
+      }
+      position += read;
+    }
+    // merged files are always written as UTF-8
+    return new String(buffer.array(), Charsets.UTF_8);
+  }
+
+  /**
+   * Records the next header that was written to the new merged file.
+   *
+   * @param file
+   * @param validator
+   * @param reused The entry of the header if it was copied from the previous
+   * merged file.
+   * @param stamp The stamp of the file taken before it was parsed, if it was
+   * merged again.
+   * @throws IOException
+   */
+  public synchronized void add(File file, TEIValidator validator,
+    Entry reused, FileStamp stamp) throws IOException
+  {
+    if(reused != null)
+    {
+      current.add(reused);
+      reusedCount++;
+    }
+    else if(stamp != null && stamp.isUnchanged(file))
+    {
+      current.add(new Entry(getKey(file), stamp.getSize(),
+        stamp.getModified(), stamp.getContentHash(),
+        Strings.nullToEmpty(validator.getSchemaHash()), -1, -1));
+    }
+    else
+    {
+      // the merged content is unknown, the header is never reused
+      log.debug("{} changed while it was merged", file.getPath());
+      current.add(new Entry(getKey(file), -1, -1, new byte[0], "", -1, -1));
+    }
+  }
+
+  /**
+   * Closes the previous merged file, it is not needed any longer.
+   *
+   * @throws IOException
+   */
+  public synchronized void close() throws IOException
+  {
+    if(previousOutput != null)
+    {
+      previousOutput.close();
+      previousOutput = null;
+    }
+  }
+
+  /**
+   * Finds the positions of the written headers in the new merged file and
+   * writes the state file.
+   *
+   * @throws IOException
+   */
+  public synchronized void save() throws IOException
+  {
+    close();
+    List<Entry> entries = locate();
+
+    File tmpFile = new File(stateFile.getPath() + ".part");
+    long now = System.currentTimeMillis();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(tmpFile)));
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(now);
+      out.writeUTF(inputDir);
+      out.writeBoolean(compact);
+      out.writeLong(outputFile.length());
+      out.writeLong(outputFile.lastModified());
+
+      // there are only a few different schemes, store them once
+      List<String> schemaHashes = new ArrayList<String>();
+      for(Entry e : entries)
+      {
+        if(!schemaHashes.contains(e.schemaHash))
+        {
+          schemaHashes.add(e.schemaHash);
+        }
+      }
+      out.writeInt(schemaHashes.size());
+      for(String schemaHash : schemaHashes)
+      {
+        out.writeUTF(schemaHash);
+      }
+
+      out.writeInt(entries.size());
+      for(Entry e : entries)
+      {
+        out.writeUTF(e.key);
+        out.writeLong(e.size);
+        out.writeLong(e.modified);
+        out.writeByte(e.contentHash.length);
+        out.write(e.contentHash);
+        out.writeInt(schemaHashes.indexOf(e.schemaHash));
+        out.writeLong(e.start);
+        out.writeLong(e.end);
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+    Files.move(tmpFile, stateFile);
+  }
+
+  /**
+   * The headers are found in the same order as they were added.
+   */
+  private List<Entry> locate() throws IOException
+  {
+    List<Entry> result = new ArrayList<Entry>(current.size());
+    RandomAccessFile file = new RandomAccessFile(outputFile, "r");
+    try
+    {
+      RawHeaderScanner scanner = new RawHeaderScanner(file.getChannel());
+      RawHeaderScanner.Header header;
+      while((header = scanner.next()) != null)
+      {
+        if(result.size() == current.size())
+        {
+          throw new IOException("more headers than merged in "
+            + outputFile.getPath());
+        }
+        Entry e = current.get(result.size());
+        result.add(new Entry(e.key, e.size, e.modified, e.contentHash,
+          e.schemaHash, header.getStart(), header.getEnd()));
+      }
+    }
+    finally
+    {
+      file.close();
+    }
+    if(result.size() != current.size())
+    {
+      throw new IOException("less headers than merged in "
+        + outputFile.getPath());
+    }
+    return result;
+  }
+
+  /**
+   * @return The number of headers which were copied from the previous merged
+   * file.
+   */
+  public synchronized int getReusedCount()
+  {
+    return reusedCount;
+  }
+
+  /**
+   * @return The number of headers in the new merged file.
+   */
+  public synchronized int getCount()
+  {
+    return current.size();
+  }
+
+  public File getStateFile()
+  {
+    return stateFile;
+  }
+
+  private void read() throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+      new FileInputStream(stateFile)));
+    try
+    {
+      if(in.readInt() != MAGIC || in.readInt() != VERSION)
+      {
+        throw new IOException("unknown format");
+      }
+      writtenAt = in.readLong();
+      inputDir = in.readUTF();
+      compact = in.readBoolean();
+      outputSize = in.readLong();
+      outputModified = in.readLong();
+
+      String[] schemaHashes = new String[in.readInt()];
+      for(int i = 0; i < schemaHashes.length; i++)
+      {
+        schemaHashes[i] = in.readUTF();
+      }
+
+      int count = in.readInt();
+      for(int i = 0; i < count; i++)
+      {
+        String key = in.readUTF();
+        long size = in.readLong();
+        long modified = in.readLong();
+        byte[] contentHash = new byte[in.readUnsignedByte()];
+        in.readFully(contentHash);
+        String schemaHash = schemaHashes[in.readInt()];
+        long start = in.readLong();
+        long end = in.readLong();
+        previous.put(key, new Entry(key, size, modified, contentHash,
+          schemaHash, start, end));
+      }
+    }
+    catch(EOFException ex)
+    {
+      throw new IOException("truncated file", ex);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private String getKey(File file)
+  {
+    String path = file.getAbsolutePath();
+    String base = inputDir + File.separator;
+    return path.startsWith(base) ? path.substring(base.length()) : path;
+  }
+
+  /**
+   * A header file and its position in a merged file.
+   */
+  public static class Entry
+  {
+
+    private final String key;
+    private final long size;
+    private final long modified;
+    private final byte[] contentHash;
+    private final String schemaHash;
+    private final long start;
+    private final long end;
+
+    private Entry(String key, long size, long modified, byte[] contentHash,
+      String schemaHash, long start, long end)
+    {
+      this.key = key;
+      this.size = size;
+      this.modified = modified;
+      this.contentHash = contentHash;
+      this.schemaHash = schemaHash;
+      this.start = start;
+      this.end = end;
+    }
+
+    public long getStart()
+    {
+      return start;
+    }
+
+    public long getEnd()
+    {
+      return end;
+    }
+  }
+}
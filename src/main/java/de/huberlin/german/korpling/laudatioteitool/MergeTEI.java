@@ -16,19 +16,26 @@
 package de.huberlin.german.korpling.laudatioteitool;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.io.Files;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.DirectoryIteratorException;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
-import org.jdom2.Namespace;
 import org.jdom2.input.SAXBuilder;
-import org.jdom2.output.Format;
-import org.jdom2.output.XMLOutputter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
@@ -48,6 +55,24 @@ public class MergeTEI
   private File outputFile;
   
   private String corpusSchemeURL, documentSchemeURL, preparationSchemeURL;
+  
+  private int threads = 1;
+  
+  private ValidationCache validationCache;
+  private ValidationReport report;
+  private ErrorBudget errorBudget;
+  private ErrorReporter errorReporter;
+  private boolean incremental = false;
+  private boolean sorted = false;
+  private MergeState mergeState;
+  
+  private XMLFileOutput output = new XMLFileOutput(false);
+  
+  /**
+   * Returned by {@link #loadHeader(java.io.File, de.huberlin.german.korpling.laudatioteitool.TEIValidator, boolean, de.huberlin.german.korpling.laudatioteitool.FileStamp) }
+   * for valid headers which were not built.
+   */
+  private static final Element VALID = new Element("teiHeader");
 
   public MergeTEI(File inputDir, File outputFile, 
     String corpusSchemeURL, String documentSchemeURL, String preparationSchemeURL)
@@ -71,164 +96,680 @@ public class MergeTEI
           "COULD NOT CREATE MERGED OUTPUTFILE: I CAN'T CREATE THE DIRECTORIES"));
       }
 
-      Namespace teiNS = Namespace.getNamespace("http://www.tei-c.org/ns/1.0");
-      Element root = new Element("teiCorpus", teiNS);
-      Element documentRoot = new Element("teiCorpus", teiNS);
-      Element preparationRoot = new Element("teiCorpus", teiNS);
-
-      mergeMainCorpusHeader(root);
-      mergeDocumentHeader(documentRoot);
-      mergePreparationHeader(preparationRoot);
-
-      root.addContent(documentRoot);
-      documentRoot.
-        addContent(documentRoot.getChildren().size(), preparationRoot);
-
-
-      Document mergedDoc = new Document(root);
-
-      // output the new XML
-      XMLOutputter xmlOut = new XMLOutputter(Format.getPrettyFormat());
-      xmlOut.output(mergedDoc, new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));
+      // write into a temporary file first, so an existing output is not 
+      // destroyed if one of the headers is invalid
+      File partFile = new File(outputFile.getPath() + ".part");
+      boolean gzip = CorpusFiles.isGzip(outputFile);
+      // the unchanged headers are copied from the previous merged file
+      mergeState = incremental && !gzip && inputDir.isDirectory() 
+        ? MergeState.load(outputFile, inputDir, output.isCompact()) : null;
+      Writer out = output.open(partFile, gzip);
+      boolean written = false;
+      try
+      {
+        mergeHeaders(output.createCorpusWriter(out));
+        written = true;
+      }
+      finally
+      {
+        out.close();
+        if(mergeState != null)
+        {
+          mergeState.close();
+        }
+        if(!written)
+        {
+          partFile.delete();
+          mergeState = null;
+        }
+      }
+      Files.move(partFile, outputFile);
       log.info(messages.getString("WRITTEN MERGED TEI"), outputFile.getPath());
+      if(mergeState != null)
+      {
+        log.info(messages.getString("REUSED HEADERS"), 
+          mergeState.getReusedCount(), mergeState.getCount());
+        saveMergeState();
+      }
     }
     catch (SAXException ex)
     {
       throw new LaudatioException(ex.getLocalizedMessage());
     }
-    catch (JDOMException ex)
+    catch (IOException ex)
     {
       throw new LaudatioException(ex.getLocalizedMessage());
     }
+    catch (DirectoryIteratorException ex)
+    {
+      throw new LaudatioException(ex.getCause().getLocalizedMessage());
+    }
+  }
+
+  /**
+   * Validates all headers of the input directory without writing a merged
+   * file.
+   * 
+   * @throws LaudatioException 
+   */
+  public void validate() throws LaudatioException
+  {
+    try
+    {
+      mergeHeaders(null);
+    }
+    catch (ValidationException ex)
+    {
+      // the invalid headers are already in the report
+      throw ex;
+    }
+    catch (LaudatioException ex)
+    {
+      aborted(ex.getLocalizedMessage());
+      throw ex;
+    }
+    catch (SAXException ex)
+    {
+      throw aborted(ex.getLocalizedMessage());
+    }
     catch (IOException ex)
     {
-      throw new LaudatioException(ex.getLocalizedMessage());
+      throw aborted(ex.getLocalizedMessage());
+    }
+    catch (DirectoryIteratorException ex)
+    {
+      throw aborted(ex.getCause().getLocalizedMessage());
     }
   }
 
-  private void mergeMainCorpusHeader(Element root) throws SAXException,
-    IOException, LaudatioException, JDOMException
+  /**
+   * Records the abort of the validation in the report.
+   */
+  private LaudatioException aborted(String message)
+  {
+    if(report != null)
+    {
+      report.addAborted(inputDir, message);
+    }
+    return new LaudatioException(message);
+  }
+  
+  /**
+   * Validates the headers and outputs the merged XML while reading them.
+   * 
+   * @param writer The writer or null if the headers should only be validated.
+   */
+  private void mergeHeaders(TEICorpusWriter writer) throws SAXException, 
+    IOException, LaudatioException
+  {
+    startCorpus(writer);
+    mergeMainCorpusHeader(writer);
+
+    startCorpus(writer);
+    mergeDocumentHeader(writer);
+
+    startCorpus(writer);
+    mergePreparationHeader(writer);
+
+    if(writer != null)
+    {
+      writer.endCorpus();
+      writer.endCorpus();
+      writer.endCorpus();
+    }
+  }
+  
+  private static void startCorpus(TEICorpusWriter writer) throws IOException
+  {
+    if(writer != null)
+    {
+      writer.startCorpus();
+    }
+  }
+
+  private void mergeMainCorpusHeader(TEICorpusWriter writer) throws SAXException,
+    IOException, LaudatioException
   {
     // append global header
 
-    File corpusHeaderDir = new File(inputDir, "CorpusHeader");
-    Preconditions.checkArgument(corpusHeaderDir.isDirectory());
-    File[] corpusHeaderFiles = corpusHeaderDir.listFiles(new FilenameFilter()
+    HeaderFiles corpusHeaderFiles = CorpusFiles.openHeaders(inputDir, 
+      "CorpusHeader", sorted);
+    Preconditions.checkArgument(corpusHeaderFiles != null);
+    File headerFile;
+    try
     {
-      @Override
-      public boolean accept(File dir, String name)
-      {
-        return name.endsWith(".xml");
-      }
-    });
-    Preconditions.checkArgument(corpusHeaderFiles.length > 0);
+      Iterator<File> files = corpusHeaderFiles.iterator();
+      Preconditions.checkArgument(files.hasNext());
+      headerFile = files.next();
+    }
+    finally
+    {
+      corpusHeaderFiles.close();
+    }
 
-    File headerFile = corpusHeaderFiles[0];
     TEIValidator validator = 
       corpusSchemeURL == null ? new TEICorpusValidator() : new FromURLValidator(corpusSchemeURL);
-    if (validator.validate(headerFile))
+    validator.setHeaderType("corpus");
+    validator.setErrorBudget(errorBudget);
+    validator.setErrorReporter(errorReporter);
+    Object corpusHeader = loadOrReuse(headerFile, validator, writer != null);
+    if (corpusHeader == null)
     {
-      SAXBuilder sax = new SAXBuilder();
-      Document corpusDoc = sax.build(headerFile);
-      // remove the pending text element
-      corpusDoc.getRootElement().removeChild("text", null);
-
-      // append to our new root
-      root.addContent(corpusDoc.getRootElement().getChild("teiHeader", null).
-        clone());
+      throw new ValidationException("Corpus header is not valid", 
+        validator.getErrors());
     }
-    else
+    else if(writer != null)
     {
-      System.err.println(validator.toString());
-      throw new LaudatioException("Corpus header is not valid");
+      // append to our new root
+      writeHeader(writer, headerFile, validator, corpusHeader);
     }
 
   }
 
-  private void mergeDocumentHeader(Element root) throws SAXException,
-    JDOMException, IOException, LaudatioException
+  private void mergeDocumentHeader(TEICorpusWriter writer) throws SAXException,
+    IOException, LaudatioException
   {
     // append document headers
 
-    File documentHeaderDir = new File(inputDir, "DocumentHeader");
-    Preconditions.checkArgument(documentHeaderDir.isDirectory());
-    File[] documentHeaderFiles = documentHeaderDir.listFiles(
-      new FilenameFilter()
-    {
-      @Override
-      public boolean accept(File dir, String name)
-      {
-        return name.endsWith(".xml");
-      }
-    });
-    Preconditions.checkArgument(documentHeaderFiles.length > 0);
-    SAXBuilder sax = new SAXBuilder();
+    HeaderFiles documentHeaderFiles = CorpusFiles.openHeaders(inputDir, 
+      "DocumentHeader", sorted);
+    Preconditions.checkArgument(documentHeaderFiles != null);
     TEIValidator validator =
       documentSchemeURL == null ? new TEIDocumentValidator(): new FromURLValidator(documentSchemeURL);
+    validator.setHeaderType("document");
+    validator.setErrorBudget(errorBudget);
+    validator.setErrorReporter(errorReporter);
     
-    for (File f : documentHeaderFiles)
+    try
     {
-      
-      if (validator.validate(f))
+      Iterator<File> files = documentHeaderFiles.iterator();
+      Preconditions.checkArgument(files.hasNext());
+      if(!loadHeaders(files, validator, writer))
       {
-        Document documentDoc = sax.build(f);
-
-        // remove the pending text element
-        documentDoc.getRootElement().removeChild("text", null);
-
-        // append to our new root
-        root.addContent(
-          documentDoc.getRootElement().getChild("teiHeader", null).
-          clone());
-      }
-      else
-      {
-        System.err.println(validator.toString());
-        throw new LaudatioException("A document header is not valid");
+        throw new ValidationException("A document header is not valid", 
+          validator.getErrors());
       }
     }
+    finally
+    {
+      documentHeaderFiles.close();
+    }
   }
 
-  private void mergePreparationHeader(Element root) throws SAXException,
-    JDOMException, IOException, LaudatioException
+  private void mergePreparationHeader(TEICorpusWriter writer) throws SAXException,
+    IOException, LaudatioException
   {
     // append preparation headers
 
-    File preparationHeaderDir = new File(inputDir, "PreparationHeader");
-    Preconditions.checkState(preparationHeaderDir.isDirectory());
-    File[] preparationHeaderFiles = preparationHeaderDir.listFiles(
-      new FilenameFilter()
+    HeaderFiles preparationHeaderFiles = CorpusFiles.openHeaders(inputDir, 
+      "PreparationHeader", sorted);
+    Preconditions.checkState(preparationHeaderFiles != null);
+    TEIValidator validator = 
+      preparationSchemeURL == null ? new TEIPreparationValidator(): new FromURLValidator(preparationSchemeURL);
+    validator.setHeaderType("preparation");
+    validator.setErrorBudget(errorBudget);
+    validator.setErrorReporter(errorReporter);
+    
+    try
     {
-      @Override
-      public boolean accept(File dir, String name)
+      Iterator<File> files = preparationHeaderFiles.iterator();
+      Preconditions.checkState(files.hasNext());
+      if(!loadHeaders(files, validator, writer))
       {
-        return name.endsWith(".xml");
+        throw new ValidationException("A preparation header ist not valid.", 
+          validator.getErrors());
       }
-    });
-    Preconditions.checkState(preparationHeaderFiles.length > 0);
-    SAXBuilder sax = new SAXBuilder();
-    TEIValidator validator = 
-      preparationSchemeURL == null ? new TEIPreparationValidator(): new FromURLValidator(preparationSchemeURL);
-      
-    for (File f : preparationHeaderFiles)
+    }
+    finally
     {
+      preparationHeaderFiles.close();
+    }
+  }
+  
+  /**
+   * Validates and parses the header files and passes them to the writer. If 
+   * more than one thread is configured the files are processed by a worker 
+   * pool, but the headers are always written in the same order as the files.
+   * 
+   * @param files The files, which are passed to the workers as soon as they
+   * are found.
+   * @param validator Validator that collects the errors of all files.
+   * @param writer The writer or null if the headers are only validated.
+   * @return False if at least one file was invalid.
+   */
+  private boolean loadHeaders(Iterator<File> files, 
+    final TEIValidator validator, TEICorpusWriter writer) 
+    throws SAXException, IOException
+  {
+    if(threads <= 1)
+    {
+      boolean valid = true;
+      while(files.hasNext())
+      {
+        if(isCancelled())
+        {
+          return false;
+        }
+        File f = files.next();
+        Object header = loadOrReuse(f, validator, writer != null);
+        if(header == null)
+        {
+          // still validate the other files to report all errors, the error
+          // budget decides when to stop
+          valid = false;
+        }
+        else if(valid && writer != null)
+        {
+          writeHeader(writer, f, validator, header);
+        }
+      }
+      return valid;
+    }
+    
+    final boolean build = writer != null;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try
+    {
+      // only keep a limited number of parsed headers in memory
+      int maxPending = 4 * threads;
+      LinkedList<Future<Object>> pending = new LinkedList<Future<Object>>();
+      LinkedList<File> pendingFiles = new LinkedList<File>();
       
-      if(validator.validate(f))
+      boolean valid = true;
+      while(files.hasNext() || !pending.isEmpty())
+      {
+        if(isCancelled())
+        {
+          // the remaining files are not needed any longer
+          valid = false;
+          break;
+        }
+        while(files.hasNext() && pending.size() < maxPending)
+        {
+          final File f = files.next();
+          pendingFiles.add(f);
+          pending.add(executor.submit(new Callable<Object>()
+          {
+            @Override
+            public Object call() throws Exception
+            {
+              return loadOrReuse(f, validator, build);
+            }
+          }));
+        }
+        
+        File f = pendingFiles.removeFirst();
+        Object header = pending.removeFirst().get();
+        if(header == null)
+        {
+          // still validate the other files to report all errors
+          valid = false;
+        }
+        else if(valid && build)
+        {
+          writeHeader(writer, f, validator, header);
+        }
+      }
+      return valid;
+    }
+    catch(InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException(ex);
+    }
+    catch(ExecutionException ex)
+    {
+      Throwables.propagateIfInstanceOf(ex.getCause(), SAXException.class);
+      Throwables.propagateIfInstanceOf(ex.getCause(), IOException.class);
+      throw Throwables.propagate(ex.getCause());
+    }
+    finally
+    {
+      executor.shutdownNow();
+      // workers which are still running could add more errors
+      awaitTermination(executor);
+    }
+  }
+  
+  private static void awaitTermination(ExecutorService executor)
+  {
+    try
+    {
+      while(!executor.awaitTermination(1, TimeUnit.MINUTES))
+      {
+        // wait until the running headers are done
+      }
+    }
+    catch(InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * Validates a header file and parses it if needed.
+   * 
+   * @param f
+   * @param validator
+   * @param build If false the header is only validated.
+   * @param stamp The stamp of the file taken before, or null to take one if
+   * it is needed for the validation cache.
+   * @return The header, {@link #VALID} if it was valid but not built, or null
+   * if it was invalid.
+   * @throws IOException 
+   */
+  private Element loadHeader(File f, TEIValidator validator, boolean build,
+    FileStamp stamp) throws IOException
+  {
+    if(isCancelled())
+    {
+      return null;
+    }
+    long start = System.nanoTime();
+    Document doc;
+    if(validationCache != null && validationCache.isValid(f, validator))
+    {
+      if(!build)
       {
-        Document preparation = sax.build(f);
+        record(f, validator, true, true, start);
+        return VALID;
+      }
+      // no need to validate it again
+      InputStream in = CorpusFiles.open(f);
+      try
+      {
+        doc = new SAXBuilder().build(in, f.toURI().toString());
+      }
+      catch(JDOMException ex)
+      {
+        throw new IOException(ex);
+      }
+      finally
+      {
+        in.close();
+        validator.getMetrics().parse.stop(start);
+      }
+      record(f, validator, true, true, start);
+    }
+    else if(build)
+    {
+      // the recorded hash must be the one of the validated content
+      if(stamp == null && validationCache != null)
+      {
+        stamp = FileStamp.of(f);
+      }
+      doc = validator.validateAndBuild(f);
+      record(f, validator, doc != null, false, start);
+      if(doc != null && validationCache != null)
+      {
+        validationCache.setValid(f, validator, stamp);
+      }
+    }
+    else
+    {
+      if(stamp == null && validationCache != null)
+      {
+        stamp = FileStamp.of(f);
+      }
+      boolean valid = validator.validate(f);
+      record(f, validator, valid, false, start);
+      if(!valid)
+      {
+        return null;
+      }
+      if(validationCache != null)
+      {
+        validationCache.setValid(f, validator, stamp);
+      }
+      return VALID;
+    }
+    
+    if (doc != null)
+    {
+      // remove the pending text element
+      doc.getRootElement().removeChild("text", null);
 
-        // remove the pending text element
-        preparation.getRootElement().removeChild("text", null);
+      return doc.getRootElement().getChild("teiHeader", null).detach();
+    }
+    return null;
+  }
 
-        // append to our new root
-        root.addContent(preparation.getRootElement().getChild("teiHeader", null).
-          clone());
-      }
-      else
+  /**
+   * Loads a header, unless it is unchanged since the previous incremental
+   * merge.
+   * 
+   * @return The entry of the unchanged header in the previous merged file, a
+   * {@link StampedHeader} during an incremental merge or otherwise the result
+   * of {@link #loadHeader(java.io.File, de.huberlin.german.korpling.laudatioteitool.TEIValidator, boolean, de.huberlin.german.korpling.laudatioteitool.FileStamp) }.
+   */
+  private Object loadOrReuse(File f, TEIValidator validator, boolean build)
+    throws IOException
+  {
+    if(build && mergeState != null && !isCancelled())
+    {
+      long start = System.nanoTime();
+      MergeState.Entry unchanged = mergeState.getUnchanged(f, validator);
+      if(unchanged != null)
       {
-        System.err.println(validator.toString());
-        throw new LaudatioException("A preparation header ist not valid.");
+        record(f, validator, true, true, start);
+        return unchanged;
       }
+      // the recorded hash must be the one of the merged content
+      FileStamp stamp = FileStamp.of(f);
+      Element header = loadHeader(f, validator, build, stamp);
+      return header == null ? null : new StampedHeader(header, stamp);
+    }
+    return loadHeader(f, validator, build, null);
+  }
+  
+  private void writeHeader(TEICorpusWriter writer, File f, 
+    TEIValidator validator, Object header) throws IOException
+  {
+    MergeState.Entry unchanged = null;
+    FileStamp stamp = null;
+    if(header instanceof MergeState.Entry)
+    {
+      unchanged = (MergeState.Entry) header;
+      writer.writeSerializedHeader(mergeState.readPrevious(unchanged));
+    }
+    else if(header instanceof StampedHeader)
+    {
+      stamp = ((StampedHeader) header).stamp;
+      writer.writeHeader(((StampedHeader) header).header);
+    }
+    else
+    {
+      writer.writeHeader((Element) header);
+    }
+    if(mergeState != null)
+    {
+      mergeState.add(f, validator, unchanged, stamp);
+    }
+  }
+  
+  private void saveMergeState()
+  {
+    try
+    {
+      mergeState.save();
+    }
+    catch(IOException ex)
+    {
+      log.warn(messages.getString("MERGE STATE NOT WRITTEN"), 
+        mergeState.getStateFile().getPath(), ex.getMessage());
+    }
+    finally
+    {
+      mergeState = null;
+    }
+  }
+
+  /**
+   * @return True if the error budget is used up.
+   */
+  private boolean isCancelled()
+  {
+    return errorBudget != null && errorBudget.isExhausted();
+  }
+  
+  private void record(File f, TEIValidator validator, boolean valid, 
+    boolean cached, long start)
+  {
+    if(cached)
+    {
+      validator.getMetrics().cached.increment();
+    }
+    if(report != null)
+    {
+      report.add(f, validator, valid, cached, System.nanoTime() - start);
+    }
+  }
+
+  public boolean isIncremental()
+  {
+    return incremental;
+  }
+
+  /**
+   * If set, the positions of the headers in the merged file are stored next
+   * to it in a {@link MergeState}. The next merge into the same file copies
+   * the headers which did not change instead of merging them again.
+   * 
+   * @param incremental 
+   */
+  public void setIncremental(boolean incremental)
+  {
+    this.incremental = incremental;
+  }
+
+  public boolean isSorted()
+  {
+    return sorted;
+  }
+
+  /**
+   * If set, the headers of each directory are merged in the order of their
+   * file names. Otherwise they are merged in the order of the file system,
+   * which does not need to read the whole directory before the first header 
+   * is merged.
+   * 
+   * @param sorted 
+   */
+  public void setSorted(boolean sorted)
+  {
+    this.sorted = sorted;
+  }
+
+  public int getThreads()
+  {
+    return threads;
+  }
+
+  /**
+   * Set the number of threads used to validate and parse the document and
+   * preparation headers.
+   * 
+   * @param threads 
+   */
+  public void setThreads(int threads)
+  {
+    this.threads = threads;
+  }
+
+  public boolean isCompact()
+  {
+    return output.isCompact();
+  }
+
+  /**
+   * If set, the merged file is written without indentation.
+   * 
+   * @param compact 
+   */
+  public void setCompact(boolean compact)
+  {
+    this.output = new XMLFileOutput(compact);
+  }
+
+  public ValidationCache getValidationCache()
+  {
+    return validationCache;
+  }
+
+  /**
+   * Set a cache for the validation results. Header files recorded as valid 
+   * are not validated again, newly validated files are added to the cache.
+   * The cache is not saved by this class.
+   * 
+   * @param validationCache The cache or null to always validate.
+   */
+  public void setValidationCache(ValidationCache validationCache)
+  {
+    this.validationCache = validationCache;
+  }
+
+  public ValidationReport getReport()
+  {
+    return report;
+  }
+
+  /**
+   * Set a report which records the result and duration of every validated
+   * header file.
+   * 
+   * @param report The report or null.
+   */
+  public void setReport(ValidationReport report)
+  {
+    this.report = report;
+  }
+
+  public ErrorBudget getErrorBudget()
+  {
+    return errorBudget;
+  }
+
+  /**
+   * Set a budget for the number of errors. When it is used up the remaining
+   * header files are neither validated nor merged.
+   * 
+   * @param errorBudget The budget or null to validate all files.
+   */
+  public void setErrorBudget(ErrorBudget errorBudget)
+  {
+    this.errorBudget = errorBudget;
+  }
+
+  public ErrorReporter getErrorReporter()
+  {
+    return errorReporter;
+  }
+
+  /**
+   * Set a reporter which gets the errors of each header file as soon as it was
+   * validated.
+   * 
+   * @param errorReporter The reporter or null to report the errors only with
+   * the {@link ValidationException}.
+   */
+  public void setErrorReporter(ErrorReporter errorReporter)
+  {
+    this.errorReporter = errorReporter;
+  }
+
+  /**
+   * A header and the stamp of its file taken before it was parsed.
+   */
+  private static class StampedHeader
+  {
+
+    private final Element header;
+    private final FileStamp stamp;
+
+    public StampedHeader(Element header, FileStamp stamp)
+    {
+      this.header = header;
+      this.stamp = stamp;
     }
   }
 }
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide counters and timers of the hot paths, e.g. the bytes read 
+ * and written, the number of validated headers and the time spent for 
+ * parsing, validating and writing them.
+ * 
+ * Counters and timers can have a type (e.g. the header type "document"),
+ * they are created on first use and updated without locks. Hot paths look 
+ * them up once and keep them in a field, {@link #reset() } only sets them
+ * back to zero. The values can be printed as a summary, in the Prometheus 
+ * text format or read via JMX.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class Metrics implements MetricsMXBean
+{
+
+  private final static Logger log = LoggerFactory.getLogger(Metrics.class);
+
+  public static final String OBJECT_NAME =
+    "de.huberlin.german.korpling.laudatioteitool:type=Metrics";
+
+  private static final Metrics instance = new Metrics();
+
+  private final ConcurrentMap<String, Counter> counters =
+    new ConcurrentHashMap<String, Counter>();
+  private final ConcurrentMap<String, Timer> timers =
+    new ConcurrentHashMap<String, Timer>();
+
+  protected Metrics()
+  {
+  }
+
+  public static Metrics getInstance()
+  {
+    return instance;
+  }
+
+  public Counter counter(String name)
+  {
+    return counter(name, null);
+  }
+
+  /**
+   * Get a counter, which is created if it does not exist yet.
+   * 
+   * @param name The name, e.g. "bytes_read".
+   * @param type An optional type, e.g. the header type.
+   * @return 
+   */
+  public Counter counter(String name, String type)
+  {
+    String key = key(name, type);
+    Counter c = counters.get(key);
+    if (c == null)
+    {
+      Counter created = new Counter(name, type);
+      c = counters.putIfAbsent(key, created);
+      if (c == null)
+      {
+        c = created;
+      }
+    }
+    return c;
+  }
+
+  public Timer timer(String name)
+  {
+    return timer(name, null);
+  }
+
+  /**
+   * Get a timer, which is created if it does not exist yet.
+   * 
+   * @param name The name, e.g. "validate".
+   * @param type An optional type, e.g. the header type.
+   * @return 
+   */
+  public Timer timer(String name, String type)
+  {
+    String key = key(name, type);
+    Timer t = timers.get(key);
+    if (t == null)
+    {
+      Timer created = new Timer(name, type);
+      t = timers.putIfAbsent(key, created);
+      if (t == null)
+      {
+        t = created;
+      }
+    }
+    return t;
+  }
+
+  private static String key(String name, String type)
+  {
+    return type == null ? name : name + "." + type;
+  }
+
+  @Override
+  public Map<String, Long> getValues()
+  {
+    Map<String, Long> values = new TreeMap<String, Long>();
+    for (Map.Entry<String, Counter> e : counters.entrySet())
+    {
+      values.put(e.getKey(), e.getValue().get());
+    }
+    for (Map.Entry<String, Timer> e : timers.entrySet())
+    {
+      values.put(e.getKey() + ".count", e.getValue().getCount());
+      values.put(e.getKey() + ".ms", TimeUnit.NANOSECONDS.toMillis(e.getValue().
+        getTotalNanos()));
+    }
+    return values;
+  }
+
+  @Override
+  public void reset()
+  {
+    for (Counter c : counters.values())
+    {
+      c.reset();
+    }
+    for (Timer t : timers.values())
+    {
+      t.reset();
+    }
+  }
+
+  /**
+   * Registers the metrics at the platform MBean server, if not already done.
+   */
+  public void registerMBean()
+  {
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name))
+      {
+        server.registerMBean(this, name);
+      }
+    }
+    catch (JMException ex)
+    {
+      log.warn("Could not register the metrics MBean", ex);
+    }
+  }
+
+  /**
+   * Counts the bytes read from a stream.
+   */
+  public InputStream meter(InputStream in, final Counter bytes)
+  {
+    return new FilterInputStream(in)
+    {
+      @Override
+      public int read() throws IOException
+      {
+        int b = super.read();
+        if (b >= 0)
+        {
+          bytes.add(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+        int n = super.read(b, off, len);
+        if (n > 0)
+        {
+          bytes.add(n);
+        }
+        return n;
+      }
+    };
+  }
+
+  /**
+   * Counts the bytes written to a stream.
+   */
+  public OutputStream meter(OutputStream out, final Counter bytes)
+  {
+    return new FilterOutputStream(out)
+    {
+      @Override
+      public void write(int b) throws IOException
+      {
+        out.write(b);
+        bytes.add(1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+        out.write(b, off, len);
+        bytes.add(len);
+      }
+    };
+  }
+
+  /**
+   * Writes a human readable table of all counters and timers.
+   */
+  public void writeSummary(Writer out) throws IOException
+  {
+    String format = "%-32s %12s %12s %12s\n";
+    out.write(String.format(format, "Metric", "Count", "Total (ms)",
+      "Max (ms)"));
+    for (Map.Entry<String, Counter> e : new TreeMap<String, Counter>(counters).
+      entrySet())
+    {
+      out.write(String.format(format, e.getKey(), e.getValue().get(), "", ""));
+    }
+    for (Map.Entry<String, Timer> e : new TreeMap<String, Timer>(timers).
+      entrySet())
+    {
+      Timer t = e.getValue();
+      out.write(String.format(format, e.getKey(), t.getCount(),
+        TimeUnit.NANOSECONDS.toMillis(t.getTotalNanos()),
+        TimeUnit.NANOSECONDS.toMillis(t.getMaxNanos())));
+    }
+    out.flush();
+  }
+
+  /**
+   * Writes all counters and timers in the Prometheus text format. Counters
+   * are named "teitool_&lt;name&gt;_total", each timer is written as the 
+   * summary "teitool_&lt;name&gt;_seconds" with the samples "_count" and 
+   * "_sum". The type is written as the label "type".
+   */
+  public void writePrometheus(Writer out) throws IOException
+  {
+    Map<String, String> types = new TreeMap<String, String>();
+    Map<String, TreeMap<String, String>> families =
+      new TreeMap<String, TreeMap<String, String>>();
+    for (Counter c : counters.values())
+    {
+      String family = "teitool_" + c.getName() + "_total";
+      types.put(family, "counter");
+      sample(families, family, family, c.getType(), Long.toString(c.get()));
+    }
+    for (Timer t : timers.values())
+    {
+      String family = "teitool_" + t.getName() + "_seconds";
+      types.put(family, "summary");
+      sample(families, family, family + "_count", t.getType(),
+        Long.toString(t.getCount()));
+      sample(families, family, family + "_sum", t.getType(),
+        String.format(Locale.ENGLISH, "%.6f", t.getTotalNanos() / 1e9));
+    }
+    for (Map.Entry<String, TreeMap<String, String>> f : families.entrySet())
+    {
+      out.write("# TYPE " + f.getKey() + " " + types.get(f.getKey()) + "\n");
+      for (Map.Entry<String, String> s : f.getValue().entrySet())
+      {
+        out.write(s.getKey() + " " + s.getValue() + "\n");
+      }
+    }
+    out.flush();
+  }
+
+  private static void sample(Map<String, TreeMap<String, String>> families,
+    String family, String name, String type, String value)
+  {
+    TreeMap<String, String> samples = families.get(family);
+    if (samples == null)
+    {
+      samples = new TreeMap<String, String>();
+      families.put(family, samples);
+    }
+    samples.put(type == null ? name : name + "{type=\"" + type + "\"}", value);
+  }
+
+  public static class Counter
+  {
+
+    private final String name;
+    private final String type;
+    private final AtomicLong value = new AtomicLong();
+
+    private Counter(String name, String type)
+    {
+      this.name = name;
+      this.type = type;
+    }
+
+    public void add(long delta)
+    {
+      value.addAndGet(delta);
+    }
+
+    public void increment()
+    {
+      value.incrementAndGet();
+    }
+
+    public long get()
+    {
+      return value.get();
+    }
+
+    void reset()
+    {
+      value.set(0);
+    }
+
+    public String getName()
+    {
+      return name;
+    }
+
+    public String getType()
+    {
+      return type;
+    }
+  }
+
+  /**
+   * Measures the number and duration of an operation.
+   * 
+   * <pre>
+   * long start = System.nanoTime();
+   * ...
+   * timer.stop(start);
+   * </pre>
+   */
+  public static class Timer
+  {
+
+    private final String name;
+    private final String type;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private Timer(String name, String type)
+    {
+      this.name = name;
+      this.type = type;
+    }
+
+    /**
+     * Records an operation which started at the given time.
+     * 
+     * @param start The start as returned by {@link System#nanoTime() }.
+     */
+    public void stop(long start)
+    {
+      record(System.nanoTime() - start);
+    }
+
+    public void record(long nanos)
+    {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max;
+      do
+      {
+        max = maxNanos.get();
+      }
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+    }
+
+    void reset()
+    {
+      count.set(0);
+      totalNanos.set(0);
+      maxNanos.set(0);
+    }
+
+    public long getCount()
+    {
+      return count.get();
+    }
+
+    public long getTotalNanos()
+    {
+      return totalNanos.get();
+    }
+
+    public long getMaxNanos()
+    {
+      return maxNanos.get();
+    }
+
+    public String getName()
+    {
+      return name;
+    }
+
+    public String getType()
+    {
+      return type;
+    }
+  }
+}
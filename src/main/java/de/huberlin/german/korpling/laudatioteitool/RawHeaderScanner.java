@@ -0,0 +1,844 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.ResourceBundle;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Finds the byte ranges of the "teiHeader" elements of a merged corpus
+ * without parsing it. Only the markup is looked at (tags, comments, CDATA
+ * sections, processing instructions and quoted attribute values), thus the
+ * input must be well-formed and use an encoding in which the markup
+ * characters are single ASCII bytes, e.g. UTF-8 or ISO-8859-1.
+ *
+ * The file is memory-mapped in windows, so it can be larger than 2 GB.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class RawHeaderScanner
+{
+
+  private static final ResourceBundle messages =
+    ResourceBundle.getBundle("de/huberlin/german/korpling/laudatioteitool/Messages");
+
+  private static final String MARKUP = "<>/=\"' ?!-[]:\t\r\n";
+
+  private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+  /**
+   * A new window also maps some bytes before the requested position, since
+   * the start of the current tag is read again.
+   */
+  private static final int LOOK_BEHIND = 64 * 1024;
+
+  private final FileChannel channel;
+  private final long size;
+  private final Charset charset;
+  private MappedByteBuffer window;
+  private long windowStart;
+  private long pos = 0;
+  /**
+   * The namespace declarations of each open "teiCorpus" element, the
+   * innermost one first.
+   */
+  private final LinkedList<Map<String, String>> namespaces =
+    new LinkedList<Map<String, String>>();
+  private XMLInputFactory factory;
+
+  /**
+   * @param channel The input, which is not closed by the scanner.
+   * @throws IOException
+   */
+  public RawHeaderScanner(FileChannel channel) throws IOException
+  {
+    this.channel = channel;
+    this.size = channel.size();
+    this.charset = detectCharset();
+  }
+
+  /**
+   * Get the encoding of the input from the byte order mark or the XML
+   * declaration.
+   *
+   * @return The encoding or null if the scanner does not support it.
+   */
+  public Charset getCharset()
+  {
+    return charset;
+  }
+
+  private Charset detectCharset() throws IOException
+  {
+    if(size >= 2)
+    {
+      int b0 = get(0) & 0xff;
+      int b1 = get(1) & 0xff;
+      if(b0 == 0xfe || b0 == 0xff || b0 == 0 || b1 == 0)
+      {
+        // UTF-16 or UTF-32
+        return null;
+      }
+      if(b0 == 0xef)
+      {
+        // UTF-8 byte order mark
+        return Charset.forName("UTF-8");
+      }
+    }
+
+    if(!startsWith(0, "<?xml"))
+    {
+      return Charset.forName("UTF-8");
+    }
+    long end = indexOf("?>", 0);
+    if(end < 0)
+    {
+      return null;
+    }
+    String declaration = decode(0, end, Charset.forName("ISO-8859-1"));
+    int i = declaration.indexOf("encoding");
+    if(i < 0)
+    {
+      return Charset.forName("UTF-8");
+    }
+    i = declaration.indexOf('=', i) + 1;
+    while(i > 0 && i < declaration.length()
+      && Character.isWhitespace(declaration.charAt(i)))
+    {
+      i++;
+    }
+    if(i <= 0 || i >= declaration.length())
+    {
+      return null;
+    }
+    char quote = declaration.charAt(i);
+    int close = declaration.indexOf(quote, i + 1);
+    if(close < 0)
+    {
+      return null;
+    }
+    try
+    {
+      Charset declared = Charset.forName(declaration.substring(i + 1, close));
+      // the markup must be encoded as single ASCII bytes
+      if(Arrays.equals(MARKUP.getBytes(declared),
+        MARKUP.getBytes(Charset.forName("US-ASCII"))))
+      {
+        return declared;
+      }
+    }
+    catch(IllegalCharsetNameException ex)
+    {
+      // unknown encoding
+    }
+    catch(UnsupportedCharsetException ex)
+    {
+      // unknown encoding
+    }
+    return null;
+  }
+
+  /**
+   * Finds the next "teiHeader" element.
+   *
+   * @return The header or null if there is none.
+   * @throws IOException If the input ends within a tag, comment or header.
+   */
+  public Header next() throws IOException
+  {
+    while(true)
+    {
+      long lt = indexOf('<', pos);
+      if(lt < 0)
+      {
+        pos = size;
+        return null;
+      }
+      if(startsWith(lt, "</"))
+      {
+        long end = skipTag(lt);
+        if("teiCorpus".equals(localName(readName(lt + 2)))
+          && !namespaces.isEmpty())
+        {
+          namespaces.pop();
+        }
+        pos = end;
+      }
+      else if(startsWith(lt, "<!") || startsWith(lt, "<?"))
+      {
+        pos = skipSpecial(lt);
+      }
+      else
+      {
+        long end = skipTag(lt);
+        boolean empty = get(end - 2) == '/';
+        String name = localName(readName(lt + 1));
+        if("teiCorpus".equals(name))
+        {
+          if(!empty)
+          {
+            namespaces.push(readNamespaces(lt, end));
+          }
+          pos = end;
+        }
+        else if("teiHeader".equals(name))
+        {
+          pos = empty ? end : skipContent(end);
+          return new Header(lt, pos, namespaces.size(),
+            readAttribute(lt, end, "type"), getInheritedNamespaces());
+        }
+        else
+        {
+          pos = end;
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts the line breaks in a range of the input.
+   *
+   * @param from
+   * @param to
+   * @return
+   * @throws IOException
+   */
+  public long countLines(long from, long to) throws IOException
+  {
+    long lines = 0;
+    for(long i = from; i < to; i++)
+    {
+      if(get(i) == '\n')
+      {
+        lines++;
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Counts the characters after the last line break in a range of the input,
+   * or all characters of the range if it contains no line break. Only the
+   * lead bytes of multi-byte UTF-8 characters are counted.
+   *
+   * @param from
+   * @param to
+   * @return
+   * @throws IOException
+   */
+  public long countColumns(long from, long to) throws IOException
+  {
+    boolean utf8 = "UTF-8".equals(charset.name());
+    long columns = 0;
+    for(long i = to - 1; i >= from; i--)
+    {
+      byte b = get(i);
+      if(b == '\n')
+      {
+        break;
+      }
+      if(!utf8 || (b & 0xC0) != 0x80)
+      {
+        columns++;
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Opens a stream which reads a range of a file channel without changing
+   * its position.
+   *
+   * @param channel
+   * @param start
+   * @param end The position after the last byte of the range.
+   * @return The stream, closing it does not close the channel.
+   */
+  public static InputStream openStream(final FileChannel channel,
+    final long start, final long end)
+  {
+    return new InputStream()
+    {
+      private long position = start;
+
+      @Override
+      public int read() throws IOException
+      {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+        if(position >= end)
+        {
+          return -1;
+        }
+        len = (int) Math.min(len, end - position);
+        int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+        if(read > 0)
+        {
+          position += read;
+        }
+        return read;
+      }
+    };
+  }
+
+  /**
+   * Skips the content of an element and its end tag.
+   *
+   * @param from The position after the start tag.
+   * @return The position after the end tag.
+   */
+  private long skipContent(long from) throws IOException
+  {
+    int depth = 1;
+    long p = from;
+    while(depth > 0)
+    {
+      long lt = indexOf('<', p);
+      if(lt < 0)
+      {
+        throw unexpectedEnd(from);
+      }
+      if(startsWith(lt, "</"))
+      {
+        depth--;
+        p = skipTag(lt);
+      }
+      else if(startsWith(lt, "<!") || startsWith(lt, "<?"))
+      {
+        p = skipSpecial(lt);
+      }
+      else
+      {
+        p = skipTag(lt);
+        if(get(p - 2) != '/')
+        {
+          depth++;
+        }
+      }
+    }
+    return p;
+  }
+
+  /**
+   * Skips a start or end tag.
+   *
+   * @return The position after the closing "&gt;".
+   */
+  private long skipTag(long lt) throws IOException
+  {
+    byte quote = 0;
+    for(long i = lt + 1; i < size; i++)
+    {
+      byte b = get(i);
+      if(quote != 0)
+      {
+        if(b == quote)
+        {
+          quote = 0;
+        }
+      }
+      else if(b == '"' || b == '\'')
+      {
+        quote = b;
+      }
+      else if(b == '>')
+      {
+        return i + 1;
+      }
+    }
+    throw unexpectedEnd(lt);
+  }
+
+  /**
+   * Skips a comment, CDATA section, processing instruction or document type
+   * declaration.
+   *
+   * @return The position after the closing "&gt;".
+   */
+  private long skipSpecial(long lt) throws IOException
+  {
+    String terminator;
+    if(startsWith(lt, "<!--"))
+    {
+      terminator = "-->";
+    }
+    else if(startsWith(lt, "<![CDATA["))
+    {
+      terminator = "]]>";
+    }
+    else if(startsWith(lt, "<?"))
+    {
+      terminator = "?>";
+    }
+    else
+    {
+      return skipDeclaration(lt);
+    }
+    long end = indexOf(terminator, lt + 2);
+    if(end < 0)
+    {
+      throw unexpectedEnd(lt);
+    }
+    return end + terminator.length();
+  }
+
+  /**
+   * Skips a document type declaration, which may contain an internal subset
+   * in square brackets.
+   */
+  private long skipDeclaration(long lt) throws IOException
+  {
+    int brackets = 0;
+    byte quote = 0;
+    for(long i = lt + 2; i < size; i++)
+    {
+      byte b = get(i);
+      if(quote != 0)
+      {
+        if(b == quote)
+        {
+          quote = 0;
+        }
+      }
+      else if(b == '"' || b == '\'')
+      {
+        quote = b;
+      }
+      else if(b == '[')
+      {
+        brackets++;
+      }
+      else if(b == ']')
+      {
+        brackets--;
+      }
+      else if(b == '>' && brackets == 0)
+      {
+        return i + 1;
+      }
+    }
+    throw unexpectedEnd(lt);
+  }
+
+  private String readName(long from) throws IOException
+  {
+    long end = from;
+    while(end < size)
+    {
+      byte b = get(end);
+      if(b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\r'
+        || b == '\n')
+      {
+        break;
+      }
+      end++;
+    }
+    return decode(from, end, charset);
+  }
+
+  private static String localName(String name)
+  {
+    return name.substring(name.indexOf(':') + 1);
+  }
+
+  /**
+   * Reads the attributes of a start tag.
+   *
+   * @return The attribute values as they are written in the input, without
+   * resolving any references.
+   */
+  private Map<String, String> readAttributes(long lt, long end)
+    throws IOException
+  {
+    Map<String, String> attributes = new LinkedHashMap<String, String>();
+    String tag = decode(lt, end, charset);
+    int i = 1 + readName(lt + 1).length();
+    while(true)
+    {
+      int eq = tag.indexOf('=', i);
+      if(eq < 0)
+      {
+        break;
+      }
+      String name = tag.substring(i, eq).trim();
+      int open = eq + 1;
+      while(open < tag.length() && tag.charAt(open) != '"'
+        && tag.charAt(open) != '\'')
+      {
+        open++;
+      }
+      if(open >= tag.length())
+      {
+        break;
+      }
+      int close = tag.indexOf(tag.charAt(open), open + 1);
+      if(close < 0)
+      {
+        break;
+      }
+      attributes.put(name, tag.substring(open + 1, close));
+      i = close + 1;
+    }
+    return attributes;
+  }
+
+  private String readAttribute(long lt, long end, String name)
+    throws IOException
+  {
+    return readAttributes(lt, end).get(name);
+  }
+
+  private Map<String, String> readNamespaces(long lt, long end)
+    throws IOException
+  {
+    Map<String, String> result = new LinkedHashMap<String, String>();
+    for(Map.Entry<String, String> e : readAttributes(lt, end).entrySet())
+    {
+      if(e.getKey().startsWith("xmlns:"))
+      {
+        result.put(e.getKey(), e.getValue());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the prefixed namespace declarations of the open "teiCorpus"
+   * elements. The default namespace is not included, since the header is
+   * always put into the TEI namespace.
+   */
+  private String getInheritedNamespaces()
+  {
+    Map<String, String> declarations = new LinkedHashMap<String, String>();
+    // the outer declarations are overwritten by the inner ones
+    for(int i = namespaces.size() - 1; i >= 0; i--)
+    {
+      declarations.putAll(namespaces.get(i));
+    }
+    StringBuilder sb = new StringBuilder();
+    for(Map.Entry<String, String> e : declarations.entrySet())
+    {
+      sb.append(' ').append(e.getKey()).append("=\"").append(e.getValue())
+        .append('"');
+    }
+    return sb.toString();
+  }
+
+  private byte get(long position) throws IOException
+  {
+    long offset = position - windowStart;
+    if(window == null || offset < 0 || offset >= window.limit())
+    {
+      windowStart = Math.max(0, position - LOOK_BEHIND);
+      window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+        Math.min(WINDOW_SIZE, size - windowStart));
+      offset = position - windowStart;
+    }
+    return window.get((int) offset);
+  }
+
+  private boolean startsWith(long from, String prefix) throws IOException
+  {
+    if(from + prefix.length() > size)
+    {
+      return false;
+    }
+    for(int i = 0; i < prefix.length(); i++)
+    {
+      if(get(from + i) != prefix.charAt(i))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long indexOf(char c, long from) throws IOException
+  {
+    for(long i = from; i < size; i++)
+    {
+      if(get(i) == c)
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private long indexOf(String s, long from) throws IOException
+  {
+    long i = indexOf(s.charAt(0), from);
+    while(i >= 0 && !startsWith(i, s))
+    {
+      i = indexOf(s.charAt(0), i + 1);
+    }
+    return i;
+  }
+
+  private String decode(long from, long to, Charset charset)
+    throws IOException
+  {
+    byte[] bytes = new byte[(int) (to - from)];
+    for(int i = 0; i < bytes.length; i++)
+    {
+      bytes[i] = get(from + i);
+    }
+    return new String(bytes, charset);
+  }
+
+  /**
+   * @param from The offset of the tag or element which is not closed.
+   */
+  private IOException unexpectedEnd(long from)
+  {
+    return new IOException(String.format(messages.getString(
+      "UNEXPECTED END OF INPUT"), from));
+  }
+
+  /**
+   * The position of a "teiHeader" element in the input.
+   */
+  public class Header
+  {
+
+    private final long start;
+    private final long end;
+    private final int depth;
+    private final String type;
+    private final String inheritedNamespaces;
+
+    private Header(long start, long end, int depth, String type,
+      String inheritedNamespaces)
+    {
+      this.start = start;
+      this.end = end;
+      this.depth = depth;
+      this.type = type;
+      this.inheritedNamespaces = inheritedNamespaces;
+    }
+
+    /**
+     * @return The offset of the "&lt;" of the start tag.
+     */
+    public long getStart()
+    {
+      return start;
+    }
+
+    /**
+     * @return The offset after the "&gt;" of the end tag.
+     */
+    public long getEnd()
+    {
+      return end;
+    }
+
+    /**
+     * @return The number of "teiCorpus" elements the header is nested in.
+     */
+    public int getDepth()
+    {
+      return depth;
+    }
+
+    /**
+     * @return The value of the "type" attribute or null.
+     */
+    public String getType()
+    {
+      return type;
+    }
+
+    /**
+     * @return The prefixed namespace declarations of the enclosing
+     * "teiCorpus" elements, formatted as attributes with a leading space,
+     * or an empty string.
+     */
+    public String getInheritedNamespaces()
+    {
+      return inheritedNamespaces;
+    }
+
+    public Charset getCharset()
+    {
+      return charset;
+    }
+
+    /**
+     * Opens a stream which reads the bytes of the header.
+     */
+    public InputStream openStream()
+    {
+      return RawHeaderScanner.openStream(channel, start, end);
+    }
+
+    /**
+     * Reads the "fileDesc" and its "title", which are used to name the 
+     * header. The rest of the header is skipped.
+     *
+     * @return
+     * @throws XMLStreamException If the header is not well-formed.
+     */
+    public Names readNames() throws XMLStreamException
+    {
+      if(factory == null)
+      {
+        factory = XMLInputFactory.newInstance();
+        // prefixes might be declared outside of the header
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+      }
+
+      Names names = new Names();
+      StringBuilder title = null;
+      // the local names of the open elements, starting with "teiHeader"
+      LinkedList<String> path = new LinkedList<String>();
+
+      XMLStreamReader reader = factory.createXMLStreamReader(openStream(),
+        charset.name());
+      try
+      {
+        while(reader.hasNext())
+        {
+          int event = reader.next();
+          if(event == XMLStreamConstants.START_ELEMENT)
+          {
+            path.add(localName(reader.getLocalName()));
+            if(isPath(path, "fileDesc"))
+            {
+              names.id = getAttribute(reader, "xml:id");
+            }
+            else if(isPath(path, "fileDesc", "titleStmt", "title"))
+            {
+              names.corresp = getAttribute(reader, "corresp");
+              title = new StringBuilder();
+            }
+          }
+          else if(event == XMLStreamConstants.END_ELEMENT)
+          {
+            if(isPath(path, "fileDesc", "titleStmt", "title"))
+            {
+              names.title = title.toString();
+            }
+            if(isPath(path, "fileDesc") || isPath(path, "fileDesc", "titleStmt")
+              || isPath(path, "fileDesc", "titleStmt", "title"))
+            {
+              // only the first of each element is used
+              break;
+            }
+            path.removeLast();
+          }
+          else if(title != null && path.size() == 4
+            && (event == XMLStreamConstants.CHARACTERS
+            || event == XMLStreamConstants.SPACE
+            || event == XMLStreamConstants.CDATA))
+          {
+            title.append(reader.getText());
+          }
+        }
+      }
+      finally
+      {
+        reader.close();
+      }
+      return names;
+    }
+  }
+
+  private static boolean isPath(LinkedList<String> path, String... below)
+  {
+    if(path.size() != below.length + 1)
+    {
+      return false;
+    }
+    for(int i = 0; i < below.length; i++)
+    {
+      if(!below[i].equals(path.get(i + 1)))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String getAttribute(XMLStreamReader reader, String qname)
+  {
+    for(int i = 0; i < reader.getAttributeCount(); i++)
+    {
+      String prefix = reader.getAttributePrefix(i);
+      String name = reader.getAttributeLocalName(i);
+      if(qname.equals(prefix == null || prefix.isEmpty() ? name
+        : prefix + ":" + name))
+      {
+        return reader.getAttributeValue(i);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The parts of a header which are used as the name of its file.
+   */
+  public static class Names
+  {
+
+    private String id;
+    private String title;
+    private String corresp;
+
+    /**
+     * @return The "xml:id" of the "fileDesc" or null.
+     */
+    public String getId()
+    {
+      return id;
+    }
+
+    /**
+     * @return The text of the "title", which is not normalized, or null.
+     */
+    public String getTitle()
+    {
+      return title;
+    }
+
+    /**
+     * @return The "corresp" attribute of the "title" or null.
+     */
+    public String getCorresp()
+    {
+      return corresp;
+    }
+  }
+}
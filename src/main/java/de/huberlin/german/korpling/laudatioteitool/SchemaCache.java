@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+import com.thaiopensource.validation.SchemaFactory2;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * Process-wide cache of compiled RELAX NG schemas.
+ *
+ * Compiling one of the LAUDATIO schemas is expensive, while a compiled
+ * {@link Schema} is immutable and can be shared by any number of threads.
+ * Entries are keyed by the resolved location of the schema. The content is
+ * only read and hashed when the schema is loaded the first time. Afterwards
+ * a local file is only read again if its size or modification time changed
+ * and the schema is only compiled again if its content changed. Bundled
+ * resources are not checked again.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class SchemaCache
+{
+
+  private final static Logger log = LoggerFactory.getLogger(SchemaCache.class);
+
+  private static final Metrics.Timer compileTimer =
+    Metrics.getInstance().timer("schema_compile");
+
+  private static final SchemaCache instance = new SchemaCache();
+
+  private final Cache<String, Entry> schemas = CacheBuilder.newBuilder()
+    .recordStats().build();
+
+  /**
+   * The content hash of every schema compiled by this cache.
+   */
+  private final Map<Schema, String> hashes = Collections.synchronizedMap(
+    new WeakHashMap<Schema, String>());
+
+  protected SchemaCache()
+  {
+  }
+
+  public static SchemaCache getInstance()
+  {
+    return instance;
+  }
+
+  /**
+   * Get the compiled schema for a location. Locations ending with ".rng" are
+   * parsed as RELAX NG XML syntax, everything else as compact syntax.
+   *
+   * @param location the URL of the schema, e.g. a bundled resource. It is
+   * resolved with the {@link SchemeCatalog} first.
+   * @return the shared compiled schema
+   * @throws IOException If the schema could not be read.
+   * @throws SAXException If the schema could not be compiled.
+   */
+  public Schema getSchema(URL location) throws IOException, SAXException
+  {
+    // use a local copy if there is one
+    final URL resolved = SchemeCatalog.getInstance().resolve(location);
+    final String systemId = resolved.toExternalForm();
+    final Stamp stamp = Stamp.of(resolved);
+    try
+    {
+      Entry entry = schemas.get(systemId, new Callable<Entry>()
+      {
+        @Override
+        public Entry call() throws Exception
+        {
+          return load(resolved, stamp, null);
+        }
+      });
+      if (!entry.isCurrent(stamp))
+      {
+        // the file was touched, compile it again if its content changed
+        Entry changed = load(resolved, stamp, entry);
+        schemas.asMap().replace(systemId, entry, changed);
+        entry = changed;
+      }
+      return entry.schema;
+    }
+    catch (ExecutionException ex)
+    {
+      Throwables.propagateIfInstanceOf(ex.getCause(), IOException.class);
+      Throwables.propagateIfInstanceOf(ex.getCause(), SAXException.class);
+      throw Throwables.propagate(ex.getCause());
+    }
+  }
+
+  /**
+   * Reads and hashes the schema and compiles it unless the content is the
+   * same as the one of the previous entry.
+   */
+  private Entry load(URL resolved, Stamp stamp, Entry previous)
+    throws IOException, SAXException
+  {
+    byte[] content = Resources.toByteArray(resolved);
+    String hash = Hashing.sha1().hashBytes(content).toString();
+    if (previous != null && previous.hash.equals(hash))
+    {
+      return new Entry(previous.schema, hash, stamp);
+    }
+    Schema schema = compile(resolved.toExternalForm(), content);
+    hashes.put(schema, hash);
+    return new Entry(schema, hash, stamp);
+  }
+
+  /**
+   * Get the hash of the content a schema was compiled from.
+   * 
+   * @param schema
+   * @return The SHA-1 hash or null if the schema was not compiled by this
+   * cache.
+   */
+  public String getHash(Schema schema)
+  {
+    return schema == null ? null : hashes.get(schema);
+  }
+
+  private Schema compile(String systemId, byte[] content) throws SAXException
+  {
+    SchemaFactory2 factory = systemId.endsWith(".rng")
+      ? TEIValidator.xmlSchemaFactory : TEIValidator.compactSchemaFactory;
+
+    StreamSource source =
+      new StreamSource(new ByteArrayInputStream(content), systemId);
+
+    // the JAXP schema factories are not thread-safe
+    synchronized (factory)
+    {
+      long start = System.nanoTime();
+      Schema schema = factory.newSchema(source);
+      compileTimer.stop(start);
+      log.debug("compiled schema {} in {} ms", systemId,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      return schema;
+    }
+  }
+
+  public CacheStats getStats()
+  {
+    return schemas.stats();
+  }
+
+  public long getHitCount()
+  {
+    return schemas.stats().hitCount();
+  }
+
+  public long getMissCount()
+  {
+    return schemas.stats().missCount();
+  }
+
+  public void clear()
+  {
+    schemas.invalidateAll();
+  }
+
+  /**
+   * A compiled schema and the content it was compiled from.
+   */
+  private static class Entry
+  {
+
+    private final Schema schema;
+    private final String hash;
+    private final Stamp stamp;
+
+    public Entry(Schema schema, String hash, Stamp stamp)
+    {
+      this.schema = schema;
+      this.hash = hash;
+      this.stamp = stamp;
+    }
+
+    public boolean isCurrent(Stamp current)
+    {
+      return stamp == null ? current == null : stamp.equals(current);
+    }
+  }
+
+  /**
+   * Size and modification time of a schema file.
+   */
+  private static class Stamp
+  {
+
+    private final long size;
+    private final long modified;
+
+    private Stamp(long size, long modified)
+    {
+      this.size = size;
+      this.modified = modified;
+    }
+
+    /**
+     * @return The stamp of a local file or null for other locations, which
+     * are not expected to change.
+     */
+    public static Stamp of(URL location)
+    {
+      if (!"file".equals(location.getProtocol()))
+      {
+        return null;
+      }
+      try
+      {
+        File file = new File(location.toURI());
+        return new Stamp(file.length(), file.lastModified());
+      }
+      catch (URISyntaxException ex)
+      {
+        return null;
+      }
+      catch (IllegalArgumentException ex)
+      {
+        return null;
+      }
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof Stamp))
+      {
+        return false;
+      }
+      Stamp other = (Stamp) obj;
+      return size == other.size && modified == other.modified;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return (int) (size ^ modified);
+    }
+  }
+}
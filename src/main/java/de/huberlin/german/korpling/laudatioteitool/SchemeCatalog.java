@@ -0,0 +1,357 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the location of a scheme before it is loaded.
+ * 
+ * <ol>
+ * <li>Locations listed in a catalog are replaced by the local file or 
+ * resource. The default LAUDATIO schemes are mapped to the bundled copies,
+ * additional catalogs can be added with {@link #addCatalog(java.io.File) }.</li>
+ * <li>Other HTTP locations are downloaded into a cache directory. A cached
+ * copy is revalidated with the server (using the "ETag" and "Last-Modified"
+ * headers) and used as it is if the server can't be reached.</li>
+ * </ol>
+ * 
+ * A catalog is a properties file which maps the URL of a scheme to a path
+ * (relative to the catalog file) or to another URL.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class SchemeCatalog
+{
+
+  private final static Logger log = LoggerFactory.getLogger(SchemeCatalog.class);
+  private static final ResourceBundle messages = ResourceBundle.getBundle(
+    "de/huberlin/german/korpling/laudatioteitool/Messages");
+
+  private static final SchemeCatalog instance = new SchemeCatalog();
+
+  private static final int CONNECT_TIMEOUT = 5000;
+  private static final int READ_TIMEOUT = 10000;
+
+  private final Map<String, URL> mappings = new ConcurrentHashMap<String, URL>();
+
+  /**
+   * Downloaded schemes are only revalidated once in a while.
+   */
+  private final Cache<String, URL> downloaded = CacheBuilder.newBuilder()
+    .expireAfterWrite(10, TimeUnit.MINUTES).build();
+
+  private volatile File cacheDirectory = new File(
+    System.getProperty("user.home"), ".teitool" + File.separator + "schemes");
+
+  private volatile boolean offline = false;
+
+  SchemeCatalog()
+  {
+    Properties bundled = new Properties();
+    InputStream in = SchemeCatalog.class.getResourceAsStream("schemes.properties");
+    try
+    {
+      try
+      {
+        bundled.load(in);
+      }
+      finally
+      {
+        in.close();
+      }
+      for (String url : bundled.stringPropertyNames())
+      {
+        mappings.put(url, SchemeCatalog.class.getResource(
+          bundled.getProperty(url)));
+      }
+    }
+    catch (IOException ex)
+    {
+      log.error(null, ex);
+    }
+  }
+
+  public static SchemeCatalog getInstance()
+  {
+    return instance;
+  }
+
+  /**
+   * Adds the mappings of a catalog file.
+   * 
+   * @param catalog
+   * @throws IOException 
+   */
+  public void addCatalog(File catalog) throws IOException
+  {
+    Properties props = new Properties();
+    InputStream in = new FileInputStream(catalog);
+    try
+    {
+      props.load(in);
+    }
+    finally
+    {
+      in.close();
+    }
+
+    File baseDir = catalog.getAbsoluteFile().getParentFile();
+    for (String url : props.stringPropertyNames())
+    {
+      String target = props.getProperty(url).trim();
+      addMapping(url, toURL(baseDir, target));
+    }
+  }
+
+  public void addMapping(String url, URL target)
+  {
+    mappings.put(url, target);
+    downloaded.invalidate(url);
+  }
+
+  /**
+   * Get the location the scheme should actually be read from.
+   * 
+   * @param location
+   * @return A local copy of the scheme or the location itself.
+   * @throws IOException If a remote scheme could neither be downloaded nor
+   * found in the cache.
+   */
+  public URL resolve(final URL location) throws IOException
+  {
+    String key = location.toExternalForm();
+    URL mapped = mappings.get(key);
+    if (mapped != null)
+    {
+      return mapped;
+    }
+
+    String protocol = location.getProtocol();
+    if (!"http".equals(protocol) && !"https".equals(protocol))
+    {
+      return location;
+    }
+
+    try
+    {
+      return downloaded.get(key, new Callable<URL>()
+      {
+        @Override
+        public URL call() throws Exception
+        {
+          return download(location);
+        }
+      });
+    }
+    catch (ExecutionException ex)
+    {
+      Throwables.propagateIfInstanceOf(ex.getCause(), IOException.class);
+      throw Throwables.propagate(ex.getCause());
+    }
+  }
+
+  private URL download(URL location) throws IOException
+  {
+    String url = location.toExternalForm();
+    // keep the file name, its extension tells the syntax of the scheme
+    String name = new File(location.getPath()).getName();
+    File file = new File(cacheDirectory, 
+      Hashing.sha1().hashString(url, Charsets.UTF_8).toString() + "_" + name);
+    File metaFile = new File(file.getPath() + ".properties");
+
+    Properties meta = new Properties();
+    if (file.isFile() && metaFile.isFile())
+    {
+      InputStream in = new FileInputStream(metaFile);
+      try
+      {
+        meta.load(in);
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+
+    if (offline)
+    {
+      if (file.isFile())
+      {
+        return file.toURI().toURL();
+      }
+      throw new IOException(url + " is not available offline");
+    }
+
+    try
+    {
+      HttpURLConnection con = (HttpURLConnection) location.openConnection();
+      con.setConnectTimeout(CONNECT_TIMEOUT);
+      con.setReadTimeout(READ_TIMEOUT);
+      if (file.isFile())
+      {
+        if (meta.getProperty("etag") != null)
+        {
+          con.setRequestProperty("If-None-Match", meta.getProperty("etag"));
+        }
+        con.setIfModifiedSince(Long.parseLong(meta.getProperty(
+          "lastmodified", "0")));
+      }
+
+      int status = con.getResponseCode();
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED && file.isFile())
+      {
+        log.debug("scheme {} not modified", url);
+        return file.toURI().toURL();
+      }
+      else if (status != HttpURLConnection.HTTP_OK)
+      {
+        throw new IOException("HTTP status " + status + " for " + url);
+      }
+
+      if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs())
+      {
+        throw new IOException(messages.getString("COULD NOT CREATE DIRECTORY")
+          + cacheDirectory.getAbsolutePath());
+      }
+      File partFile = new File(file.getPath() + ".part");
+      InputStream in = con.getInputStream();
+      try
+      {
+        OutputStream out = new FileOutputStream(partFile);
+        try
+        {
+          ByteStreams.copy(in, out);
+        }
+        finally
+        {
+          out.close();
+        }
+      }
+      finally
+      {
+        in.close();
+      }
+      Files.move(partFile, file);
+
+      meta.clear();
+      if (con.getHeaderField("ETag") != null)
+      {
+        meta.setProperty("etag", con.getHeaderField("ETag"));
+      }
+      meta.setProperty("lastmodified", Long.toString(con.getLastModified()));
+      meta.setProperty("url", url);
+      OutputStream metaOut = new FileOutputStream(metaFile);
+      try
+      {
+        meta.store(metaOut, null);
+      }
+      finally
+      {
+        metaOut.close();
+      }
+      log.info(messages.getString("DOWNLOADED SCHEME"), url, file.getPath());
+      return file.toURI().toURL();
+    }
+    catch (IOException ex)
+    {
+      if (file.isFile())
+      {
+        log.warn(messages.getString("USING CACHED SCHEME"), url, 
+          ex.getMessage());
+        return file.toURI().toURL();
+      }
+      throw ex;
+    }
+  }
+
+  private static URL toURL(File baseDir, String target) throws
+    MalformedURLException
+  {
+    // a single letter is a drive letter and not a protocol
+    int idx = target.indexOf(':');
+    if (idx > 1)
+    {
+      try
+      {
+        return new URL(target);
+      }
+      catch (MalformedURLException ex)
+      {
+        // handle as path
+      }
+    }
+    File f = new File(target);
+    if (!f.isAbsolute())
+    {
+      f = new File(baseDir, target);
+    }
+    return f.toURI().toURL();
+  }
+
+  public File getCacheDirectory()
+  {
+    return cacheDirectory;
+  }
+
+  /**
+   * Set the directory for the downloaded schemes.
+   */
+  public void setCacheDirectory(File cacheDirectory)
+  {
+    this.cacheDirectory = cacheDirectory;
+    downloaded.invalidateAll();
+  }
+
+  public boolean isOffline()
+  {
+    return offline;
+  }
+
+  /**
+   * If offline, remote schemes are only taken from the catalog or the 
+   * cache directory.
+   */
+  public void setOffline(boolean offline)
+  {
+    this.offline = offline;
+    downloaded.invalidateAll();
+  }
+}
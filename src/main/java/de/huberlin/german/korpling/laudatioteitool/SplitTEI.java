@@ -16,24 +16,45 @@
 package de.huberlin.german.korpling.laudatioteitool;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.HashSet;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.jdom2.DefaultJDOMFactory;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
+import org.jdom2.JDOMFactory;
 import org.jdom2.Namespace;
 import org.jdom2.ProcessingInstruction;
+import org.jdom2.Text;
 import org.jdom2.input.SAXBuilder;
+import org.jdom2.located.LocatedJDOMFactory;
 import org.jdom2.output.Format;
-import org.jdom2.output.XMLOutputter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
@@ -46,21 +67,116 @@ public class SplitTEI
   private static final ResourceBundle messages =
     ResourceBundle.getBundle("de/huberlin/german/korpling/laudatioteitool/Messages");
   private final static Logger log = LoggerFactory.getLogger(SplitTEI.class);
+
+  private static final Metrics.Timer parseTimer =
+    Metrics.getInstance().timer("parse");
+  private static final Metrics.Timer writeTimer =
+    Metrics.getInstance().timer("write");
+  private static final Metrics.Timer cloneTimer =
+    Metrics.getInstance().timer("clone");
+  private static final Metrics.Counter bytesRead =
+    Metrics.getInstance().counter("bytes_read");
+  private static final Metrics.Counter bytesWritten =
+    Metrics.getInstance().counter("bytes_written");
+  private static final Metrics.Counter headersWritten =
+    Metrics.getInstance().counter("headers_written");
   
   private File inputFile;
+  private final InputSource providedInput;
+  private boolean providedInputRead = false;
   private File outputDirectory;
   private String corpusSchemeURL, documentSchemeURL, preparationSchemeURL;
   
+  private boolean streaming = false;
+  private boolean raw = false;
+  private int threads = 1;
+  
+  private boolean writeFiles = true;
+  private XMLFileOutput output = new XMLFileOutput(false);
+  private ValidationReport report;
+  private ErrorBudget errorBudget;
+  private ErrorReporter errorReporter;
+  private TEIValidator corpusValidator, documentValidator, preparationValidator;
+  private File corpusDir, documentDir, preparationDir;
+  /**
+   * The output files which were already given to a header, only used by the
+   * reading thread.
+   */
+  private Set<File> usedOutputFiles;
+  private ThreadPoolExecutor executor;
+  private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+  
   public SplitTEI(File inputFile, File outputDirectory, 
     String corpusSchemeURL, String documentSchemeURL, String preparationSchemeURL)
+  {
+    this(inputFile, null, outputDirectory, corpusSchemeURL, 
+      documentSchemeURL, preparationSchemeURL);
+  }
+  
+  /**
+   * Reads the merged corpus from a byte or character stream instead of a 
+   * file. The stream can only be read once and is not closed.
+   * 
+   * @param input The input, its system ID is used as the name of the source 
+   * in the reported errors.
+   * @param outputDirectory
+   * @param corpusSchemeURL
+   * @param documentSchemeURL
+   * @param preparationSchemeURL 
+   */
+  public SplitTEI(InputSource input, File outputDirectory, 
+    String corpusSchemeURL, String documentSchemeURL, String preparationSchemeURL)
+  {
+    this(getSourceFile(input), input, outputDirectory, corpusSchemeURL, 
+      documentSchemeURL, preparationSchemeURL);
+  }
+  
+  private SplitTEI(File inputFile, InputSource providedInput, 
+    File outputDirectory, String corpusSchemeURL, String documentSchemeURL, 
+    String preparationSchemeURL)
   {
     this.inputFile = inputFile;
+    this.providedInput = providedInput;
     this.outputDirectory = outputDirectory;
     this.corpusSchemeURL = corpusSchemeURL;
     this.documentSchemeURL = documentSchemeURL;
     this.preparationSchemeURL = preparationSchemeURL;
   }
+  
+  /**
+   * Get the file the errors of a provided input are reported for.
+   */
+  private static File getSourceFile(InputSource input)
+  {
+    String systemId = input.getSystemId();
+    if(systemId == null)
+    {
+      return CorpusFiles.STREAM_INPUT;
+    }
+    try
+    {
+      URI uri = new URI(systemId);
+      if("file".equals(uri.getScheme()))
+      {
+        return new File(uri);
+      }
+    }
+    catch(URISyntaxException ex)
+    {
+      // not an URI
+    }
+    catch(IllegalArgumentException ex)
+    {
+      // not a valid file URI
+    }
+    return new File(systemId);
+  }
 
+  /**
+   * Splits the input file into one file per header and validates them.
+   * 
+   * @throws LaudatioException 
+   */
   public void split() throws LaudatioException
   {
     if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
@@ -68,30 +184,104 @@ public class SplitTEI
       throw new LaudatioException(messages.getString(
         "COULD NOT CREATE OUTPUT DIRECTORY."));
     }
-
+    process(true);
+  }
+  
+  /**
+   * Validates each header of the input file in the same way as {@link #split() }
+   * would do, but without writing any files. Reported errors refer to the
+   * lines and columns of the input file.
+   * 
+   * @throws LaudatioException 
+   */
+  public void validate() throws LaudatioException
+  {
+    try
+    {
+      process(false);
+    }
+    catch(LaudatioException ex)
+    {
+      // invalid headers are already in the report
+      if(report != null && !(ex instanceof ValidationException))
+      {
+        report.addAborted(inputFile, ex.getLocalizedMessage());
+      }
+      throw ex;
+    }
+  }
+  
+  private void process(boolean writeFiles) throws LaudatioException
+  {
+    this.writeFiles = writeFiles;
+    
     // check if input file exits
-    if (!inputFile.isFile())
+    if (providedInput == null && !inputFile.isFile())
     {
       throw new LaudatioException(messages.
         getString("INPUT FILE DOES NOT EXIST"));
     }
-
-    // read in file
-    SAXBuilder sax = new SAXBuilder();
+    
+    corpusValidator = 
+      corpusSchemeURL == null ? new TEICorpusValidator() : new FromURLValidator(corpusSchemeURL);
+    documentValidator = 
+      documentSchemeURL == null ? new TEIDocumentValidator(): new FromURLValidator(documentSchemeURL);
+    preparationValidator = 
+      preparationSchemeURL == null ? new TEIPreparationValidator(): new FromURLValidator(preparationSchemeURL);
+    corpusValidator.setHeaderType("corpus");
+    documentValidator.setHeaderType("document");
+    preparationValidator.setHeaderType("preparation");
+    corpusValidator.setErrorBudget(errorBudget);
+    corpusValidator.setErrorReporter(errorReporter);
+    documentValidator.setErrorBudget(errorBudget);
+    documentValidator.setErrorReporter(errorReporter);
+    preparationValidator.setErrorBudget(errorBudget);
+    preparationValidator.setErrorReporter(errorReporter);
+    usedOutputFiles = new HashSet<File>();
+    
+    corpusDir = createDirectory("CorpusHeader");
+    documentDir = createDirectory("DocumentHeader");
+    preparationDir = createDirectory("PreparationHeader");
+    
+    if(threads > 1)
+    {
+      // a full queue lets the reading thread do the work itself, which limits
+      // the number of headers that wait in memory
+      executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(4 * threads), 
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+    failure.set(null);
+    
     try
     {
-      Document doc = sax.build(inputFile);
+      try
+      {
+        // falls back to parsing if the input can not be mapped
+        boolean extracted = raw && writeFiles && extractRaw();
+        if(!extracted && streaming)
+        {
+          extractStreaming();
+        }
+        else if(!extracted)
+        {
+          extractFromDocument();
+        }
+      }
+      finally
+      {
+        awaitWorkers();
+      }
       
       TEIValidator.Errors errors = new TEIValidator.Errors();
      
-      errors.putAll(extractMainCorpusHeader(doc));
-      errors.putAll(extractDocumentHeaders(doc));
-      errors.putAll(extractPreparationSteps(doc));
+      errors.addAll(corpusValidator.getErrors());
+      errors.addAll(documentValidator.getErrors());
+      errors.addAll(preparationValidator.getErrors());
       
       if(!errors.isEmpty())
       {
-        System.out.println(TEIValidator.formatParserExceptions(errors));
-        throw new LaudatioException("Source document was invalid");
+        throw new ValidationException("Source document was invalid", errors);
       }
 
     }
@@ -99,6 +289,10 @@ public class SplitTEI
     {
       throw new LaudatioException(ex.getLocalizedMessage());
     }
+    catch (XMLStreamException ex)
+    {
+      throw new LaudatioException(ex.getLocalizedMessage());
+    }
     catch (SAXException ex)
     {
       throw new LaudatioException(TEIValidator.getSAXParserError(ex));
@@ -108,233 +302,857 @@ public class SplitTEI
       throw new LaudatioException(ex.getLocalizedMessage());
     }
   }
-
-  private TEIValidator.Errors extractMainCorpusHeader(Document doc) throws LaudatioException, IOException, SAXException
+  
+  /**
+   * Waits until all dispatched headers have been written and validated and
+   * re-throws the first exception of a worker.
+   */
+  private void awaitWorkers() throws IOException
   {
-    TEIValidator validator = 
-      corpusSchemeURL == null ? new TEICorpusValidator() : new FromURLValidator(corpusSchemeURL);
-    
-    Element corpusHeader = doc.getRootElement().getChild("teiHeader", null);
-    
-    if (corpusHeader != null)
+    if(executor != null)
     {
-      File corpusDir = new File(outputDirectory, "CorpusHeader");
-      if (!corpusDir.exists() && !corpusDir.mkdir())
+      executor.shutdown();
+      try
       {
-        throw new LaudatioException(messages.getString(
-          "COULD NOT CREATE DIRECTORY")
-          + corpusDir.getAbsolutePath());
+        while(!executor.awaitTermination(1, TimeUnit.MINUTES))
+        {
+          // wait until all headers are processed
+        }
       }
-
-      // create the subtree for the global corpus header
-      Namespace teiNS = Namespace.getNamespace(
-        "http://www.tei-c.org/ns/1.0");
-      Element newRootForCorpus = new Element("TEI", teiNS);
-      newRootForCorpus.addContent(corpusHeader.clone());
-      Document corpusDoc = new Document(newRootForCorpus);
-
-      if(corpusSchemeURL == null)
+      catch (InterruptedException ex)
       {
-        corpusDoc.addContent(0, new ProcessingInstruction("xml-model", 
-          "href=\"" + TEICorpusValidator.DEFAULT_SCHEME_URL + "\""));
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+        throw new IOException(ex);
       }
-      else
+      finally
       {
-        corpusDoc.addContent(0, new ProcessingInstruction("xml-model", 
-          "href=\"" + corpusSchemeURL + "\""));
+        executor = null;
       }
-      
-      // we need to append an empty "text" element after the header
-      Element text = new Element("text", teiNS);
-      text.setText("");
-      newRootForCorpus.addContent(text);
-
-      // we work with the copy from now
-      corpusHeader = newRootForCorpus.getChild("teiHeader", null);
-      Preconditions.checkNotNull(corpusHeader, messages.getString(
-          "ERROR NO CORPUS TITLE GIVEN"));
-      
-      Preconditions.checkState("CorpusHeader".equals(corpusHeader.getAttributeValue("type")));
-      
-      Preconditions.checkNotNull(corpusHeader.getChild("fileDesc", null), messages.getString(
-          "ERROR NO CORPUS TITLE GIVEN"));
-      Preconditions.checkNotNull(corpusHeader.getChild("fileDesc", null).getChild("titleStmt", null), messages.getString(
-          "ERROR NO CORPUS TITLE GIVEN"));
-      
-      String title = corpusHeader.getChild("fileDesc", null)
-        .getChild("titleStmt", null)
-        .getChildTextNormalize("title", null);
-      Preconditions.checkNotNull(title, messages.getString(
-          "ERROR NO CORPUS TITLE GIVEN"));
-
-      // save the file with the title as file name
-      File outputFile = new File(corpusDir, title + ".xml");
-      XMLOutputter xmlOut = new XMLOutputter(Format.getPrettyFormat());
-      xmlOut.output(corpusDoc, new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));
-      log.info(messages.getString("WRITTEN CORPUS HEADER"), outputFile.getPath());
-      
-      
-      validator.validate(outputFile);
-      
     }
-    return validator.getErrors();
+    Throwable ex = failure.get();
+    if(ex != null)
+    {
+      Throwables.propagateIfInstanceOf(ex, IOException.class);
+      throw Throwables.propagate(ex);
+    }
   }
   
-  private TEIValidator.Errors extractDocumentHeaders(Document doc) throws LaudatioException, IOException, SAXException
+  /**
+   * Reads the complete input file into memory and extracts the headers.
+   */
+  private void extractFromDocument() throws JDOMException, IOException, 
+    SAXException, LaudatioException
   {
-    TEIValidator validator = 
-      documentSchemeURL == null ? new TEIDocumentValidator(): new FromURLValidator(documentSchemeURL);
+    // read in file
+    SAXBuilder sax = new SAXBuilder();
+    if(!writeFiles)
+    {
+      // remember the original position of each element for error reports
+      sax.setJDOMFactory(new LocatedJDOMFactory());
+    }
+    Document doc;
+    InputSource source = openInput();
+    long start = System.nanoTime();
+    try
+    {
+      doc = sax.build(source);
+    }
+    finally
+    {
+      closeInput(source);
+      parseTimer.stop(start);
+    }
     
-    File documentDir = new File(outputDirectory, "DocumentHeader");
-    if (!documentDir.exists() && !documentDir.mkdir())
+    Element corpusHeader = doc.getRootElement().getChild("teiHeader", null);
+    if (corpusHeader != null)
     {
-      throw new LaudatioException(messages.getString(
-        "COULD NOT CREATE DIRECTORY")
-        + documentDir.getAbsolutePath());
+      extractMainCorpusHeader(corpusHeader);
     }
     
     Element documentRoot = Preconditions.checkNotNull(doc.getRootElement()
       .getChild("teiCorpus", null));
+    for(Element docHeader : documentRoot.getChildren("teiHeader", null))
+    {
+      if(isCancelled())
+      {
+        return;
+      }
+      extractDocumentHeader(docHeader);
+    }
+    
+    Element preparationRoot = Preconditions.checkNotNull(documentRoot
+      .getChild("teiCorpus", null));
+    for(Element preparationHeader : preparationRoot.getChildren("teiHeader", null))
+    {
+      if(isCancelled())
+      {
+        return;
+      }
+      extractPreparationStep(preparationHeader);
+    }
+  }
+  
+  /**
+   * Reads the input file with a StAX parser and extracts each header as soon
+   * as it was read completely. Only one header is held in memory at a time.
+   */
+  private void extractStreaming() throws XMLStreamException, IOException, 
+    SAXException, LaudatioException
+  {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
     
+    JDOMFactory jdomFactory = writeFiles ? new DefaultJDOMFactory() 
+      : new LocatedJDOMFactory();
     
-    for(Element docHeader : documentRoot.getChildren("teiHeader", null))
+    InputSource source = openInput();
+    try
     {
-      Preconditions.checkState("DocumentHeader".equals(docHeader.getAttributeValue("type")));
-      
-      // create the subtree for the global corpus header
-      Namespace teiNS = Namespace.getNamespace(
-        "http://www.tei-c.org/ns/1.0");
-      Element tei = new Element("TEI", teiNS);
-      tei.addContent(docHeader.clone());
-      Document newDoc = new Document(tei);
-      
-      if(documentSchemeURL == null)
+      XMLStreamReader reader;
+      if(source.getByteStream() != null)
       {
-        newDoc.addContent(0, new ProcessingInstruction("xml-model", 
-          "href=\"" + TEIDocumentValidator.DEFAULT_SCHEME_URL + "\""));
+        reader = source.getEncoding() == null
+          ? factory.createXMLStreamReader(source.getByteStream())
+          : factory.createXMLStreamReader(source.getByteStream(), 
+            source.getEncoding());
       }
       else
       {
-        newDoc.addContent(0, new ProcessingInstruction("xml-model", 
-          "href=\"" + documentSchemeURL + "\""));
+        reader = factory.createXMLStreamReader(source.getCharacterStream());
       }
       
-      // we need to append an empty "text" element after the header
-      Element text = new Element("text", teiNS);
-      text.setText("");
-      tei.addContent(text);
-      
-      Element fileDesc = Preconditions.checkNotNull(tei.getChild("teiHeader", null).getChild("fileDesc", null));
-      
-      String outName = UUID.randomUUID().toString();
-      
-      String id = fileDesc.getAttributeValue("id", Namespace.XML_NAMESPACE);
-      if(id != null)
+      // the number of open "teiCorpus" elements tells us the type of the header
+      int depth = 0;
+      boolean corpusHeaderFound = false;
+      // stop reading when the error budget is used up
+      while(reader.hasNext() && !isCancelled())
       {
-        outName = id;
+        int event = reader.next();
+        if(event == XMLStreamConstants.START_ELEMENT)
+        {
+          if("teiCorpus".equals(reader.getLocalName()))
+          {
+            depth++;
+          }
+          else if("teiHeader".equals(reader.getLocalName()))
+          {
+            long start = System.nanoTime();
+            Element header = buildElement(reader, jdomFactory);
+            parseTimer.stop(start);
+            if(depth == 1 && !corpusHeaderFound)
+            {
+              corpusHeaderFound = true;
+              extractMainCorpusHeader(header);
+            }
+            else if(depth == 2)
+            {
+              extractDocumentHeader(header);
+            }
+            else if(depth == 3)
+            {
+              extractPreparationStep(header);
+            }
+          }
+        }
+        else if(event == XMLStreamConstants.END_ELEMENT 
+          && "teiCorpus".equals(reader.getLocalName()))
+        {
+          depth--;
+        }
       }
-      else
+      reader.close();
+    }
+    finally
+    {
+      closeInput(source);
+    }
+  }
+  
+  /**
+   * Memory-maps the input file and copies the bytes of each header into its
+   * output file, only the surrounding "TEI" element is written anew. The 
+   * headers are neither parsed nor formatted again, only the elements needed
+   * for the file name are read.
+   * 
+   * @return False if the input can not be mapped, because it is compressed
+   * or not encoded in an ASCII compatible encoding.
+   */
+  private boolean extractRaw() throws IOException, XMLStreamException
+  {
+    if(providedInput != null || CorpusFiles.isGzip(inputFile))
+    {
+      log.warn(messages.getString("RAW SPLIT NOT POSSIBLE"), 
+        inputFile.getPath());
+      return false;
+    }
+    
+    RandomAccessFile file = new RandomAccessFile(inputFile, "r");
+    try
+    {
+      FileChannel channel = file.getChannel();
+      RawHeaderScanner scanner = new RawHeaderScanner(channel);
+      if(scanner.getCharset() == null)
       {
-        Element titleStmt = Preconditions.checkNotNull(fileDesc.getChild("titleStmt", null));
-        
-        String title = titleStmt.getChildText("title", null);
-        if(title != null)
+        log.warn(messages.getString("RAW SPLIT NOT POSSIBLE"), 
+          inputFile.getPath());
+        return false;
+      }
+      bytesRead.add(channel.size());
+      
+      boolean corpusHeaderFound = false;
+      RawHeaderScanner.Header header;
+      while(!isCancelled() && (header = scanner.next()) != null)
+      {
+        if(header.getDepth() == 1 && !corpusHeaderFound)
+        {
+          corpusHeaderFound = true;
+          Preconditions.checkState("CorpusHeader".equals(header.getType()));
+          String title = header.readNames().getTitle();
+          Preconditions.checkNotNull(title, messages.getString(
+            "ERROR NO CORPUS TITLE GIVEN"));
+          File outputFile = outputFile(corpusDir, 
+            Text.normalizeString(title));
+          copyRaw(channel, header, outputFile, corpusSchemeURL == null 
+            ? TEICorpusValidator.DEFAULT_SCHEME_URL : corpusSchemeURL);
+          dispatchValidation(outputFile, corpusValidator, 
+            "WRITTEN CORPUS HEADER");
+        }
+        else if(header.getDepth() == 2)
+        {
+          Preconditions.checkState("DocumentHeader".equals(header.getType()));
+          RawHeaderScanner.Names names = header.readNames();
+          File outputFile = outputFile(documentDir, 
+            documentFileName(names.getId(), names.getTitle()));
+          copyRaw(channel, header, outputFile, documentSchemeURL == null 
+            ? TEIDocumentValidator.DEFAULT_SCHEME_URL : documentSchemeURL);
+          dispatchValidation(outputFile, documentValidator, 
+            "WRITTEN DOCUMENT HEADER");
+        }
+        else if(header.getDepth() == 3)
         {
-          outName = title;
+          Preconditions.checkState("PreparationHeader".equals(header.getType()));
+          File outputFile = outputFile(preparationDir, 
+            preparationFileName(header.readNames().getCorresp()));
+          copyRaw(channel, header, outputFile, preparationSchemeURL == null 
+            ? TEIPreparationValidator.DEFAULT_SCHEME_URL : preparationSchemeURL);
+          dispatchValidation(outputFile, preparationValidator, 
+            "WRITTEN PREPARATION HEADER");
         }
       }
-      
-      
-      File outputFile = new File(documentDir, outName + ".xml");
-      XMLOutputter xmlOut = new XMLOutputter(Format.getPrettyFormat());
-      xmlOut.output(newDoc, new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));
-      log.info(messages.getString("WRITTEN DOCUMENT HEADER"), outputFile.getPath());
-      
-      
-      validator.validate(outputFile);
-      
     }
-    return validator.getErrors();
+    finally
+    {
+      // the workers only read the written files
+      file.close();
+    }
+    return true;
   }
   
-  private TEIValidator.Errors extractPreparationSteps(Document doc) throws LaudatioException, IOException, SAXException
+  private void copyRaw(FileChannel input, RawHeaderScanner.Header header, 
+    File outputFile, String schemeURL) throws IOException
   {
-    TEIValidator validator = 
-      preparationSchemeURL == null ? new TEIPreparationValidator(): new FromURLValidator(preparationSchemeURL);
-    Multiset<String> knownPreparationTitles = HashMultiset.create();
+    long start = System.nanoTime();
+    FileOutputStream out = new FileOutputStream(outputFile);
+    long written;
+    try
+    {
+      written = copyRawHeader(input, header.getStart(), header.getEnd(), 
+        header.getInheritedNamespaces(), header.getCharset(), schemeURL, 
+        output.getFormat(), out.getChannel());
+    }
+    finally
+    {
+      out.close();
+    }
     
-    File documentDir = new File(outputDirectory, "PreparationHeader");
-    if (!documentDir.exists() && !documentDir.mkdir())
+    bytesWritten.add(written);
+    writeTimer.stop(start);
+    headersWritten.increment();
+  }
+  
+  /**
+   * Writes the "TEI" element with the "xml-model" processing instruction 
+   * and the empty "text" element, and transfers the original bytes of a 
+   * header from the input channel in between. This is the raw equivalent of
+   * {@link #createHeaderDocument(org.jdom2.Element, java.lang.String) }.
+   * 
+   * @param input A merged corpus.
+   * @param start The offset of the header.
+   * @param end The offset after the header.
+   * @param inheritedNamespaces Namespace declarations of the "teiCorpus"
+   * elements the header was nested in, which are added to the "TEI" element.
+   * @param charset The encoding of the input, which is also used for the
+   * output.
+   * @param schemeURL 
+   * @param format Only the line separator and indentation is used.
+   * @param out 
+   * @return The number of written bytes.
+   * @throws IOException 
+   */
+  static long copyRawHeader(FileChannel input, long start, long end, 
+    String inheritedNamespaces, Charset charset, String schemeURL, 
+    Format format, WritableByteChannel out) throws IOException
+  {
+    long written = writeFully(out, ByteBuffer.wrap(getRawPrefix(
+      inheritedNamespaces, schemeURL, charset, format).getBytes(charset)));
+    long position = start;
+    while(position < end)
     {
-      throw new LaudatioException(messages.getString(
-        "COULD NOT CREATE DIRECTORY")
-        + documentDir.getAbsolutePath());
+      position += input.transferTo(position, end - position, out);
+    }
+    written += end - start;
+    written += writeFully(out, ByteBuffer.wrap(
+      getRawSuffix(format).getBytes(charset)));
+    return written;
+  }
+  
+  /**
+   * Get everything which is written before the raw bytes of a header.
+   */
+  static String getRawPrefix(String inheritedNamespaces, String schemeURL, 
+    Charset charset, Format format)
+  {
+    String ls = format.getLineSeparator();
+    String indent = format.getIndent();
+    return "<?xml version=\"1.0\" encoding=\"" + charset.name() + "\"?>" + ls 
+      + "<?xml-model href=\"" + schemeURL + "\"?>" + ls
+      + "<TEI xmlns=\"" + TEICorpusWriter.TEI_NS.getURI() + "\"" 
+      + inheritedNamespaces + ">" + (indent == null ? "" : ls + indent);
+  }
+  
+  /**
+   * Get everything which is written after the raw bytes of a header.
+   */
+  static String getRawSuffix(Format format)
+  {
+    String ls = format.getLineSeparator();
+    String indent = format.getIndent();
+    return indent == null ? "<text /></TEI>" + ls 
+      : ls + indent + "<text />" + ls + "</TEI>" + ls;
+  }
+  
+  private static int writeFully(WritableByteChannel channel, ByteBuffer buffer) 
+    throws IOException
+  {
+    int length = buffer.remaining();
+    while(buffer.hasRemaining())
+    {
+      channel.write(buffer);
     }
+    return length;
+  }
+  
+  /**
+   * Opens the input file or returns the provided input.
+   */
+  private InputSource openInput() throws IOException
+  {
+    if(providedInput != null)
+    {
+      Preconditions.checkState(!providedInputRead, 
+        "the provided input can only be read once");
+      providedInputRead = true;
+      return providedInput;
+    }
+    InputSource source = new InputSource(CorpusFiles.open(inputFile));
+    source.setSystemId(inputFile.toURI().toString());
+    return source;
+  }
+  
+  /**
+   * Closes the input unless it was provided by the caller.
+   */
+  private void closeInput(InputSource source) throws IOException
+  {
+    if(source != providedInput)
+    {
+      source.getByteStream().close();
+    }
+  }
+  
+  /**
+   * Builds the element at the current position of the reader including its
+   * content. Afterwards the reader is positioned at the end of the element.
+   */
+  private static Element buildElement(XMLStreamReader reader, 
+    JDOMFactory factory) throws XMLStreamException
+  {
+    Element root = null;
+    Element current = null;
+    do
+    {
+      Location loc = reader.getLocation();
+      int line = loc.getLineNumber();
+      int col = loc.getColumnNumber();
+      switch(reader.getEventType())
+      {
+        case XMLStreamConstants.START_ELEMENT:
+          Element e = factory.element(line, col, reader.getLocalName(), 
+            Namespace.getNamespace(Strings.nullToEmpty(reader.getPrefix()), 
+            Strings.nullToEmpty(reader.getNamespaceURI())));
+          for(int i=0; i < reader.getNamespaceCount(); i++)
+          {
+            String prefix = Strings.nullToEmpty(reader.getNamespacePrefix(i));
+            if(!prefix.equals(e.getNamespacePrefix()))
+            {
+              factory.addNamespaceDeclaration(e, Namespace.getNamespace(prefix, 
+                Strings.nullToEmpty(reader.getNamespaceURI(i))));
+            }
+          }
+          for(int i=0; i < reader.getAttributeCount(); i++)
+          {
+            String prefix = Strings.nullToEmpty(reader.getAttributePrefix(i));
+            Namespace ns = prefix.isEmpty() ? Namespace.NO_NAMESPACE 
+              : Namespace.getNamespace(prefix, reader.getAttributeNamespace(i));
+            factory.setAttribute(e, factory.attribute(
+              reader.getAttributeLocalName(i), reader.getAttributeValue(i), ns));
+          }
+          if(current == null)
+          {
+            root = e;
+          }
+          else
+          {
+            factory.addContent(current, e);
+          }
+          current = e;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          current = current.getParentElement();
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          factory.addContent(current, factory.text(line, col, reader.getText()));
+          break;
+        case XMLStreamConstants.CDATA:
+          factory.addContent(current, factory.cdata(line, col, reader.getText()));
+          break;
+        case XMLStreamConstants.COMMENT:
+          factory.addContent(current, factory.comment(line, col, reader.getText()));
+          break;
+        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+          factory.addContent(current, factory.processingInstruction(line, col, 
+            reader.getPITarget(), reader.getPIData()));
+          break;
+        case XMLStreamConstants.ENTITY_REFERENCE:
+          factory.addContent(current, factory.entityRef(line, col, 
+            reader.getLocalName()));
+          break;
+      }
+    } while(current != null && reader.hasNext() && reader.next() > 0);
     
-    Preconditions.checkNotNull(doc.getRootElement()
-      .getChild("teiCorpus", null));
-    Element preparationRoot = Preconditions.checkNotNull(doc.getRootElement()
-      .getChild("teiCorpus", null).getChild("teiCorpus", null));
+    return root;
+  }
+
+  private void extractMainCorpusHeader(Element corpusHeader) throws LaudatioException, IOException, SAXException
+  {
+    // create the subtree for the global corpus header
+    Document corpusDoc = createHeaderDocument(corpusHeader, 
+      corpusSchemeURL == null ? TEICorpusValidator.DEFAULT_SCHEME_URL : corpusSchemeURL);
+
+    // we work with the copy from now
+    corpusHeader = corpusDoc.getRootElement().getChild("teiHeader", null);
+    Preconditions.checkNotNull(corpusHeader, messages.getString(
+        "ERROR NO CORPUS TITLE GIVEN"));
+
+    Preconditions.checkState("CorpusHeader".equals(corpusHeader.getAttributeValue("type")));
+
+    Preconditions.checkNotNull(corpusHeader.getChild("fileDesc", null), messages.getString(
+        "ERROR NO CORPUS TITLE GIVEN"));
+    Preconditions.checkNotNull(corpusHeader.getChild("fileDesc", null).getChild("titleStmt", null), messages.getString(
+        "ERROR NO CORPUS TITLE GIVEN"));
+
+    String title = corpusHeader.getChild("fileDesc", null)
+      .getChild("titleStmt", null)
+      .getChildTextNormalize("title", null);
+    Preconditions.checkNotNull(title, messages.getString(
+        "ERROR NO CORPUS TITLE GIVEN"));
+
+    // save the file with the title as file name
+    File outputFile = outputFile(corpusDir, title);
+    dispatch(corpusDoc, outputFile, corpusValidator, "WRITTEN CORPUS HEADER");
+  }
+  
+  private void extractDocumentHeader(Element docHeader) throws LaudatioException, IOException, SAXException
+  {
+    Preconditions.checkState("DocumentHeader".equals(docHeader.getAttributeValue("type")));
+
+    // create the subtree for the document header
+    Document newDoc = createHeaderDocument(docHeader, 
+      documentSchemeURL == null ? TEIDocumentValidator.DEFAULT_SCHEME_URL : documentSchemeURL);
+    Element tei = newDoc.getRootElement();
+
+    Element fileDesc = Preconditions.checkNotNull(tei.getChild("teiHeader", null).getChild("fileDesc", null));
+
+    String id = fileDesc.getAttributeValue("id", Namespace.XML_NAMESPACE);
+    String title = null;
+    if(id == null)
+    {
+      Element titleStmt = Preconditions.checkNotNull(fileDesc.getChild("titleStmt", null));
+      title = titleStmt.getChildText("title", null);
+    }
+
+    File outputFile = outputFile(documentDir, documentFileName(id, title));
+    dispatch(newDoc, outputFile, documentValidator, "WRITTEN DOCUMENT HEADER");
+  }
+  
+  private void extractPreparationStep(Element preparationHeader) throws LaudatioException, IOException, SAXException
+  {
+    Preconditions.checkState("PreparationHeader".equals(preparationHeader.getAttributeValue("type")));
+
+    // create the subtree for the preparation header
+    Document newDoc = createHeaderDocument(preparationHeader, 
+      preparationSchemeURL == null ? TEIPreparationValidator.DEFAULT_SCHEME_URL : preparationSchemeURL);
+    Element tei = newDoc.getRootElement();
+
+    Element fileDesc = Preconditions.checkNotNull(tei.getChild("teiHeader", null).getChild("fileDesc", null));
+
+    Element titleStmt = Preconditions.checkNotNull(fileDesc.getChild("titleStmt", null));
+    Element title = Preconditions.checkNotNull(titleStmt.getChild("title", null));
+    String corresp = title.getAttributeValue("corresp");
+
+    File outputFile = outputFile(preparationDir, preparationFileName(corresp));
+    dispatch(newDoc, outputFile, preparationValidator, "WRITTEN PREPARATION HEADER");
+  }
+  
+  /**
+   * Get the file name of a document header without extension.
+   * 
+   * @param id The "xml:id" of the "fileDesc" or null.
+   * @param title The title or null.
+   * @return The ID, the title or a random name if both are not given.
+   */
+  private static String documentFileName(String id, String title)
+  {
+    if(id != null)
+    {
+      return id;
+    }
+    return title == null ? UUID.randomUUID().toString() : title;
+  }
+  
+  /**
+   * Get the file name of a preparation header without extension.
+   * 
+   * @param corresp The "corresp" attribute of the title or null.
+   * @return The "corresp" value or a random name.
+   */
+  private static String preparationFileName(String corresp)
+  {
+    return corresp == null ? UUID.randomUUID().toString() : corresp;
+  }
+  
+  /**
+   * Get the output file of a header. Headers with the same name are numbered
+   * in the order of the input ("name_2.xml", ...). This has to be called by 
+   * the reading thread before the header is dispatched, so two workers never
+   * write the same file.
+   * 
+   * @param dir
+   * @param name The file name without extension.
+   * @return 
+   */
+  private File outputFile(File dir, String name)
+  {
+    File f = new File(dir, name + ".xml");
+    int count = 1;
+    while(!usedOutputFiles.add(f))
+    {
+      count++;
+      f = new File(dir, name + "_" + count + ".xml");
+    }
+    if(count > 1)
+    {
+      log.warn(messages.getString("MORE THAN ONE HEADER WITH THE SAME NAME"), 
+        name, f.getName());
+    }
+    return f;
+  }
+  
+  /**
+   * Creates a new TEI document which contains a copy of the header.
+   * 
+   * @param header
+   * @param schemeURL The scheme which is referenced in the "xml-model" 
+   * processing instruction.
+   * @return 
+   */
+  static Document createHeaderDocument(Element header, String schemeURL)
+  {
+    Namespace teiNS = Namespace.getNamespace(
+      "http://www.tei-c.org/ns/1.0");
+    Element tei = new Element("TEI", teiNS);
+    long start = System.nanoTime();
+    tei.addContent(header.clone());
+    cloneTimer.stop(start);
+    Document newDoc = new Document(tei);
     
-    for(Element preparationHeader : preparationRoot.getChildren("teiHeader", null))
+    newDoc.addContent(0, new ProcessingInstruction("xml-model", 
+      "href=\"" + schemeURL + "\""));
+    
+    // we need to append an empty "text" element after the header
+    Element text = new Element("text", teiNS);
+    text.setText("");
+    tei.addContent(text);
+    
+    return newDoc;
+  }
+  
+  private File createDirectory(String name) throws LaudatioException
+  {
+    File dir = new File(outputDirectory, name);
+    if (writeFiles && !dir.exists() && !dir.mkdir())
     {
-      Preconditions.checkState("PreparationHeader".equals(preparationHeader.getAttributeValue("type")));
-      
-      // create the subtree for the global corpus header
-      Namespace teiNS = Namespace.getNamespace(
-        "http://www.tei-c.org/ns/1.0");
-      Element tei = new Element("TEI", teiNS);
-      tei.addContent(preparationHeader.clone());
-      Document newDoc = new Document(tei);
-      
-      
-      if(preparationSchemeURL == null)
+      throw new LaudatioException(messages.getString(
+        "COULD NOT CREATE DIRECTORY")
+        + dir.getAbsolutePath());
+    }
+    return dir;
+  }
+  
+  /**
+   * Writes and validates the header document in a worker thread if more than
+   * one thread is configured. Otherwise this is done by the calling thread.
+   */
+  private void dispatch(final Document headerDoc, final File outputFile, 
+    final TEIValidator validator, final String writtenMessage) throws IOException
+  {
+    dispatch(new HeaderTask()
+    {
+      @Override
+      public void run() throws IOException
       {
-        newDoc.addContent(0, new ProcessingInstruction("xml-model", 
-          "href=\"" + TEIPreparationValidator.DEFAULT_SCHEME_URL + "\""));
+        writeAndValidate(headerDoc, outputFile, validator, writtenMessage);
       }
-      else
+    });
+  }
+  
+  /**
+   * Validates a header file which was already written.
+   */
+  private void dispatchValidation(final File outputFile, 
+    final TEIValidator validator, String writtenMessage) throws IOException
+  {
+    log.info(messages.getString(writtenMessage), outputFile.getPath());
+    dispatch(new HeaderTask()
+    {
+      @Override
+      public void run() throws IOException
       {
-        newDoc.addContent(0, new ProcessingInstruction("xml-model", 
-          "href=\"" + preparationSchemeURL + "\""));
+        validateFile(outputFile, validator);
       }
-      
-      // we need to append an empty "text" element after the header
-      Element text = new Element("text", teiNS);
-      text.setText("");
-      tei.addContent(text);
-      
-      Element fileDesc = Preconditions.checkNotNull(tei.getChild("teiHeader", null).getChild("fileDesc", null));
-      
-      String outName = UUID.randomUUID().toString();
-
-      Element titleStmt = Preconditions.checkNotNull(fileDesc.getChild("titleStmt", null));
-      Element title = Preconditions.checkNotNull(titleStmt.getChild("title", null));
-      String corresp = title.getAttributeValue("corresp");
-      if(corresp != null)
+    });
+  }
+  
+  /**
+   * Work on a single header which can be done by a worker thread.
+   */
+  private interface HeaderTask
+  {
+    void run() throws IOException;
+  }
+  
+  private void dispatch(final HeaderTask task) throws IOException
+  {
+    if(isCancelled())
+    {
+      return;
+    }
+    if(executor == null)
+    {
+      task.run();
+    }
+    else
+    {
+      executor.execute(new Runnable()
       {
-        if(knownPreparationTitles.contains(corresp))
-        {
-          knownPreparationTitles.add(corresp);
-          outName = corresp +  "_" + knownPreparationTitles.count(corresp);
-          log.warn(messages.getString("MORE THAN ONE PREPARATION HEADER"), corresp);
-        }
-        else
+        @Override
+        public void run()
         {
-          outName = corresp;
-          knownPreparationTitles.add(corresp);
+          if(failure.get() != null || isCancelled())
+          {
+            // we will fail anyway
+            return;
+          }
+          try
+          {
+            task.run();
+          }
+          catch (IOException ex)
+          {
+            failure.compareAndSet(null, ex);
+          }
+          catch (RuntimeException ex)
+          {
+            failure.compareAndSet(null, ex);
+          }
         }
-      }
-      
-      File outputFile = new File(documentDir, outName + ".xml");
-      XMLOutputter xmlOut = new XMLOutputter(Format.getPrettyFormat());
-      xmlOut.output(newDoc, new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));
-      log.info(messages.getString("WRITTEN PREPARATION HEADER"), outputFile.getPath());
-      
-      validator.validate(outputFile);
-      
+      });
     }
-    return validator.getErrors();
+  }
+  
+  /**
+   * Writes the header document to the output file and validates the written
+   * file. If no files should be written the document is validated in memory
+   * and errors are reported for the input file.
+   */
+  private void writeAndValidate(Document headerDoc, File outputFile, 
+    TEIValidator validator, String writtenMessage) throws IOException
+  {
+    if(writeFiles)
+    {
+      output.write(headerDoc, outputFile);
+      log.info(messages.getString(writtenMessage), outputFile.getPath());
+      validateFile(outputFile, validator);
+    }
+    else
+    {
+      long start = System.nanoTime();
+      boolean valid = validator.validate(headerDoc, inputFile);
+      record(inputFile, validator, valid, start);
+    }
+  }
+  
+  private void validateFile(File outputFile, TEIValidator validator) 
+    throws IOException
+  {
+    long start = System.nanoTime();
+    boolean valid = validator.validate(outputFile);
+    record(outputFile, validator, valid, start);
+  }
+  
+  /**
+   * @return True if the error budget is used up.
+   */
+  private boolean isCancelled()
+  {
+    return errorBudget != null && errorBudget.isExhausted();
+  }
+  
+  private void record(File f, TEIValidator validator, boolean valid, 
+    long start)
+  {
+    if(report != null)
+    {
+      report.add(f, validator, valid, false, System.nanoTime() - start);
+    }
+  }
+
+  public boolean isCompact()
+  {
+    return output.isCompact();
+  }
+
+  /**
+   * If set, the header files are written without indentation.
+   * 
+   * @param compact 
+   */
+  public void setCompact(boolean compact)
+  {
+    this.output = new XMLFileOutput(compact);
+  }
+
+  public boolean isStreaming()
+  {
+    return streaming;
+  }
+
+  /**
+   * If set, the input file is not loaded into memory completely but read 
+   * with a StAX parser. Memory consumption is then limited by the size of the
+   * largest header.
+   * 
+   * @param streaming 
+   */
+  public void setStreaming(boolean streaming)
+  {
+    this.streaming = streaming;
+  }
+
+  public boolean isRaw()
+  {
+    return raw;
+  }
+
+  /**
+   * If set, the input file is memory-mapped and the original bytes of each
+   * header are copied into the header files. The headers are not parsed and
+   * keep their formatting, the "compact" setting only applies to the 
+   * surrounding "TEI" element. Compressed or non-ASCII compatible input is 
+   * split as usual.
+   * 
+   * @param raw 
+   */
+  public void setRaw(boolean raw)
+  {
+    this.raw = raw;
+  }
+
+  public int getThreads()
+  {
+    return threads;
+  }
+
+  /**
+   * Set the number of threads used to write and validate the extracted 
+   * headers. The names of the output files do not depend on this setting.
+   * 
+   * @param threads 
+   */
+  public void setThreads(int threads)
+  {
+    this.threads = threads;
+  }
+
+  public ValidationReport getReport()
+  {
+    return report;
+  }
+
+  /**
+   * Set a report which records the result and duration of the validation 
+   * of every header.
+   * 
+   * @param report The report or null.
+   */
+  public void setReport(ValidationReport report)
+  {
+    this.report = report;
+  }
+
+  public ErrorBudget getErrorBudget()
+  {
+    return errorBudget;
+  }
+
+  /**
+   * Set a budget for the number of errors. When it is used up the rest of 
+   * the input file is neither read nor split.
+   * 
+   * @param errorBudget The budget or null to validate all headers.
+   */
+  public void setErrorBudget(ErrorBudget errorBudget)
+  {
+    this.errorBudget = errorBudget;
+  }
+
+  public ErrorReporter getErrorReporter()
+  {
+    return errorReporter;
+  }
+
+  /**
+   * Set a reporter which gets the errors of each header as soon as it was
+   * validated.
+   * 
+   * @param errorReporter The reporter or null to report the errors only with
+   * the {@link ValidationException}.
+   */
+  public void setErrorReporter(ErrorReporter errorReporter)
+  {
+    this.errorReporter = errorReporter;
   }
   
 }
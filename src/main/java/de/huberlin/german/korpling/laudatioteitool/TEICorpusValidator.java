@@ -4,10 +4,8 @@
  */
 package de.huberlin.german.korpling.laudatioteitool;
 
-import static de.huberlin.german.korpling.laudatioteitool.TEIValidator.compactSchemaFactory;
-import java.util.logging.Level;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Validator;
+import java.io.IOException;
+import javax.xml.validation.Schema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
@@ -23,28 +21,35 @@ public class TEICorpusValidator extends TEIValidator
   public static final String DEFAULT_SCHEME_URL 
     = "http://korpling.german.hu-berlin.de/schemata/laudatio/teiODD_LAUDATIOCorpus_Scheme7.rng";
   
-  private Validator validator = null;
-  
+  private Schema schema = null;
+
   public TEICorpusValidator()
   {
-    
-    StreamSource source =
-      new StreamSource(
-      TEICorpusValidator.class.getResourceAsStream(
-      "default_corpus.rng"));
+    setHeaderType("corpus");
     try
     {
-      this.validator = xmlSchemaFactory.newSchema(source).newValidator();
+      this.schema = SchemaCache.getInstance().getSchema(
+        TEICorpusValidator.class.getResource("default_corpus.rng"));
     }
     catch (SAXException ex)
     {
       log.error(null, ex);
     }
+    catch (IOException ex)
+    {
+      log.error(null, ex);
+    }
+  }
+
+  @Override
+  public Schema getSchema()
+  {
+    return schema;
   }
 
   @Override
-  public Validator getValidator()
+  public String getSchemaLocation()
   {
-    return validator;
+    return DEFAULT_SCHEME_URL;
   }
 }
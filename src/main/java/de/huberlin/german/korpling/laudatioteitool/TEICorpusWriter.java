@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.io.Writer;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.output.Format;
+import org.jdom2.output.support.AbstractXMLOutputProcessor;
+import org.jdom2.output.support.FormatStack;
+import org.jdom2.util.NamespaceStack;
+
+/**
+ * Writes a merged "teiCorpus" document piece by piece. Only the header that
+ * is currently written needs to be in memory, the output is the same as if
+ * the complete document was written with an {@link org.jdom2.output.XMLOutputter}
+ * and the same {@link Format}.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class TEICorpusWriter extends AbstractXMLOutputProcessor
+{
+
+  public static final Namespace TEI_NS =
+    Namespace.getNamespace("http://www.tei-c.org/ns/1.0");
+
+  private static final Metrics.Timer writeTimer =
+    Metrics.getInstance().timer("write");
+  private static final Metrics.Counter headersWritten =
+    Metrics.getInstance().counter("headers_written");
+
+  private final Writer out;
+  private final FormatStack fstack;
+  private final NamespaceStack nstack = new NamespaceStack();
+  private int depth = 0;
+
+  public TEICorpusWriter(Writer out, Format format)
+  {
+    this.out = out;
+    this.fstack = new FormatStack(format);
+  }
+
+  /**
+   * Starts a new (possible nested) "teiCorpus" element. The first call also
+   * writes the XML declaration.
+   *
+   * @throws IOException
+   */
+  public void startCorpus() throws IOException
+  {
+    Element corpus = new Element("teiCorpus", TEI_NS);
+    if(depth == 0)
+    {
+      printDeclaration(out, fstack);
+    }
+    else
+    {
+      pad(fstack.getPadBetween());
+    }
+
+    write(out, "<teiCorpus");
+    // only declares the TEI namespace if not already done by a parent
+    nstack.push(corpus);
+    for(Namespace ns : nstack.addedForward())
+    {
+      printNamespace(out, fstack, ns);
+    }
+    write(out, ">");
+
+    fstack.push();
+    depth++;
+  }
+
+  /**
+   * Writes a header as child of the current "teiCorpus" element.
+   *
+   * @param header
+   * @throws IOException
+   */
+  public void writeHeader(Element header) throws IOException
+  {
+    Preconditions.checkState(depth > 0, "no open teiCorpus element");
+    long start = System.nanoTime();
+    pad(fstack.getPadBetween());
+    printElement(out, fstack, nstack, header);
+    writeTimer.stop(start);
+    headersWritten.increment();
+  }
+
+  /**
+   * Writes a header which was already serialized as child of a "teiCorpus"
+   * element of the same depth and with the same {@link Format}, e.g. a header
+   * copied from a previous merged file.
+   *
+   * @param header
+   * @throws IOException
+   */
+  public void writeSerializedHeader(String header) throws IOException
+  {
+    Preconditions.checkState(depth > 0, "no open teiCorpus element");
+    pad(fstack.getPadBetween());
+    write(out, header);
+    headersWritten.increment();
+  }
+
+  /**
+   * Closes the current "teiCorpus" element.
+   *
+   * @throws IOException
+   */
+  public void endCorpus() throws IOException
+  {
+    Preconditions.checkState(depth > 0, "no open teiCorpus element");
+    pad(fstack.getPadLast());
+    fstack.pop();
+    nstack.pop();
+    depth--;
+
+    write(out, "</teiCorpus>");
+    if(depth == 0)
+    {
+      // end of the document
+      pad(fstack.getLineSeparator());
+      out.flush();
+    }
+  }
+
+  private void pad(String padding) throws IOException
+  {
+    if(padding != null)
+    {
+      write(out, padding);
+    }
+  }
+}
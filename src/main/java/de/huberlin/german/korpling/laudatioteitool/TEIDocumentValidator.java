@@ -4,8 +4,8 @@
  */
 package de.huberlin.german.korpling.laudatioteitool;
 
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Validator;
+import java.io.IOException;
+import javax.xml.validation.Schema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
@@ -23,29 +23,35 @@ public class TEIDocumentValidator extends TEIValidator
   public static final String DEFAULT_SCHEME_URL 
     = "http://korpling.german.hu-berlin.de/schemata/laudatio/teiODD_LAUDATIODocument_Scheme7.rng";
   
-  private Validator validator = null;
+  private Schema schema = null;
 
   public TEIDocumentValidator()
   {
-    StreamSource source =
-      new StreamSource(
-      TEIDocumentValidator.class.getResourceAsStream(
-      "default_document.rng"));
+    setHeaderType("document");
     try
     {
-      this.validator = xmlSchemaFactory.newSchema(source).newValidator();
+      this.schema = SchemaCache.getInstance().getSchema(
+        TEIDocumentValidator.class.getResource("default_document.rng"));
     }
     catch (SAXException ex)
     {
       log.error(null, ex);
     }
+    catch (IOException ex)
+    {
+      log.error(null, ex);
+    }
   }
 
   @Override
-  public Validator getValidator()
+  public Schema getSchema()
   {
-    return validator;
+    return schema;
+  }
+
+  @Override
+  public String getSchemaLocation()
+  {
+    return DEFAULT_SCHEME_URL;
   }
-  
-  
 }
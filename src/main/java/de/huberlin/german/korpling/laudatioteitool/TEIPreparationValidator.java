@@ -4,9 +4,8 @@
  */
 package de.huberlin.german.korpling.laudatioteitool;
 
-import static de.huberlin.german.korpling.laudatioteitool.TEIValidator.compactSchemaFactory;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Validator;
+import java.io.IOException;
+import javax.xml.validation.Schema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
@@ -24,28 +23,35 @@ public class TEIPreparationValidator extends TEIValidator
   public static final String DEFAULT_SCHEME_URL 
     = "http://korpling.german.hu-berlin.de/schemata/laudatio/teiODD_LAUDATIOPreparation_Scheme7.rng";
   
-  private Validator validator = null;
+  private Schema schema = null;
 
-  
   public TEIPreparationValidator()
   {
-    StreamSource source = new StreamSource(
-      TEIPreparationValidator.class.getResourceAsStream(
-      "default_preparation.rng"));
+    setHeaderType("preparation");
     try
     {
-      this.validator = xmlSchemaFactory.newSchema(source).newValidator();
+      this.schema = SchemaCache.getInstance().getSchema(
+        TEIPreparationValidator.class.getResource("default_preparation.rng"));
     }
     catch (SAXException ex)
     {
       log.error(null, ex);
     }
+    catch (IOException ex)
+    {
+      log.error(null, ex);
+    }
   }
 
   @Override
-  public Validator getValidator()
+  public Schema getSchema()
   {
-    return validator;
+    return schema;
+  }
+
+  @Override
+  public String getSchemaLocation()
+  {
+    return DEFAULT_SCHEME_URL;
   }
-  
 }
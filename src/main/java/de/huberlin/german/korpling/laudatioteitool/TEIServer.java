@@ -0,0 +1,558 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXParseException;
+
+/**
+ * A resident HTTP server which keeps the compiled schemes in memory. It only
+ * listens on the loopback interface and offers the following operations:
+ * 
+ * <ul>
+ * <li>POST /validate with input=&lt;file or directory&gt;</li>
+ * <li>POST /split with input=&lt;file&gt;&amp;output=&lt;directory&gt;</li>
+ * <li>POST /merge with input=&lt;directory&gt;&amp;output=&lt;file&gt;</li>
+ * <li>GET /status</li>
+ * <li>GET /metrics</li>
+ * </ul>
+ * 
+ * The parameters are sent form encoded in the body or in the query string.
+ * The optional parameters "schemecorpus", "schemedoc", "schemeprep", 
+ * "threads", "streaming", "compact", "raw" and "sorted" have the same meaning
+ * as on the command line.
+ * The result is a JSON object, the HTTP status code is 200 on success, 
+ * 422 if a header was invalid, 400 for a malformed request and 500 for any
+ * other error. "/metrics" returns the collected {@link Metrics} in the 
+ * Prometheus text format instead.
+ * 
+ * Since any web page can send requests to a local server, every request must
+ * use "localhost" as host name, must not come from another origin and must
+ * carry the token of the server in an "Authorization: Bearer" header. The 
+ * token is chosen randomly whenever a server is created. Relative paths are
+ * resolved against the root directory of the server and no path outside of 
+ * it is accepted.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class TEIServer
+{
+
+  private final static Logger log = LoggerFactory.getLogger(TEIServer.class);
+  private static final ResourceBundle messages = ResourceBundle.getBundle(
+    "de/huberlin/german/korpling/laudatioteitool/Messages");
+
+  /**
+   * Maximal size of a request body.
+   */
+  private static final int MAX_BODY_SIZE = 64 * 1024;
+
+  private static final List<String> LOCAL_HOSTS = Arrays.asList("localhost",
+    "127.0.0.1", "[::1]");
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final File root;
+  private final String token;
+
+  /**
+   * Creates a server for the given port on the loopback interface.
+   * 
+   * @param port The port or 0 to choose a free one.
+   * @param threads Maximal number of requests handled in parallel.
+   * @param root Only files inside this directory can be read or written.
+   * @throws IOException 
+   */
+  public TEIServer(int port, int threads, File root) throws IOException
+  {
+    this.root = root.getCanonicalFile();
+    byte[] random = new byte[16];
+    new SecureRandom().nextBytes(random);
+    this.token = BaseEncoding.base16().lowerCase().encode(random);
+
+    server = HttpServer.create(new InetSocketAddress(
+      InetAddress.getByName(null), port), 0);
+    executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    server.setExecutor(executor);
+
+    server.createContext("/validate", new OperationHandler()
+    {
+      @Override
+      protected void execute(Map<String, String> params) throws
+        LaudatioException
+      {
+        File input = getFile(params, "input");
+        if (input.isDirectory() || CorpusFiles.isZip(input))
+        {
+          MergeTEI merge = new MergeTEI(input, null,
+            params.get("schemecorpus"), params.get("schemedoc"), 
+            params.get("schemeprep"));
+          merge.setThreads(getThreads(params));
+          merge.setSorted(Boolean.parseBoolean(params.get("sorted")));
+          merge.validate();
+        }
+        else
+        {
+          SplitTEI split = new SplitTEI(input, null,
+            params.get("schemecorpus"), params.get("schemedoc"), 
+            params.get("schemeprep"));
+          split.setStreaming(Boolean.parseBoolean(params.get("streaming")));
+          split.setThreads(getThreads(params));
+          split.validate();
+        }
+      }
+    });
+    server.createContext("/split", new OperationHandler()
+    {
+      @Override
+      protected void execute(Map<String, String> params) throws
+        LaudatioException
+      {
+        SplitTEI split = new SplitTEI(getFile(params, "input"), 
+          getFile(params, "output"),
+          params.get("schemecorpus"), params.get("schemedoc"), 
+          params.get("schemeprep"));
+        split.setStreaming(Boolean.parseBoolean(params.get("streaming")));
+        split.setThreads(getThreads(params));
+        split.setCompact(Boolean.parseBoolean(params.get("compact")));
+        split.setRaw(Boolean.parseBoolean(params.get("raw")));
+        split.split();
+      }
+    });
+    server.createContext("/merge", new OperationHandler()
+    {
+      @Override
+      protected void execute(Map<String, String> params) throws
+        LaudatioException
+      {
+        MergeTEI merge = new MergeTEI(getFile(params, "input"), 
+          getFile(params, "output"),
+          params.get("schemecorpus"), params.get("schemedoc"), 
+          params.get("schemeprep"));
+        merge.setThreads(getThreads(params));
+        merge.setCompact(Boolean.parseBoolean(params.get("compact")));
+        merge.setSorted(Boolean.parseBoolean(params.get("sorted")));
+        merge.merge();
+      }
+    });
+    server.createContext("/status", new GuardedHandler()
+    {
+      @Override
+      protected void handleAllowed(HttpExchange exchange) throws IOException
+      {
+        StringWriter result = new StringWriter();
+        new JsonWriter(result).beginObject()
+          .name("status").value("running")
+          .name("schemeCacheHits").value(SchemaCache.getInstance().getHitCount())
+          .name("schemeCacheMisses").value(SchemaCache.getInstance().getMissCount())
+          .endObject();
+        respond(exchange, 200, result.toString());
+      }
+    });
+    server.createContext("/metrics", new GuardedHandler()
+    {
+      @Override
+      protected void handleAllowed(HttpExchange exchange) throws IOException
+      {
+        StringWriter result = new StringWriter();
+        Metrics.getInstance().writePrometheus(result);
+        respond(exchange, 200, result.toString(), 
+          "text/plain; version=0.0.4; charset=UTF-8");
+      }
+    });
+  }
+
+  public void start()
+  {
+    server.start();
+    log.info(messages.getString("SERVER STARTED"), new Object[]
+    {
+      getAddress(), root.getPath(), token
+    });
+  }
+
+  /**
+   * Stops the server and waits at most the given time for running requests.
+   */
+  public void stop(int delaySeconds)
+  {
+    server.stop(delaySeconds);
+    executor.shutdown();
+  }
+
+  public InetSocketAddress getAddress()
+  {
+    return server.getAddress();
+  }
+
+  /**
+   * @return The token which must be sent with every request.
+   */
+  public String getToken()
+  {
+    return token;
+  }
+
+  public File getRoot()
+  {
+    return root;
+  }
+
+  /**
+   * Get a file parameter, which must be inside of the root directory.
+   */
+  private File getFile(Map<String, String> params, String name) throws
+    BadRequestException
+  {
+    String value = params.get(name);
+    if (Strings.isNullOrEmpty(value))
+    {
+      throw new BadRequestException("missing parameter \"" + name + "\"");
+    }
+    File file = new File(value);
+    if (!file.isAbsolute())
+    {
+      file = new File(root, value);
+    }
+    try
+    {
+      // also resolves ".." and symbolic links
+      file = file.getCanonicalFile();
+    }
+    catch (IOException ex)
+    {
+      throw new BadRequestException("invalid path " + value);
+    }
+    for (File f = file; f != null; f = f.getParentFile())
+    {
+      if (f.equals(root))
+      {
+        return file;
+      }
+    }
+    throw new BadRequestException(403, value
+      + " is outside of the server root directory");
+  }
+
+  /**
+   * Rejects requests which might have been sent by a web page instead of a
+   * local client.
+   */
+  private void checkAccess(HttpExchange exchange) throws BadRequestException
+  {
+    // a foreign host name is a sign of DNS rebinding
+    String host = exchange.getRequestHeaders().getFirst("Host");
+    if (host == null || !isLocalHost(host))
+    {
+      throw new BadRequestException(403, "invalid host " + host);
+    }
+    String origin = exchange.getRequestHeaders().getFirst("Origin");
+    if (origin != null)
+    {
+      try
+      {
+        URI uri = new URI(origin);
+        if (uri.getHost() == null 
+          || !LOCAL_HOSTS.contains(uri.getHost().toLowerCase()))
+        {
+          throw new BadRequestException(403, "invalid origin " + origin);
+        }
+      }
+      catch (URISyntaxException ex)
+      {
+        throw new BadRequestException(403, "invalid origin " + origin);
+      }
+    }
+    String authorization = exchange.getRequestHeaders().getFirst(
+      "Authorization");
+    String expected = "Bearer " + token;
+    if (authorization == null || !MessageDigest.isEqual(
+      expected.getBytes(Charsets.UTF_8), 
+      authorization.trim().getBytes(Charsets.UTF_8)))
+    {
+      throw new BadRequestException(401, "missing or invalid token");
+    }
+  }
+
+  private static boolean isLocalHost(String host)
+  {
+    String name = host.trim().toLowerCase();
+    int idx = name.lastIndexOf(':');
+    if (idx > name.lastIndexOf(']'))
+    {
+      // remove the port
+      name = name.substring(0, idx);
+    }
+    return LOCAL_HOSTS.contains(name);
+  }
+
+  private static int getThreads(Map<String, String> params) throws
+    BadRequestException
+  {
+    String value = params.get("threads");
+    if (value == null)
+    {
+      return 1;
+    }
+    try
+    {
+      return Math.max(1, Integer.parseInt(value));
+    }
+    catch (NumberFormatException ex)
+    {
+      throw new BadRequestException("invalid number of threads " + value);
+    }
+  }
+
+  /**
+   * Get the parameters from the query string and a form encoded body.
+   */
+  private static Map<String, String> getParameters(HttpExchange exchange)
+    throws IOException
+  {
+    Map<String, String> params = parseQuery(exchange.getRequestURI().
+      getRawQuery());
+    String body = CharStreams.toString(new InputStreamReader(
+      ByteStreams.limit(exchange.getRequestBody(), MAX_BODY_SIZE), 
+      Charsets.UTF_8));
+    params.putAll(parseQuery(body.trim()));
+    return params;
+  }
+
+  private static Map<String, String> parseQuery(String query) throws
+    UnsupportedEncodingException
+  {
+    Map<String, String> params = new HashMap<String, String>();
+    if (query != null)
+    {
+      for (String pair : query.split("&"))
+      {
+        int idx = pair.indexOf('=');
+        if (idx > 0)
+        {
+          params.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"),
+            URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+        }
+        else if (!pair.isEmpty())
+        {
+          // parameters without a value are flags
+          params.put(URLDecoder.decode(pair, "UTF-8"), "true");
+        }
+      }
+    }
+    return params;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body)
+    throws IOException
+  {
+    respond(exchange, status, body, "application/json; charset=UTF-8");
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body,
+    String contentType) throws IOException
+  {
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    try
+    {
+      out.write(bytes);
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the parser errors as an array of objects with the file, line, 
+   * column and message.
+   */
+  public static void writeErrors(JsonWriter json, TEIValidator.Errors errors)
+    throws IOException
+  {
+    json.beginArray();
+    for (Map.Entry<File, List<SAXParseException>> e : errors.entrySet())
+    {
+      for (SAXParseException ex : e.getValue())
+      {
+        json.beginObject()
+          .name("file").value(e.getKey().getPath())
+          .name("line").value(ex.getLineNumber())
+          .name("column").value(ex.getColumnNumber())
+          .name("message").value(ex.getLocalizedMessage())
+          .endObject();
+      }
+    }
+    json.endArray();
+  }
+
+  /**
+   * Handles a request only if {@link #checkAccess(com.sun.net.httpserver.HttpExchange) }
+   * allows it.
+   */
+  private abstract class GuardedHandler implements HttpHandler
+  {
+
+    protected abstract void handleAllowed(HttpExchange exchange) throws
+      IOException;
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException
+    {
+      try
+      {
+        checkAccess(exchange);
+      }
+      catch (BadRequestException ex)
+      {
+        log.warn(messages.getString("SERVER REQUEST DENIED"), 
+          exchange.getRequestURI(), ex.getMessage());
+        StringWriter result = new StringWriter();
+        new JsonWriter(result).beginObject()
+          .name("message").value(ex.getMessage())
+          .endObject();
+        respond(exchange, ex.getStatus(), result.toString());
+        return;
+      }
+      handleAllowed(exchange);
+    }
+  }
+
+  /**
+   * Executes an operation and reports the outcome as JSON.
+   */
+  private abstract class OperationHandler extends GuardedHandler
+  {
+
+    protected abstract void execute(Map<String, String> params) throws
+      LaudatioException;
+
+    @Override
+    protected void handleAllowed(HttpExchange exchange) throws IOException
+    {
+      String operation = exchange.getHttpContext().getPath().substring(1);
+      StringWriter result = new StringWriter();
+      JsonWriter json = new JsonWriter(result);
+      json.beginObject().name("operation").value(operation);
+
+      int status;
+      long start = System.currentTimeMillis();
+      try
+      {
+        // the operations write files, a simple link must not trigger them
+        if (!"POST".equals(exchange.getRequestMethod()))
+        {
+          exchange.getResponseHeaders().set("Allow", "POST");
+          throw new BadRequestException(405, "use POST for " + operation);
+        }
+        Map<String, String> params = getParameters(exchange);
+        json.name("input").value(params.get("input"));
+        execute(params);
+        status = 200;
+        json.name("valid").value(true);
+      }
+      catch (ValidationException ex)
+      {
+        status = 422;
+        json.name("valid").value(false);
+        json.name("message").value(ex.getMessage());
+        json.name("errors");
+        writeErrors(json, ex.getErrors());
+      }
+      catch (BadRequestException ex)
+      {
+        status = ex.getStatus();
+        json.name("message").value(ex.getMessage());
+      }
+      catch (LaudatioException ex)
+      {
+        status = 500;
+        json.name("message").value(ex.getMessage());
+      }
+      catch (RuntimeException ex)
+      {
+        log.error(null, ex);
+        status = 500;
+        json.name("message").value(ex.toString());
+      }
+      json.name("time").value(System.currentTimeMillis() - start);
+      json.endObject();
+
+      log.info(messages.getString("SERVER REQUEST"), exchange.getRequestURI(),
+        status);
+      respond(exchange, status, result.toString());
+    }
+  }
+
+  /**
+   * A request which is rejected with a 4xx status code.
+   */
+  private static class BadRequestException extends LaudatioException
+  {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public BadRequestException(String message)
+    {
+      this(400, message);
+    }
+
+    public BadRequestException(int status, String message)
+    {
+      super(message);
+      this.status = status;
+    }
+
+    public int getStatus()
+    {
+      return status;
+    }
+  }
+}
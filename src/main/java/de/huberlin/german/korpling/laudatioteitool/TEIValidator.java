@@ -15,30 +15,43 @@
  */
 package de.huberlin.german.korpling.laudatioteitool;
 
-import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Strings;
-import com.google.common.io.Files;
 import com.thaiopensource.relaxng.SchemaFactory;
 import com.thaiopensource.relaxng.jaxp.CompactSyntaxSchemaFactory;
 import com.thaiopensource.relaxng.jaxp.XMLSyntaxSchemaFactory;
 import com.thaiopensource.validation.SchemaFactory2;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.TreeMap;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.sax.SAXSource;
+import javax.xml.validation.Schema;
 import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+import org.jdom2.Document;
+import org.jdom2.JDOMException;
+import org.jdom2.input.sax.SAXHandler;
+import org.jdom2.located.Located;
+import org.jdom2.output.JDOMLocator;
+import org.jdom2.output.SAXOutputter;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 /**
  *
@@ -52,10 +65,51 @@ public abstract class TEIValidator
   private static final ResourceBundle messages =
     ResourceBundle.getBundle("de/huberlin/german/korpling/laudatioteitool/Messages");
   private Errors errors;
+  private ErrorBudget errorBudget;
+  private ErrorReporter errorReporter;
+  private String headerType = "custom";
+  private HeaderMetrics metrics = new HeaderMetrics(headerType);
   
   protected final static SchemaFactory2 compactSchemaFactory = new CompactSyntaxSchemaFactory();
   protected final static SchemaFactory2 xmlSchemaFactory = new XMLSyntaxSchemaFactory();
 
+  /**
+   * A {@link Validator} is not thread-safe but cheap to create from the
+   * (shared) compiled schema, thus every thread gets its own one.
+   */
+  private final ThreadLocal<Validator> validators = new ThreadLocal<Validator>()
+  {
+    @Override
+    protected Validator initialValue()
+    {
+      Schema schema = getSchema();
+      return schema == null ? null : schema.newValidator();
+    }
+  };
+  
+  private final static ThreadLocal<XMLReader> xmlReaders = 
+    new ThreadLocal<XMLReader>()
+  {
+    @Override
+    protected XMLReader initialValue()
+    {
+      SAXParserFactory factory = SAXParserFactory.newInstance();
+      factory.setNamespaceAware(true);
+      try
+      {
+        return factory.newSAXParser().getXMLReader();
+      }
+      catch (ParserConfigurationException ex)
+      {
+        log.error(null, ex);
+      }
+      catch (SAXException ex)
+      {
+        log.error(null, ex);
+      }
+      return null;
+    }
+  };
   
   protected TEIValidator()
   {
@@ -68,52 +122,310 @@ public abstract class TEIValidator
     errors.clear();
   }
 
+  /**
+   * Validates a file. This method can be called by several threads at the
+   * same time, the errors of all calls are collected in {@link #getErrors() }.
+   *
+   * @param file
+   * @return True if the file itself was valid.
+   * @throws IOException
+   */
   public boolean validate(final File file) throws IOException
   {
-    Validator validator = getValidator();
-    Preconditions.checkNotNull(validator, messages.getString("NO VALIDATOR"));
-
-    validator.setErrorHandler(new ErrorHandler()
+    InputStream in = CorpusFiles.open(file);
+    try
     {
-      @Override
-      public void warning(SAXParseException exception) throws SAXException
-      {
-        // ignore warnings
-      }
+      return validate(in, file, 0);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
 
-      @Override
-      public void error(SAXParseException exception) throws SAXException
-      {
-        errors.addError(file, exception);
-      }
+  /**
+   * Validates a document read from a stream, e.g. a single header of a 
+   * merged corpus.
+   *
+   * @param in The stream, which is not closed.
+   * @param file The file the errors are reported for.
+   * @param lineOffset Added to the line number of each error, so the errors
+   * refer to the lines of the file if the document is only part of it.
+   * @return True if the document was valid.
+   * @throws IOException
+   */
+  public boolean validate(InputStream in, File file, long lineOffset) 
+    throws IOException
+  {
+    return validate(in, file, lineOffset, 0, 0);
+  }
 
-      @Override
-      public void fatalError(SAXParseException exception) throws SAXException
-      {
-        errors.addError(file, exception);
-      }
-    });
+  /**
+   * Validates a document read from a stream which starts in the middle of 
+   * a line of the file, e.g. a header of a compact merged corpus.
+   *
+   * @param in The stream, which is not closed.
+   * @param file The file the errors are reported for.
+   * @param lineOffset Added to the line number of each error.
+   * @param firstLine The line of the stream where the part of the file 
+   * starts.
+   * @param columnOffset Added to the column number of the errors in 
+   * firstLine.
+   * @return True if the document was valid.
+   * @throws IOException
+   */
+  public boolean validate(InputStream in, File file, long lineOffset,
+    int firstLine, long columnOffset) throws IOException
+  {
+    Validator validator = getValidator();
+    Preconditions.checkNotNull(validator, messages.getString("NO VALIDATOR"));
 
+    FileErrorHandler handler = new FileErrorHandler(file, lineOffset,
+      firstLine, columnOffset);
+    validator.setErrorHandler(handler);
+
+    long start = System.nanoTime();
     boolean valid = true;
     try
     {
-      validator.validate(new SAXSource(
-        new InputSource(new FileInputStream(file))));
+      validator.validate(new SAXSource(new InputSource(in)));
     }
     catch (SAXException ex)
     {
       // not well-formed
       valid = false;
     }
-    return valid && errors.size() == 0;
+    finally
+    {
+      countValidated(start);
+      reportErrors(handler);
+    }
+    return valid && !handler.hasErrors();
   }
 
+  /**
+   * Validates a document which is already in memory by passing it as SAX
+   * events to the validator. If the document was built with a
+   * {@link org.jdom2.located.LocatedJDOMFactory} the reported errors will
+   * point to the original position of the elements in the source file.
+   * 
+   * @param doc
+   * @param source The file the document was read from, used for the errors.
+   * @return True if the document was valid.
+   */
+  public boolean validate(Document doc, File source)
+  {
+    Schema schema = getSchema();
+    Preconditions.checkNotNull(schema, messages.getString("NO VALIDATOR"));
+    ValidatorHandler validatorHandler = schema.newValidatorHandler();
+    
+    FileErrorHandler handler = new FileErrorHandler(source);
+    validatorHandler.setErrorHandler(handler);
+    
+    SAXOutputter out = new SAXOutputter(
+      new LocatedContentHandler(validatorHandler, source));
+    out.setErrorHandler(handler);
+    long start = System.nanoTime();
+    try
+    {
+      out.output(doc);
+    }
+    catch(JDOMException ex)
+    {
+      return false;
+    }
+    finally
+    {
+      countValidated(start);
+      reportErrors(handler);
+    }
+    return !handler.hasErrors();
+  }
+  
+  /**
+   * Validates a file and builds the JDOM document from it at the same time.
+   * The file is only read and parsed once, the SAX events are passed both to
+   * the validator and the JDOM {@link SAXHandler}.
+   * 
+   * @param file
+   * @return The parsed document or null if the file was not valid.
+   * @throws IOException 
+   */
+  public Document validateAndBuild(final File file) throws IOException
+  {
+    Schema schema = getSchema();
+    Preconditions.checkNotNull(schema, messages.getString("NO VALIDATOR"));
+    // a validator handler can not be reset, thus create a new one for each file
+    ValidatorHandler validatorHandler = schema.newValidatorHandler();
+    XMLReader reader = Preconditions.checkNotNull(xmlReaders.get());
+    
+    FileErrorHandler handler = new FileErrorHandler(file);
+    validatorHandler.setErrorHandler(handler);
+    
+    SAXHandler jdomHandler = new SAXHandler();
+    
+    reader.setErrorHandler(handler);
+    reader.setContentHandler(new TeeContentHandler(validatorHandler, jdomHandler));
+    reader.setDTDHandler(jdomHandler);
+    try
+    {
+      // needed for comments and CDATA sections
+      reader.setProperty("http://xml.org/sax/properties/lexical-handler", 
+        jdomHandler);
+    }
+    catch (SAXException ex)
+    {
+      log.warn("XML parser does not support lexical events", ex);
+    }
+    
+    long start = System.nanoTime();
+    InputStream in = CorpusFiles.open(file);
+    try
+    {
+      InputSource source = new InputSource(in);
+      source.setSystemId(file.toURI().toString());
+      reader.parse(source);
+    }
+    catch (SAXException ex)
+    {
+      // not well-formed
+      return null;
+    }
+    finally
+    {
+      in.close();
+      countValidated(start);
+      reportErrors(handler);
+    }
+    
+    return handler.hasErrors() ? null : jdomHandler.getDocument();
+  }
+  
   public Errors getErrors()
   {
     return errors;
   }
+
+  private void countValidated(long start)
+  {
+    metrics.validate.stop(start);
+    metrics.validated.increment();
+  }
+
+  /**
+   * Passes the errors of a document which was just validated to the 
+   * reporter.
+   */
+  private void reportErrors(FileErrorHandler handler)
+  {
+    if (errorReporter != null && !handler.getCollected().isEmpty())
+    {
+      try
+      {
+        errorReporter.report(handler.getFile(), handler.getCollected());
+      }
+      catch (IOException ex)
+      {
+        log.error("Could not report the errors of {}: {}", handler.getFile(),
+          ex.getMessage());
+      }
+    }
+  }
+
+  public String getHeaderType()
+  {
+    return headerType;
+  }
+
+  /**
+   * Set the type of the validated headers ("corpus", "document" or 
+   * "preparation"), which is used to group the {@link Metrics}.
+   *
+   * @param headerType 
+   */
+  public void setHeaderType(String headerType)
+  {
+    this.headerType = headerType;
+    this.metrics = new HeaderMetrics(headerType);
+  }
+
+  /**
+   * @return The metrics of the header type of this validator.
+   */
+  HeaderMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  public ErrorBudget getErrorBudget()
+  {
+    return errorBudget;
+  }
+
+  /**
+   * Set a budget which is shared with other validators. When it is used up
+   * no more errors are collected and the validation of the current file is 
+   * aborted.
+   *
+   * @param errorBudget The budget or null to collect all errors.
+   */
+  public void setErrorBudget(ErrorBudget errorBudget)
+  {
+    this.errorBudget = errorBudget;
+  }
+
+  public ErrorReporter getErrorReporter()
+  {
+    return errorReporter;
+  }
+
+  /**
+   * Set a reporter which gets the errors of each document as soon as it was
+   * validated instead of after all documents, see
+   * {@link ErrorReporter#report(java.io.File, java.util.List) }.
+   *
+   * @param errorReporter The reporter or null to only collect the errors.
+   */
+  public void setErrorReporter(ErrorReporter errorReporter)
+  {
+    this.errorReporter = errorReporter;
+  }
   
-  public abstract Validator getValidator();
+  /**
+   * Get the validator of the current thread.
+   *
+   * @return The validator or null if the schema could not be loaded.
+   */
+  public Validator getValidator()
+  {
+    return validators.get();
+  }
+
+  /**
+   * Get the compiled schema, usually taken from the {@link SchemaCache}.
+   *
+   * @return The schema or null if it could not be loaded.
+   */
+  public abstract Schema getSchema();
+
+  /**
+   * Get the location of the schema as configured by the user, used to 
+   * identify the schema in reports.
+   *
+   * @return The URL of the schema.
+   */
+  public abstract String getSchemaLocation();
+
+  /**
+   * Identifies the content of the schema, e.g. to decide if an earlier
+   * validation result is still usable.
+   *
+   * @return The hash or null if it is unknown.
+   */
+  public String getSchemaHash()
+  {
+    return SchemaCache.getInstance().getHash(getSchema());
+  }
 
   @Override
   public String toString()
@@ -151,65 +463,320 @@ public abstract class TEIValidator
       return "";
     }
 
-    StringBuilder sb = new StringBuilder();
-      
-    for (Map.Entry<File, List<SAXParseException>> entry : errors.entrySet())
+    StringWriter sw = new StringWriter();
+    try
     {
-      List<String> linesRaw = new LinkedList<String>();
-      try
+      new ErrorReporter(sw).report(errors);
+    }
+    catch (IOException ex)
+    {
+      // can't happen when writing to a string
+      log.error(null, ex);
+    }
+    return sw.toString();
+  }
+
+  /**
+   * The {@link Metrics} of one header type. They are updated for every 
+   * header and thus only looked up once.
+   */
+  static class HeaderMetrics
+  {
+
+    final Metrics.Timer parse;
+    final Metrics.Timer validate;
+    final Metrics.Counter validated;
+    final Metrics.Counter errors;
+    final Metrics.Counter cached;
+
+    HeaderMetrics(String headerType)
+    {
+      Metrics m = Metrics.getInstance();
+      parse = m.timer("parse", headerType);
+      validate = m.timer("validate", headerType);
+      validated = m.counter("headers_validated", headerType);
+      errors = m.counter("validation_errors", headerType);
+      cached = m.counter("headers_cached", headerType);
+    }
+  }
+
+  /**
+   * Collects the errors of a single file.
+   */
+  private class FileErrorHandler implements ErrorHandler
+  {
+
+    private final File file;
+    private final long lineOffset;
+    private final int firstLine;
+    private final long columnOffset;
+    private final List<SAXParseException> collected =
+      new ArrayList<SAXParseException>();
+    private boolean errorsFound = false;
+
+    public FileErrorHandler(File file)
+    {
+      this(file, 0, 0, 0);
+    }
+
+    public FileErrorHandler(File file, long lineOffset, int firstLine,
+      long columnOffset)
+    {
+      this.file = file;
+      this.lineOffset = lineOffset;
+      this.firstLine = firstLine;
+      this.columnOffset = columnOffset;
+    }
+
+    /**
+     * A line or column that does not fit into the int of a 
+     * {@link SAXParseException} is reported as unknown.
+     */
+    private int toPosition(long position)
+    {
+      return position > Integer.MAX_VALUE ? -1 : (int) position;
+    }
+
+    @Override
+    public void warning(SAXParseException exception) throws SAXException
+    {
+      // ignore warnings
+    }
+
+    @Override
+    public void error(SAXParseException exception) throws SAXException
+    {
+      addError(exception);
+    }
+
+    @Override
+    public void fatalError(SAXParseException exception) throws SAXException
+    {
+      addError(exception);
+    }
+
+    private void addError(SAXParseException exception) throws SAXException
+    {
+      errorsFound = true;
+      if ((lineOffset != 0 || columnOffset != 0)
+        && exception.getLineNumber() > 0)
       {
-        // split lines so we can reuse them later
-        linesRaw = Files.readLines(entry.getKey(), Charsets.UTF_8);
+        long column = exception.getColumnNumber();
+        if (exception.getLineNumber() == firstLine && column > 0)
+        {
+          column += columnOffset;
+        }
+        exception = new SAXParseException(exception.getMessage(), 
+          exception.getPublicId(), exception.getSystemId(), 
+          toPosition(exception.getLineNumber() + lineOffset), 
+          toPosition(column), exception);
       }
-      catch (IOException ex)
+      metrics.errors.increment();
+      if (errorBudget == null)
+      {
+        collect(exception);
+      }
+      else
       {
-        log.error("UTF-8 is an unknown encoding on this computer", entry.getKey());
+        if (errorBudget.take())
+        {
+          collect(exception);
+        }
+        if (errorBudget.isExhausted())
+        {
+          // abort the validation of this file
+          throw exception;
+        }
       }
-      String[] lines = linesRaw.toArray(new String[linesRaw.size()]);
+    }
 
+    private void collect(SAXParseException exception)
+    {
+      errors.addError(file, exception);
+      collected.add(exception);
+    }
 
-      String header = entry.getKey().getPath() + " has " + entry.getValue().size()
-        + (entry.getValue().size() > 1 ? " errors" : " error");
-      sb.append(header).append("\n");
+    public boolean hasErrors()
+    {
+      return errorsFound;
+    }
 
-      sb.append(Strings.repeat("=", header.length())).append("\n");
+    public File getFile()
+    {
+      return file;
+    }
 
-      ListIterator<SAXParseException> it = entry.getValue().listIterator();
-      while (it.hasNext())
-      {
-        SAXParseException ex = it.next();
+    /**
+     * @return The errors of this document which were added to 
+     * {@link #getErrors() }.
+     */
+    public List<SAXParseException> getCollected()
+    {
+      return collected;
+    }
+  }
 
-        int columnNr = ex.getColumnNumber();
-        int lineNr = ex.getLineNumber();
+  /**
+   * Passes all content events to two handlers.
+   */
+  private static class TeeContentHandler implements ContentHandler
+  {
+    private final ContentHandler first;
+    private final ContentHandler second;
 
-        sb.append("[line ").append(lineNr).append("/column ").append(columnNr).
-          append("]").append("\n");
-        String caption = ex.getLocalizedMessage();
+    public TeeContentHandler(ContentHandler first, ContentHandler second)
+    {
+      this.first = first;
+      this.second = second;
+    }
 
-        sb.append(caption).append("\n");
+    @Override
+    public void setDocumentLocator(Locator locator)
+    {
+      first.setDocumentLocator(locator);
+      second.setDocumentLocator(locator);
+    }
 
-        // output complete affected line 
-        String line = lines[lineNr - 1];
-        sb.append(line).append("\n");
+    @Override
+    public void startDocument() throws SAXException
+    {
+      first.startDocument();
+      second.startDocument();
+    }
 
-        // output a marker for the columns
-        sb.append(Strings.padStart("^", columnNr, ' ')).append("\n");
+    @Override
+    public void endDocument() throws SAXException
+    {
+      first.endDocument();
+      second.endDocument();
+    }
 
-        sb.append(Strings.repeat("-", Math.min(80, Math.
-          max(caption.length(),
-          line.length()))))
-          .append("\n");
-      }
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException
+    {
+      first.startPrefixMapping(prefix, uri);
+      second.startPrefixMapping(prefix, uri);
     }
 
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException
+    {
+      first.endPrefixMapping(prefix);
+      second.endPrefixMapping(prefix);
+    }
 
-    return sb.toString();
+    @Override
+    public void startElement(String uri, String localName, String qName,
+      Attributes atts) throws SAXException
+    {
+      first.startElement(uri, localName, qName, atts);
+      second.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws
+      SAXException
+    {
+      first.endElement(uri, localName, qName);
+      second.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws
+      SAXException
+    {
+      first.characters(ch, start, length);
+      second.characters(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws
+      SAXException
+    {
+      first.ignorableWhitespace(ch, start, length);
+      second.ignorableWhitespace(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws
+      SAXException
+    {
+      first.processingInstruction(target, data);
+      second.processingInstruction(target, data);
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException
+    {
+      first.skippedEntity(name);
+      second.skippedEntity(name);
+    }
+  }
+
+  /**
+   * Reports the position of the current JDOM node to the content handler 
+   * if the node knows its original position.
+   */
+  private static class LocatedContentHandler extends XMLFilterImpl
+  {
+    private final String systemId;
+    
+    public LocatedContentHandler(ContentHandler handler, File source)
+    {
+      setContentHandler(handler);
+      this.systemId = source.toURI().toString();
+    }
+
+    @Override
+    public void setDocumentLocator(final Locator locator)
+    {
+      super.setDocumentLocator(new Locator()
+      {
+        private Located getLocated()
+        {
+          if(locator instanceof JDOMLocator 
+            && ((JDOMLocator) locator).getNode() instanceof Located)
+          {
+            return (Located) ((JDOMLocator) locator).getNode();
+          }
+          return null;
+        }
+        
+        @Override
+        public String getPublicId()
+        {
+          return null;
+        }
+
+        @Override
+        public String getSystemId()
+        {
+          return systemId;
+        }
+
+        @Override
+        public int getLineNumber()
+        {
+          Located located = getLocated();
+          return located == null ? -1 : located.getLine();
+        }
+
+        @Override
+        public int getColumnNumber()
+        {
+          Located located = getLocated();
+          return located == null ? -1 : located.getColumn();
+        }
+      });
+    }
   }
 
   public static class Errors extends TreeMap<File, List<SAXParseException>>
   {
 
-    public void addError(File file, SAXParseException ex)
+    private static final long serialVersionUID = 1L;
+
+    public synchronized void addError(File file, SAXParseException ex)
     {
       if (!containsKey(file))
       {
@@ -218,7 +785,22 @@ public abstract class TEIValidator
       get(file).add(ex);
     }
 
-    public List<SAXParseException> getErrors(File file)
+    /**
+     * Adds all errors of another collection, errors for the same file are
+     * appended.
+     */
+    public synchronized void addAll(Errors other)
+    {
+      for(Map.Entry<File, List<SAXParseException>> e : other.entrySet())
+      {
+        for(SAXParseException ex : e.getValue())
+        {
+          addError(e.getKey(), ex);
+        }
+      }
+    }
+
+    public synchronized List<SAXParseException> getErrors(File file)
     {
       if (!containsKey(file))
       {
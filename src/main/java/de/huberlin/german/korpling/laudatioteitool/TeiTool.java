@@ -0,0 +1,618 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Preconditions;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+import org.jdom2.Document;
+import org.jdom2.input.DOMBuilder;
+import org.jdom2.output.XMLOutputter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Entry point for using the tool as a library. Instances are immutable and 
+ * can be shared by any number of threads, the compiled schemes are cached 
+ * for the whole process. Invalid headers are reported as a {@link Result}, 
+ * nothing is printed and the process is never terminated.
+ * 
+ * <pre>
+ * TeiTool tool = TeiTool.builder().threads(4).build();
+ * TeiTool.Result result = tool.validate(in);
+ * if(!result.isValid())
+ * {
+ *   ...
+ * }
+ * </pre>
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class TeiTool
+{
+
+  private final static Logger log = LoggerFactory.getLogger(TeiTool.class);
+  private static final ResourceBundle messages =
+    ResourceBundle.getBundle("de/huberlin/german/korpling/laudatioteitool/Messages");
+
+  private final String corpusSchemeURL;
+  private final String documentSchemeURL;
+  private final String preparationSchemeURL;
+  private final int threads;
+  private final boolean streaming;
+  private final boolean compact;
+  private final boolean raw;
+  private final boolean incremental;
+  private final boolean sorted;
+  private final int maxErrors;
+  private final boolean validationCache;
+
+  private TeiTool(Builder builder)
+  {
+    this.corpusSchemeURL = builder.corpusSchemeURL;
+    this.documentSchemeURL = builder.documentSchemeURL;
+    this.preparationSchemeURL = builder.preparationSchemeURL;
+    this.threads = builder.threads;
+    this.streaming = builder.streaming;
+    this.compact = builder.compact;
+    this.raw = builder.raw;
+    this.incremental = builder.incremental;
+    this.sorted = builder.sorted;
+    this.maxErrors = builder.maxErrors;
+    this.validationCache = builder.validationCache;
+  }
+
+  public static Builder builder()
+  {
+    return new Builder();
+  }
+
+  /**
+   * Validates a corpus directory, a zip archive or a merged corpus file.
+   * 
+   * @param input
+   * @return The result of the validation.
+   * @throws LaudatioException If the input could not be read.
+   */
+  public Result validate(File input) throws LaudatioException
+  {
+    if (!input.exists())
+    {
+      throw new LaudatioException(messages.getString(
+        "INPUT FILE DOES NOT EXIST"));
+    }
+    long start = System.nanoTime();
+    try
+    {
+      if (input.isDirectory() || CorpusFiles.isZip(input))
+      {
+        MergeTEI merge = new MergeTEI(input, null,
+          corpusSchemeURL, documentSchemeURL, preparationSchemeURL);
+        configure(merge);
+        if (validationCache && input.isDirectory())
+        {
+          ValidationCache cache = ValidationCache.load(input);
+          merge.setValidationCache(cache);
+          try
+          {
+            merge.validate();
+          }
+          finally
+          {
+            saveCache(cache);
+          }
+        }
+        else
+        {
+          merge.validate();
+        }
+      }
+      else
+      {
+        SplitTEI split = new SplitTEI(input, null,
+          corpusSchemeURL, documentSchemeURL, preparationSchemeURL);
+        configure(split);
+        split.validate();
+      }
+      return new Result(null, start);
+    }
+    catch (ValidationException ex)
+    {
+      return new Result(ex, start);
+    }
+  }
+
+  public Result validate(Path input) throws LaudatioException
+  {
+    return validate(input.toFile());
+  }
+
+  /**
+   * Validates a merged corpus read from a stream. The stream is not closed.
+   * 
+   * @param mergedCorpus
+   * @return The result of the validation, the errors are reported for 
+   * {@link CorpusFiles#STREAM_INPUT}.
+   * @throws LaudatioException If the input could not be read.
+   */
+  public Result validate(InputStream mergedCorpus) throws LaudatioException
+  {
+    return validate(new InputSource(mergedCorpus));
+  }
+
+  /**
+   * Validates a merged corpus given as any kind of XML source. Sources which
+   * only have a system ID are read from this location, a file location can 
+   * also be a corpus directory. Sources without a stream (e.g. a DOM) are 
+   * serialized first.
+   * 
+   * @param source
+   * @return The result of the validation.
+   * @throws LaudatioException If the input could not be read.
+   */
+  public Result validate(Source source) throws LaudatioException
+  {
+    InputSource input = SAXSource.sourceToInputSource(source);
+    if (input == null)
+    {
+      input = new InputSource(new ByteArrayInputStream(serialize(source)));
+      input.setSystemId(source.getSystemId());
+    }
+    else if (input.getByteStream() == null 
+      && input.getCharacterStream() == null)
+    {
+      return validateLocation(input.getSystemId());
+    }
+    return validate(input);
+  }
+
+  private static byte[] serialize(Source source) throws LaudatioException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try
+    {
+      if (source instanceof DOMSource)
+      {
+        // the XSLT processor on the classpath might not support DOM
+        Node node = ((DOMSource) source).getNode();
+        Document doc = node instanceof org.w3c.dom.Document
+          ? new DOMBuilder().build((org.w3c.dom.Document) node)
+          : new Document(new DOMBuilder().build((org.w3c.dom.Element) node));
+        new XMLOutputter().output(doc, bytes);
+      }
+      else
+      {
+        TransformerFactory.newInstance().newTransformer().transform(source,
+          new StreamResult(bytes));
+      }
+    }
+    catch (TransformerException ex)
+    {
+      throw new LaudatioException(ex.getMessageAndLocation());
+    }
+    catch (IOException ex)
+    {
+      throw new LaudatioException(ex.getLocalizedMessage());
+    }
+    return bytes.toByteArray();
+  }
+
+  private Result validateLocation(String systemId) throws LaudatioException
+  {
+    Preconditions.checkArgument(systemId != null, 
+      "source has neither a stream nor a system ID");
+    try
+    {
+      URI uri = new URI(systemId);
+      if (!uri.isAbsolute() || "file".equals(uri.getScheme()))
+      {
+        return validate(uri.isAbsolute() ? new File(uri) : new File(systemId));
+      }
+      InputStream in = new URL(systemId).openStream();
+      try
+      {
+        InputSource input = new InputSource(in);
+        input.setSystemId(systemId);
+        return validate(input);
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch (URISyntaxException ex)
+    {
+      return validate(new File(systemId));
+    }
+    catch (IOException ex)
+    {
+      throw new LaudatioException(ex.getLocalizedMessage());
+    }
+  }
+
+  private Result validate(InputSource input) throws LaudatioException
+  {
+    long start = System.nanoTime();
+    SplitTEI split = new SplitTEI(input, null,
+      corpusSchemeURL, documentSchemeURL, preparationSchemeURL);
+    configure(split);
+    try
+    {
+      split.validate();
+      return new Result(null, start);
+    }
+    catch (ValidationException ex)
+    {
+      return new Result(ex, start);
+    }
+  }
+
+  /**
+   * Splits a merged corpus file into one file per header.
+   * 
+   * @param input
+   * @param outputDirectory
+   * @return The result of the validation of the written headers.
+   * @throws LaudatioException If the input could not be read or the output 
+   * could not be written.
+   */
+  public Result split(File input, File outputDirectory) throws
+    LaudatioException
+  {
+    long start = System.nanoTime();
+    SplitTEI split = new SplitTEI(input, outputDirectory,
+      corpusSchemeURL, documentSchemeURL, preparationSchemeURL);
+    configure(split);
+    split.setCompact(compact);
+    split.setRaw(raw);
+    try
+    {
+      split.split();
+      return new Result(null, start);
+    }
+    catch (ValidationException ex)
+    {
+      return new Result(ex, start);
+    }
+  }
+
+  public Result split(Path input, Path outputDirectory) throws
+    LaudatioException
+  {
+    return split(input.toFile(), outputDirectory.toFile());
+  }
+
+  /**
+   * Merges a corpus directory or zip archive into one file.
+   * 
+   * @param input
+   * @param output
+   * @return The result of the validation of the headers. If a header was 
+   * invalid the output file is not complete.
+   * @throws LaudatioException If the input could not be read or the output 
+   * could not be written.
+   */
+  public Result merge(File input, File output) throws LaudatioException
+  {
+    long start = System.nanoTime();
+    MergeTEI merge = new MergeTEI(input, output,
+      corpusSchemeURL, documentSchemeURL, preparationSchemeURL);
+    configure(merge);
+    merge.setCompact(compact);
+    merge.setIncremental(incremental);
+    try
+    {
+      merge.merge();
+      return new Result(null, start);
+    }
+    catch (ValidationException ex)
+    {
+      return new Result(ex, start);
+    }
+  }
+
+  public Result merge(Path input, Path output) throws LaudatioException
+  {
+    return merge(input.toFile(), output.toFile());
+  }
+
+  private void configure(MergeTEI merge)
+  {
+    merge.setThreads(threads);
+    merge.setSorted(sorted);
+    merge.setErrorBudget(createErrorBudget());
+  }
+
+  private void configure(SplitTEI split)
+  {
+    split.setThreads(threads);
+    split.setStreaming(streaming);
+    split.setErrorBudget(createErrorBudget());
+  }
+
+  private ErrorBudget createErrorBudget()
+  {
+    // every call gets its own budget
+    return maxErrors > 0 ? new ErrorBudget(maxErrors) : null;
+  }
+
+  private static void saveCache(ValidationCache cache)
+  {
+    try
+    {
+      cache.save();
+    }
+    catch (IOException ex)
+    {
+      log.warn(messages.getString("VALIDATION CACHE NOT WRITTEN"),
+        cache.getIndexFile().getPath(), ex.getMessage());
+    }
+  }
+
+  public String getCorpusSchemeURL()
+  {
+    return corpusSchemeURL;
+  }
+
+  public String getDocumentSchemeURL()
+  {
+    return documentSchemeURL;
+  }
+
+  public String getPreparationSchemeURL()
+  {
+    return preparationSchemeURL;
+  }
+
+  public int getThreads()
+  {
+    return threads;
+  }
+
+  public boolean isStreaming()
+  {
+    return streaming;
+  }
+
+  public boolean isCompact()
+  {
+    return compact;
+  }
+
+  public boolean isRaw()
+  {
+    return raw;
+  }
+
+  public boolean isIncremental()
+  {
+    return incremental;
+  }
+
+  public boolean isSorted()
+  {
+    return sorted;
+  }
+
+  public int getMaxErrors()
+  {
+    return maxErrors;
+  }
+
+  public boolean isValidationCache()
+  {
+    return validationCache;
+  }
+
+  /**
+   * Configures a {@link TeiTool}. Schemes which are not set are the bundled
+   * default LAUDATIO schemes.
+   */
+  public static class Builder
+  {
+
+    private String corpusSchemeURL;
+    private String documentSchemeURL;
+    private String preparationSchemeURL;
+    private int threads = 1;
+    private boolean streaming = false;
+    private boolean compact = false;
+    private boolean raw = false;
+    private boolean incremental = false;
+    private boolean sorted = false;
+    private int maxErrors = 0;
+    private boolean validationCache = false;
+
+    private Builder()
+    {
+    }
+
+    public Builder corpusScheme(String url)
+    {
+      this.corpusSchemeURL = url;
+      return this;
+    }
+
+    public Builder documentScheme(String url)
+    {
+      this.documentSchemeURL = url;
+      return this;
+    }
+
+    public Builder preparationScheme(String url)
+    {
+      this.preparationSchemeURL = url;
+      return this;
+    }
+
+    /**
+     * Number of worker threads used for a single corpus.
+     */
+    public Builder threads(int threads)
+    {
+      this.threads = Math.max(1, threads);
+      return this;
+    }
+
+    /**
+     * Read merged corpora as a stream instead of loading them into memory.
+     */
+    public Builder streaming(boolean streaming)
+    {
+      this.streaming = streaming;
+      return this;
+    }
+
+    /**
+     * Write split and merged files without indentation.
+     */
+    public Builder compact(boolean compact)
+    {
+      this.compact = compact;
+      return this;
+    }
+
+    /**
+     * Split by copying the original bytes of each header from the 
+     * memory-mapped input file.
+     */
+    public Builder raw(boolean raw)
+    {
+      this.raw = raw;
+      return this;
+    }
+
+    /**
+     * Merge only the headers which changed since the previous merge into the
+     * same file.
+     */
+    public Builder incremental(boolean incremental)
+    {
+      this.incremental = incremental;
+      return this;
+    }
+
+    /**
+     * Merge and validate the headers of a directory in the order of their 
+     * file names.
+     */
+    public Builder sorted(boolean sorted)
+    {
+      this.sorted = sorted;
+      return this;
+    }
+
+    /**
+     * Stop after the given number of errors, 0 collects all errors.
+     */
+    public Builder maxErrors(int maxErrors)
+    {
+      this.maxErrors = Math.max(0, maxErrors);
+      return this;
+    }
+
+    /**
+     * Use a {@link ValidationCache} inside validated corpus directories. A 
+     * directory must not be validated by several threads at the same time
+     * when enabled.
+     */
+    public Builder validationCache(boolean validationCache)
+    {
+      this.validationCache = validationCache;
+      return this;
+    }
+
+    public TeiTool build()
+    {
+      return new TeiTool(this);
+    }
+  }
+
+  /**
+   * The outcome of a validation, split or merge.
+   */
+  public static class Result
+  {
+
+    private final boolean valid;
+    private final TEIValidator.Errors errors;
+    private final String message;
+    private final long nanos;
+
+    private Result(ValidationException ex, long start)
+    {
+      this.nanos = System.nanoTime() - start;
+      this.valid = ex == null;
+      this.errors = ex == null ? new TEIValidator.Errors() : ex.getErrors();
+      this.message = ex == null ? null : ex.getMessage();
+    }
+
+    public boolean isValid()
+    {
+      return valid;
+    }
+
+    /**
+     * @return The errors by file, empty if valid.
+     */
+    public TEIValidator.Errors getErrors()
+    {
+      return errors;
+    }
+
+    public int getErrorCount()
+    {
+      int count = 0;
+      for (List<SAXParseException> l : errors.values())
+      {
+        count += l.size();
+      }
+      return count;
+    }
+
+    /**
+     * @return A summary of the problem or null if valid.
+     */
+    public String getMessage()
+    {
+      return message;
+    }
+
+    public long getMillis()
+    {
+      return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.io.Files;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which header files of a corpus directory were valid, so they 
+ * don't need to be validated again as long as neither the file nor the 
+ * schema changed.
+ * 
+ * The results are stored in a binary index file inside the corpus directory.
+ * A file is identified by the SHA-1 hash of its content, but the hash is only
+ * calculated again if the size or modification time of the file differs from 
+ * the recorded one. Only valid results are recorded, invalid files are always
+ * validated again to report their errors.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class ValidationCache
+{
+
+  private final static Logger log = LoggerFactory.getLogger(ValidationCache.class);
+
+  public static final String FILE_NAME = ".teitool-validation";
+
+  private static final int MAGIC = 0x54454956;
+  private static final int VERSION = 1;
+  
+  /**
+   * Modification times closer than this to the time the index was written 
+   * are not trusted, since the file could have been changed again within the
+   * resolution of the file system timestamps.
+   */
+  private static final long TIMESTAMP_RESOLUTION = 2000;
+
+  private final File baseDir;
+  private final File indexFile;
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  private long writtenAt = 0;
+  private boolean changed = false;
+
+  private ValidationCache(File baseDir)
+  {
+    this.baseDir = baseDir.getAbsoluteFile();
+    this.indexFile = new File(baseDir, FILE_NAME);
+  }
+
+  /**
+   * Loads the index of a corpus directory. A missing or unreadable index
+   * results in an empty cache.
+   * 
+   * @param baseDir The corpus directory.
+   * @return 
+   */
+  public static ValidationCache load(File baseDir)
+  {
+    ValidationCache cache = new ValidationCache(baseDir);
+    if (cache.indexFile.isFile())
+    {
+      try
+      {
+        cache.read();
+      }
+      catch (IOException ex)
+      {
+        log.warn("Ignoring unreadable validation cache {}: {}", 
+          cache.indexFile.getPath(), ex.getMessage());
+        cache.entries.clear();
+      }
+      catch (RuntimeException ex)
+      {
+        // e.g. an invalid array size or index in a damaged file
+        log.warn("Ignoring damaged validation cache {}: {}", 
+          cache.indexFile.getPath(), ex.toString());
+        cache.entries.clear();
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Checks if a file was recorded as valid for the schema of the validator.
+   * 
+   * @param file
+   * @param validator
+   * @return
+   * @throws IOException 
+   */
+  public boolean isValid(File file, TEIValidator validator) throws IOException
+  {
+    String schemaHash = validator.getSchemaHash();
+    if (schemaHash == null)
+    {
+      return false;
+    }
+    
+    String key = getKey(file);
+    Entry entry;
+    synchronized (this)
+    {
+      entry = entries.get(key);
+    }
+    if (entry == null || !entry.schemaHash.equals(schemaHash))
+    {
+      return false;
+    }
+
+    long size = file.length();
+    long modified = file.lastModified();
+    if (entry.size == size && entry.modified == modified
+      && modified + TIMESTAMP_RESOLUTION < writtenAt)
+    {
+      return true;
+    }
+    
+    // the file was touched, but the content might still be the same
+    if (Arrays.equals(entry.contentHash, FileStamp.hash(file)))
+    {
+      synchronized (this)
+      {
+        entries.put(key, new Entry(size, modified, entry.contentHash,
+          schemaHash));
+        changed = true;
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Records that a file is valid for the schema of the validator. Nothing is
+   * recorded if the file changed since the stamp was taken, since the
+   * validated content is unknown then.
+   * 
+   * @param file
+   * @param validator
+   * @param stamp The stamp of the file taken before it was validated.
+   * @throws IOException 
+   */
+  public void setValid(File file, TEIValidator validator, FileStamp stamp) 
+    throws IOException
+  {
+    String schemaHash = validator.getSchemaHash();
+    if (schemaHash == null)
+    {
+      return;
+    }
+    if (!stamp.isUnchanged(file))
+    {
+      log.debug("{} changed while it was validated", file.getPath());
+      return;
+    }
+    Entry entry = new Entry(stamp.getSize(), stamp.getModified(), 
+      stamp.getContentHash(), schemaHash);
+    synchronized (this)
+    {
+      entries.put(getKey(file), entry);
+      changed = true;
+    }
+  }
+
+  /**
+   * Writes the index file if any result was added.
+   * 
+   * @throws IOException 
+   */
+  public synchronized void save() throws IOException
+  {
+    if (!changed)
+    {
+      return;
+    }
+    
+    File tmpFile = new File(indexFile.getPath() + ".part");
+    long now = System.currentTimeMillis();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(tmpFile)));
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(now);
+      
+      // there are only a few different schemes, store them once
+      List<String> schemaHashes = new ArrayList<String>();
+      for (Entry e : entries.values())
+      {
+        if (!schemaHashes.contains(e.schemaHash))
+        {
+          schemaHashes.add(e.schemaHash);
+        }
+      }
+      out.writeInt(schemaHashes.size());
+      for (String schemaHash : schemaHashes)
+      {
+        out.writeUTF(schemaHash);
+      }
+      
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> e : entries.entrySet())
+      {
+        out.writeUTF(e.getKey());
+        out.writeLong(e.getValue().size);
+        out.writeLong(e.getValue().modified);
+        out.writeByte(e.getValue().contentHash.length);
+        out.write(e.getValue().contentHash);
+        out.writeInt(schemaHashes.indexOf(e.getValue().schemaHash));
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+    Files.move(tmpFile, indexFile);
+    writtenAt = now;
+    changed = false;
+  }
+
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+
+  public File getIndexFile()
+  {
+    return indexFile;
+  }
+
+  private void read() throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+      new FileInputStream(indexFile)));
+    try
+    {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+      {
+        throw new IOException("unknown format");
+      }
+      writtenAt = in.readLong();
+      
+      String[] schemaHashes = new String[in.readInt()];
+      for (int i = 0; i < schemaHashes.length; i++)
+      {
+        schemaHashes[i] = in.readUTF();
+      }
+      
+      int count = in.readInt();
+      for (int i = 0; i < count; i++)
+      {
+        String key = in.readUTF();
+        long size = in.readLong();
+        long modified = in.readLong();
+        byte[] contentHash = new byte[in.readUnsignedByte()];
+        in.readFully(contentHash);
+        String schemaHash = schemaHashes[in.readInt()];
+        entries.put(key, new Entry(size, modified, contentHash, schemaHash));
+      }
+    }
+    catch (EOFException ex)
+    {
+      throw new IOException("truncated file", ex);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private String getKey(File file)
+  {
+    String path = file.getAbsolutePath();
+    String base = baseDir.getPath() + File.separator;
+    return path.startsWith(base) ? path.substring(base.length()) : path;
+  }
+
+  private static class Entry
+  {
+
+    private final long size;
+    private final long modified;
+    private final byte[] contentHash;
+    private final String schemaHash;
+
+    public Entry(long size, long modified, byte[] contentHash,
+      String schemaHash)
+    {
+      this.size = size;
+      this.modified = modified;
+      this.contentHash = contentHash;
+      this.schemaHash = schemaHash;
+    }
+  }
+}
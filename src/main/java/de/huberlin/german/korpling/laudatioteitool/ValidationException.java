@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+/**
+ * Thrown if at least one header was not valid. The parser errors of all 
+ * invalid headers are available with {@link #getErrors() }.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class ValidationException extends LaudatioException
+{
+
+  private static final long serialVersionUID = 1L;
+
+  private final TEIValidator.Errors errors;
+
+  public ValidationException(String message, TEIValidator.Errors errors)
+  {
+    super(message);
+    this.errors = errors;
+  }
+
+  public TEIValidator.Errors getErrors()
+  {
+    return errors;
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Collects the outcome and the duration of each validated file and writes 
+ * them in a machine-readable format, either as JSON or in the JUnit XML 
+ * format understood by most CI servers.
+ * 
+ * Headers that are validated against the same schema and reported for the
+ * same file (e.g. when validating a merged file in memory) are combined into
+ * one entry. Recording is thread-safe.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class ValidationReport
+{
+
+  private static final ResourceBundle messages =
+    ResourceBundle.getBundle("de/huberlin/german/korpling/laudatioteitool/Messages");
+
+  public enum Format
+  {
+    JSON, JUNIT;
+
+    /**
+     * Parses the name of a format as given on the command line.
+     *
+     * @throws LaudatioException If the format is unknown.
+     */
+    public static Format parse(String name) throws LaudatioException
+    {
+      for (Format f : values())
+      {
+        if (f.name().equalsIgnoreCase(name.trim()))
+        {
+          return f;
+        }
+      }
+      throw new LaudatioException(String.format(messages.getString(
+        "UNKNOWN REPORT FORMAT"), name));
+    }
+  }
+
+  /**
+   * Entries by schema location and file.
+   */
+  private final Map<String, Map<File, Entry>> entries =
+    new TreeMap<String, Map<File, Entry>>();
+  /**
+   * The reason by file for validations that were aborted, e.g. because the
+   * file is not well-formed.
+   */
+  private final Map<File, String> aborted = new TreeMap<File, String>();
+  private final long start = System.nanoTime();
+  private long end = -1;
+
+  /**
+   * Records the validation of a single header.
+   * 
+   * @param file The file the errors are reported for.
+   * @param validator The validator which collects the errors.
+   * @param valid
+   * @param cached True if the result was taken from a {@link ValidationCache}.
+   * @param nanos The duration of the validation.
+   */
+  public synchronized void add(File file, TEIValidator validator,
+    boolean valid, boolean cached, long nanos)
+  {
+    String schema = validator.getSchemaLocation();
+    Map<File, Entry> files = entries.get(schema);
+    if (files == null)
+    {
+      files = new TreeMap<File, Entry>();
+      entries.put(schema, files);
+    }
+    Entry e = files.get(file);
+    if (e == null)
+    {
+      e = new Entry(validator);
+      files.put(file, e);
+    }
+    e.headers++;
+    e.valid = e.valid && valid;
+    e.cached = e.cached && cached;
+    e.nanos += nanos;
+  }
+
+  /**
+   * Records that the validation of a file was aborted, the report is invalid
+   * afterwards.
+   * 
+   * @param file The input file.
+   * @param message The reason, e.g. the message of the exception.
+   */
+  public synchronized void addAborted(File file, String message)
+  {
+    aborted.put(file, message == null ? "" : message);
+  }
+
+  /**
+   * Marks the end of the validation, otherwise the total time is measured 
+   * until the report is written.
+   */
+  public synchronized void finish()
+  {
+    end = System.nanoTime();
+  }
+
+  public synchronized boolean isValid()
+  {
+    if (!aborted.isEmpty())
+    {
+      return false;
+    }
+    for (Map<File, Entry> files : entries.values())
+    {
+      for (Entry e : files.values())
+      {
+        if (!e.valid)
+        {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  public synchronized int size()
+  {
+    int size = aborted.size();
+    for (Map<File, Entry> files : entries.values())
+    {
+      size += files.size();
+    }
+    return size;
+  }
+
+  public void write(Writer out, Format format) throws IOException
+  {
+    if (format == Format.JUNIT)
+    {
+      writeJUnit(out);
+    }
+    else
+    {
+      writeJson(out);
+    }
+  }
+
+  /**
+   * Writes the report as a JSON object with a summary per schema and an 
+   * entry with the errors for every file. Times are given in milliseconds.
+   */
+  public synchronized void writeJson(Writer out) throws IOException
+  {
+    JsonWriter json = new JsonWriter(out);
+    json.beginObject()
+      .name("valid").value(isValid())
+      .name("time").value(millis(getTotalNanos()));
+
+    json.name("schemas").beginArray();
+    for (Map.Entry<String, Map<File, Entry>> s : entries.entrySet())
+    {
+      Summary sum = new Summary(s.getValue());
+      json.beginObject()
+        .name("schema").value(s.getKey())
+        .name("files").value(s.getValue().size())
+        .name("invalid").value(sum.invalid)
+        .name("time").value(millis(sum.nanos))
+        .endObject();
+    }
+    json.endArray();
+
+    json.name("files").beginArray();
+    for (Map.Entry<String, Map<File, Entry>> s : entries.entrySet())
+    {
+      for (Map.Entry<File, Entry> f : s.getValue().entrySet())
+      {
+        Entry e = f.getValue();
+        json.beginObject()
+          .name("file").value(f.getKey().getPath())
+          .name("schema").value(s.getKey())
+          .name("valid").value(e.valid)
+          .name("cached").value(e.cached)
+          .name("headers").value(e.headers)
+          .name("time").value(millis(e.nanos))
+          .name("errors").beginArray();
+        for (SAXParseException ex : e.getErrors(f.getKey()))
+        {
+          json.beginObject()
+            .name("line").value(ex.getLineNumber())
+            .name("column").value(ex.getColumnNumber())
+            .name("message").value(ex.getLocalizedMessage())
+            .endObject();
+        }
+        json.endArray().endObject();
+      }
+    }
+    for (Map.Entry<File, String> a : aborted.entrySet())
+    {
+      json.beginObject()
+        .name("file").value(a.getKey().getPath())
+        .name("valid").value(false)
+        .name("aborted").value(a.getValue())
+        .name("errors").beginArray().endArray()
+        .endObject();
+    }
+    json.endArray();
+
+    json.endObject();
+    out.write('\n');
+    json.flush();
+  }
+
+  /**
+   * Writes the report in the JUnit XML format. Each schema is a test suite
+   * and each file a test case, invalid files are reported as failures.
+   */
+  public synchronized void writeJUnit(Writer out) throws IOException
+  {
+    try
+    {
+      XMLStreamWriter xml = XMLOutputFactory.newInstance().
+        createXMLStreamWriter(out);
+      xml.writeStartDocument("UTF-8", "1.0");
+      xml.writeCharacters("\n");
+
+      int failures = aborted.size();
+      for (Map<File, Entry> files : entries.values())
+      {
+        failures += new Summary(files).invalid;
+      }
+      xml.writeStartElement("testsuites");
+      xml.writeAttribute("name", "teitool");
+      xml.writeAttribute("tests", Integer.toString(size()));
+      xml.writeAttribute("failures", Integer.toString(failures));
+      xml.writeAttribute("time", seconds(getTotalNanos()));
+      xml.writeCharacters("\n");
+
+      for (Map.Entry<String, Map<File, Entry>> s : entries.entrySet())
+      {
+        Summary sum = new Summary(s.getValue());
+        xml.writeStartElement("testsuite");
+        xml.writeAttribute("name", s.getKey());
+        xml.writeAttribute("tests", Integer.toString(s.getValue().size()));
+        xml.writeAttribute("failures", Integer.toString(sum.invalid));
+        xml.writeAttribute("errors", "0");
+        xml.writeAttribute("time", seconds(sum.nanos));
+        xml.writeCharacters("\n");
+
+        for (Map.Entry<File, Entry> f : s.getValue().entrySet())
+        {
+          Entry e = f.getValue();
+          xml.writeStartElement("testcase");
+          xml.writeAttribute("classname", s.getKey());
+          xml.writeAttribute("name", f.getKey().getPath());
+          xml.writeAttribute("time", seconds(e.nanos));
+          if (!e.valid)
+          {
+            List<SAXParseException> errors = e.getErrors(f.getKey());
+            xml.writeStartElement("failure");
+            xml.writeAttribute("message", errors.size()
+              + (errors.size() == 1 ? " error" : " errors"));
+            xml.writeAttribute("type", "validation");
+            StringBuilder text = new StringBuilder();
+            for (SAXParseException ex : errors)
+            {
+              text.append("[line ").append(ex.getLineNumber())
+                .append("/column ").append(ex.getColumnNumber()).append("] ")
+                .append(ex.getLocalizedMessage()).append("\n");
+            }
+            xml.writeCharacters(text.toString());
+            xml.writeEndElement();
+          }
+          xml.writeEndElement();
+          xml.writeCharacters("\n");
+        }
+
+        xml.writeEndElement();
+        xml.writeCharacters("\n");
+      }
+
+      if (!aborted.isEmpty())
+      {
+        writeAbortedSuite(xml);
+      }
+
+      xml.writeEndElement();
+      xml.writeCharacters("\n");
+      xml.writeEndDocument();
+      xml.flush();
+      out.flush();
+    }
+    catch (XMLStreamException ex)
+    {
+      throw new IOException(ex);
+    }
+  }
+
+  /**
+   * Writes the aborted files as failed test cases of the suite "aborted".
+   */
+  private void writeAbortedSuite(XMLStreamWriter xml) throws XMLStreamException
+  {
+    xml.writeStartElement("testsuite");
+    xml.writeAttribute("name", "aborted");
+    xml.writeAttribute("tests", Integer.toString(aborted.size()));
+    xml.writeAttribute("failures", Integer.toString(aborted.size()));
+    xml.writeAttribute("errors", "0");
+    xml.writeAttribute("time", seconds(0));
+    xml.writeCharacters("\n");
+    for (Map.Entry<File, String> a : aborted.entrySet())
+    {
+      xml.writeStartElement("testcase");
+      xml.writeAttribute("classname", "aborted");
+      xml.writeAttribute("name", a.getKey().getPath());
+      xml.writeAttribute("time", seconds(0));
+      xml.writeStartElement("failure");
+      xml.writeAttribute("message", a.getValue());
+      xml.writeAttribute("type", "aborted");
+      xml.writeCharacters(a.getValue());
+      xml.writeEndElement();
+      xml.writeEndElement();
+      xml.writeCharacters("\n");
+    }
+    xml.writeEndElement();
+    xml.writeCharacters("\n");
+  }
+
+  private long getTotalNanos()
+  {
+    return (end < 0 ? System.nanoTime() : end) - start;
+  }
+
+  private static long millis(long nanos)
+  {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  private static String seconds(long nanos)
+  {
+    return String.format(Locale.ENGLISH, "%.3f", nanos / 1e9);
+  }
+
+  private static class Entry
+  {
+
+    private final TEIValidator validator;
+    private int headers = 0;
+    private boolean valid = true;
+    private boolean cached = true;
+    private long nanos = 0;
+
+    public Entry(TEIValidator validator)
+    {
+      this.validator = validator;
+    }
+
+    public List<SAXParseException> getErrors(File file)
+    {
+      if (valid)
+      {
+        return Collections.emptyList();
+      }
+      return validator.getErrors().getErrors(file);
+    }
+  }
+
+  private static class Summary
+  {
+
+    private int invalid = 0;
+    private long nanos = 0;
+
+    public Summary(Map<File, Entry> files)
+    {
+      for (Entry e : files.values())
+      {
+        nanos += e.nanos;
+        if (!e.valid)
+        {
+          invalid++;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Watches a corpus directory with the "CorpusHeader", "DocumentHeader" and
+ * "PreparationHeader" sub-directories and validates a header file again
+ * whenever it changes. All files are validated once at the start, after
+ * that only the changed files are validated. The validators and thus the
+ * compiled schemes are kept for the whole time.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class WatchTEI
+{
+
+  private static final ResourceBundle messages =
+    ResourceBundle.getBundle("de/huberlin/german/korpling/laudatioteitool/Messages");
+  private final static Logger log = LoggerFactory.getLogger(WatchTEI.class);
+
+  private static final List<String> HEADER_DIRS = Arrays.asList(
+    "CorpusHeader", "DocumentHeader", "PreparationHeader");
+
+  private final File inputDir;
+  private final Map<String, TEIValidator> validators =
+    new HashMap<String, TEIValidator>();
+
+  /**
+   * The known header files and their errors, the list is empty for valid
+   * files.
+   */
+  private final SortedMap<File, List<SAXParseException>> files =
+    new TreeMap<File, List<SAXParseException>>();
+
+  private long debounce = 200;
+  private int checks = 0;
+  private ErrorReporter errorReporter;
+  private volatile WatchService watcher;
+  private volatile boolean stopped = false;
+
+  public WatchTEI(File inputDir, String corpusSchemeURL,
+    String documentSchemeURL, String preparationSchemeURL)
+  {
+    this.inputDir = inputDir;
+
+    TEIValidator corpus = corpusSchemeURL == null ? new TEICorpusValidator()
+      : new FromURLValidator(corpusSchemeURL);
+    corpus.setHeaderType("corpus");
+    validators.put("CorpusHeader", corpus);
+
+    TEIValidator document = documentSchemeURL == null
+      ? new TEIDocumentValidator() : new FromURLValidator(documentSchemeURL);
+    document.setHeaderType("document");
+    validators.put("DocumentHeader", document);
+
+    TEIValidator preparation = preparationSchemeURL == null
+      ? new TEIPreparationValidator()
+      : new FromURLValidator(preparationSchemeURL);
+    preparation.setHeaderType("preparation");
+    validators.put("PreparationHeader", preparation);
+  }
+
+  /**
+   * Validates all header files and then waits for changes until
+   * {@link #stop() } is called or the thread is interrupted.
+   *
+   * @throws LaudatioException
+   */
+  public void watch() throws LaudatioException
+  {
+    if(!inputDir.isDirectory())
+    {
+      throw new LaudatioException(messages.getString(
+        "INPUT FILE DOES NOT EXIST"));
+    }
+    try
+    {
+      watcher = inputDir.toPath().getFileSystem().newWatchService();
+      if(stopped)
+      {
+        watcher.close();
+        return;
+      }
+      try
+      {
+        Set<File> changed = new TreeSet<File>();
+        // the corpus directory itself is only watched for new sub-directories
+        register(inputDir.toPath());
+        for(String name : HEADER_DIRS)
+        {
+          File dir = new File(inputDir, name);
+          if(dir.isDirectory())
+          {
+            register(dir.toPath());
+            changed.addAll(listHeaders(dir));
+          }
+        }
+        check(changed);
+        log.info(messages.getString("WATCHING"), inputDir.getPath());
+
+        while(true)
+        {
+          changed.clear();
+          WatchKey key = watcher.take();
+          // editors often write a file in several steps, wait until it is quiet
+          while(key != null)
+          {
+            collect(key, changed);
+            key = watcher.poll(debounce, TimeUnit.MILLISECONDS);
+          }
+          if(!changed.isEmpty())
+          {
+            check(changed);
+          }
+        }
+      }
+      catch(ClosedWatchServiceException ex)
+      {
+        // stopped
+      }
+      catch(InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+      }
+      finally
+      {
+        watcher.close();
+      }
+    }
+    catch(IOException ex)
+    {
+      throw new LaudatioException(ex.getLocalizedMessage());
+    }
+  }
+
+  /**
+   * Stops watching, {@link #watch() } will return.
+   */
+  public void stop()
+  {
+    stopped = true;
+    WatchService w = watcher;
+    if(w != null)
+    {
+      try
+      {
+        w.close();
+      }
+      catch(IOException ex)
+      {
+        log.warn(null, ex);
+      }
+    }
+  }
+
+  private void register(Path dir) throws IOException
+  {
+    dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+      StandardWatchEventKinds.ENTRY_DELETE,
+      StandardWatchEventKinds.ENTRY_MODIFY);
+  }
+
+  /**
+   * Adds the files affected by the events of a key. A directory that can't 
+   * be registered or listed is logged, watching the others continues.
+   */
+  private void collect(WatchKey key, Set<File> changed)
+  {
+    Path dir = (Path) key.watchable();
+    boolean isRoot = dir.equals(inputDir.toPath());
+    for(WatchEvent<?> event : key.pollEvents())
+    {
+      if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+      {
+        // events were lost, check everything
+        for(String name : HEADER_DIRS)
+        {
+          addHeaders(new File(inputDir, name), changed);
+        }
+        synchronized(this)
+        {
+          changed.addAll(files.keySet());
+        }
+        continue;
+      }
+      File f = dir.resolve((Path) event.context()).toFile();
+      if(!isRoot)
+      {
+        if(CorpusFiles.isXMLFile(f.getName()))
+        {
+          changed.add(f);
+        }
+      }
+      else if(HEADER_DIRS.contains(f.getName()))
+      {
+        if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+          && f.isDirectory())
+        {
+          try
+          {
+            register(f.toPath());
+          }
+          catch(IOException ex)
+          {
+            log.warn(messages.getString("COULD NOT WATCH DIRECTORY"),
+              f.getPath(), ex.getMessage());
+          }
+          addHeaders(f, changed);
+        }
+        else if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+        {
+          synchronized(this)
+          {
+            for(File known : files.keySet())
+            {
+              if(known.getParentFile().equals(f))
+              {
+                changed.add(known);
+              }
+            }
+          }
+        }
+      }
+    }
+    key.reset();
+  }
+
+  /**
+   * Validates the changed files again and reports their errors.
+   */
+  private void check(Set<File> changed)
+  {
+    long start = System.nanoTime();
+    List<File> invalid = new ArrayList<File>();
+    for(File f : changed)
+    {
+      List<SAXParseException> errors = validate(f);
+      synchronized(this)
+      {
+        if(errors == null)
+        {
+          files.remove(f);
+        }
+        else
+        {
+          files.put(f, errors);
+        }
+      }
+      if(errors != null && !errors.isEmpty())
+      {
+        invalid.add(f);
+      }
+      else if(errors != null && checks > 0)
+      {
+        log.info(messages.getString("HEADER FILE IS VALID"), f.getPath());
+      }
+    }
+
+    if(errorReporter != null && !invalid.isEmpty())
+    {
+      try
+      {
+        TEIValidator.Errors errors = new TEIValidator.Errors();
+        for(File f : invalid)
+        {
+          errors.put(f, getErrors(f));
+        }
+        errorReporter.report(errors);
+      }
+      catch(IOException ex)
+      {
+        log.error(null, ex);
+      }
+    }
+
+    synchronized(this)
+    {
+      checks++;
+      int errorCount = 0;
+      for(List<SAXParseException> errors : files.values())
+      {
+        errorCount += errors.size();
+      }
+      log.info(messages.getString("WATCH SUMMARY"), new Object[]
+      {
+        getInvalidFiles().size(), files.size(), errorCount, changed.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+      });
+      notifyAll();
+    }
+  }
+
+  /**
+   * @return The errors of the file, which are empty if it is valid, or null
+   * if it is not a header file (any longer).
+   */
+  private List<SAXParseException> validate(File f)
+  {
+    TEIValidator validator = validators.get(f.getParentFile().getName());
+    if(validator == null || !f.isFile())
+    {
+      return null;
+    }
+    try
+    {
+      // also fatal errors of files which are not well-formed are collected
+      validator.validate(f);
+      List<SAXParseException> errors = validator.getErrors().remove(f);
+      return errors == null ? new ArrayList<SAXParseException>() : errors;
+    }
+    catch(IOException ex)
+    {
+      // the file might be written right now, wait for the next event
+      log.warn(messages.getString("COULD NOT READ HEADER FILE"), f.getPath(),
+        ex.getMessage());
+      synchronized(this)
+      {
+        return files.get(f);
+      }
+    }
+  }
+
+  private void addHeaders(File dir, Set<File> changed)
+  {
+    try
+    {
+      changed.addAll(listHeaders(dir));
+    }
+    catch(IOException ex)
+    {
+      log.warn(messages.getString("COULD NOT WATCH DIRECTORY"), dir.getPath(),
+        ex.getMessage());
+    }
+  }
+
+  private static List<File> listHeaders(File dir) throws IOException
+  {
+    File[] headers = CorpusFiles.listHeaders(dir.getParentFile(),
+      dir.getName());
+    if(headers == null)
+    {
+      return Collections.emptyList();
+    }
+    return Arrays.asList(headers);
+  }
+
+  /**
+   * Waits until the files were checked the given number of times, the first
+   * check validates all files.
+   *
+   * @param count
+   * @param timeout Maximal time to wait in milliseconds.
+   * @return True if the files were checked often enough.
+   * @throws InterruptedException
+   */
+  public synchronized boolean awaitChecks(int count, long timeout)
+    throws InterruptedException
+  {
+    long end = System.currentTimeMillis() + timeout;
+    while(checks < count)
+    {
+      long remaining = end - System.currentTimeMillis();
+      if(remaining <= 0)
+      {
+        return false;
+      }
+      wait(remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Waits until exactly the given files are invalid.
+   *
+   * @param expected
+   * @param timeout Maximal time to wait in milliseconds.
+   * @return True if the invalid files are the expected ones.
+   * @throws InterruptedException
+   */
+  public synchronized boolean awaitInvalidFiles(Set<File> expected,
+    long timeout) throws InterruptedException
+  {
+    long end = System.currentTimeMillis() + timeout;
+    while(!getInvalidFiles().equals(expected))
+    {
+      long remaining = end - System.currentTimeMillis();
+      if(remaining <= 0)
+      {
+        return false;
+      }
+      wait(remaining);
+    }
+    return true;
+  }
+
+  public synchronized int getChecks()
+  {
+    return checks;
+  }
+
+  /**
+   * @return The header files which had errors when they were checked last.
+   */
+  public synchronized Set<File> getInvalidFiles()
+  {
+    Set<File> result = new TreeSet<File>();
+    for(Map.Entry<File, List<SAXParseException>> e : files.entrySet())
+    {
+      if(!e.getValue().isEmpty())
+      {
+        result.add(e.getKey());
+      }
+    }
+    return result;
+  }
+
+  public synchronized List<SAXParseException> getErrors(File file)
+  {
+    List<SAXParseException> errors = files.get(file);
+    return errors == null ? Collections.<SAXParseException>emptyList()
+      : Collections.unmodifiableList(errors);
+  }
+
+  public long getDebounce()
+  {
+    return debounce;
+  }
+
+  /**
+   * Set how long to wait for further changes before the changed files are
+   * validated (default 200 ms).
+   *
+   * @param debounce The time in milliseconds.
+   */
+  public void setDebounce(long debounce)
+  {
+    this.debounce = debounce;
+  }
+
+  public ErrorReporter getErrorReporter()
+  {
+    return errorReporter;
+  }
+
+  /**
+   * Set the reporter for the errors of changed files.
+   *
+   * @param errorReporter The reporter or null to only log the summary.
+   */
+  public void setErrorReporter(ErrorReporter errorReporter)
+  {
+    this.errorReporter = errorReporter;
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Corpuslinguistic working group Humboldt University Berlin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.huberlin.german.korpling.laudatioteitool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+import org.jdom2.Document;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+
+/**
+ * Writes the XML files created by the tool. All files are written as UTF-8 
+ * through a large buffer and are always closed, even if writing fails.
+ * Files ending with ".gz" are compressed with gzip.
+ * 
+ * An instance can be shared by several threads, the {@link XMLOutputter} is
+ * thread-safe as long as its format is not changed.
+ *
+ * @author Thomas Krause <thomas.krause@alumni.hu-berlin.de>
+ */
+public class XMLFileOutput
+{
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final Metrics.Counter bytesWritten =
+    Metrics.getInstance().counter("bytes_written");
+  private static final Metrics.Timer writeTimer =
+    Metrics.getInstance().timer("write");
+  private static final Metrics.Counter headersWritten =
+    Metrics.getInstance().counter("headers_written");
+
+  private final boolean compact;
+  private final Format format;
+  private final XMLOutputter outputter;
+
+  /**
+   * @param compact If true the output is not indented, which is faster and 
+   * smaller than the default pretty printed output.
+   */
+  public XMLFileOutput(boolean compact)
+  {
+    this.compact = compact;
+    this.format = compact ? Format.getCompactFormat() : Format.getPrettyFormat();
+    this.outputter = new XMLOutputter(format);
+  }
+
+  /**
+   * Opens a buffered UTF-8 writer for a file. The caller has to close it.
+   * Files ending with ".gz" are compressed.
+   * 
+   * @param file
+   * @return
+   * @throws IOException 
+   */
+  public Writer open(File file) throws IOException
+  {
+    return open(file, CorpusFiles.isGzip(file));
+  }
+
+  /**
+   * Opens a buffered UTF-8 writer for a file. The caller has to close it.
+   * 
+   * @param file
+   * @param gzip If true the output is compressed with gzip.
+   * @return
+   * @throws IOException 
+   */
+  public Writer open(File file, boolean gzip) throws IOException
+  {
+    OutputStream out = Metrics.getInstance().meter(new FileOutputStream(file),
+      bytesWritten);
+    try
+    {
+      out = gzip ? new GZIPOutputStream(out, BUFFER_SIZE)
+        : new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+    catch (IOException ex)
+    {
+      out.close();
+      throw ex;
+    }
+    return new OutputStreamWriter(out, "UTF-8");
+  }
+
+  /**
+   * Writes a complete document to a file.
+   * 
+   * @param doc
+   * @param file
+   * @throws IOException 
+   */
+  public void write(Document doc, File file) throws IOException
+  {
+    long start = System.nanoTime();
+    Writer out = open(file);
+    try
+    {
+      outputter.output(doc, out);
+    }
+    finally
+    {
+      out.close();
+    }
+    writeTimer.stop(start);
+    headersWritten.increment();
+  }
+
+  /**
+   * Creates a writer for a merged corpus with the same format.
+   * 
+   * @param out
+   * @return 
+   */
+  public TEICorpusWriter createCorpusWriter(Writer out)
+  {
+    return new TEICorpusWriter(out, format);
+  }
+
+  public Format getFormat()
+  {
+    return format;
+  }
+
+  public boolean isCompact()
+  {
+    return compact;
+  }
+}
@@ -0,0 +1,113 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Tests for {@link BatchRunner}.
+ */
+public class BatchRunnerTest extends TmpDirTestCase
+{
+
+  private File corpusDir;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    corpusDir = new File(BatchRunnerTest.class.getResource("corpus").toURI());
+  }
+
+  public void testManifest() throws Exception
+  {
+    File merged = new File(tmpDir, "merged corpus.xml");
+    new MergeTEI(corpusDir, merged, null, null, null).merge();
+
+    File manifest = new File(tmpDir, "manifest.txt");
+    Files.write("# jobs\n"
+      + "\n"
+      + "\"merged corpus.xml\"\n"
+      + "split \"merged corpus.xml\" split\n"
+      + "validate missing\n", manifest, Charsets.UTF_8);
+
+    List<BatchRunner.Job> jobs = BatchRunner.readManifest(manifest);
+    assertEquals(3, jobs.size());
+    assertEquals(BatchRunner.Operation.VALIDATE, jobs.get(0).getOperation());
+    assertEquals(merged, jobs.get(0).getInput());
+    assertEquals(new File(tmpDir, "split"), jobs.get(1).getOutput());
+
+    BatchRunner runner = new BatchRunner(TeiTool.builder().build(), jobs);
+    runner.setParallel(2);
+    List<BatchRunner.Result> results = runner.run();
+    assertEquals(BatchRunner.Status.VALID, results.get(0).getStatus());
+    assertEquals(BatchRunner.Status.VALID, results.get(1).getStatus());
+    assertEquals(BatchRunner.Status.FAILED, results.get(2).getStatus());
+    assertTrue(new File(tmpDir, "split/DocumentHeader").isDirectory());
+
+    StringWriter summary = new StringWriter();
+    BatchRunner.writeSummary(summary, results);
+    assertTrue(summary.toString().contains(
+      "3 corpora: 2 valid, 0 invalid, 1 failed"));
+  }
+
+  public void testInterruptedRunHasResultForEachJob() throws Exception
+  {
+    List<BatchRunner.Job> jobs = BatchRunner.glob(corpusDir.getPath());
+    jobs.addAll(BatchRunner.glob(corpusDir.getPath()));
+    jobs.addAll(BatchRunner.glob(corpusDir.getPath()));
+    BatchRunner runner = new BatchRunner(TeiTool.builder().build(), jobs);
+    runner.setParallel(2);
+    Thread.currentThread().interrupt();
+    List<BatchRunner.Result> results;
+    try
+    {
+      results = runner.run();
+    }
+    finally
+    {
+      Thread.interrupted();
+    }
+    assertEquals(3, results.size());
+    for (BatchRunner.Result r : results)
+    {
+      assertEquals(BatchRunner.Status.FAILED, r.getStatus());
+    }
+    StringWriter summary = new StringWriter();
+    BatchRunner.writeSummary(summary, results);
+    assertTrue(summary.toString().contains("3 corpora: "));
+  }
+
+  public void testMalformedManifest() throws Exception
+  {
+    File manifest = new File(tmpDir, "manifest.txt");
+    Files.write("merge only-input\n", manifest, Charsets.UTF_8);
+    try
+    {
+      BatchRunner.readManifest(manifest);
+      fail("missing output was not detected");
+    }
+    catch (LaudatioException ex)
+    {
+      // expected
+    }
+  }
+
+  public void testGlob() throws Exception
+  {
+    new File(tmpDir, "a/x").mkdirs();
+    new File(tmpDir, "b/x").mkdirs();
+    new File(tmpDir, "b/y").mkdirs();
+    new File(tmpDir, "c.xml").createNewFile();
+
+    List<BatchRunner.Job> jobs = BatchRunner.glob(tmpDir.getPath() + "/*/x");
+    assertEquals(2, jobs.size());
+    assertEquals(new File(tmpDir, "a/x"), jobs.get(0).getInput());
+    assertEquals(new File(tmpDir, "b/x"), jobs.get(1).getInput());
+
+    assertEquals(1, BatchRunner.glob(tmpDir.getPath() + "/?.xml").size());
+    assertEquals(0, BatchRunner.glob(tmpDir.getPath() + "/*.rng").size());
+  }
+}
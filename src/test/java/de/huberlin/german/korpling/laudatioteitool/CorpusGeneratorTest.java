@@ -0,0 +1,50 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.io.Files;
+import java.io.File;
+
+/**
+ * Tests for {@link CorpusGenerator}.
+ */
+public class CorpusGeneratorTest extends TmpDirTestCase
+{
+
+  private CorpusGenerator createGenerator(File output, long seed)
+  {
+    CorpusGenerator generator = new CorpusGenerator(output);
+    generator.setSeed(seed);
+    generator.setDocuments(5);
+    generator.setPreparationSteps(3);
+    generator.setHeaderSize(4);
+    return generator;
+  }
+
+  public void testGeneratedCorporaAreValid() throws Exception
+  {
+    File merged = new File(tmpDir, "merged.xml");
+    File split = new File(tmpDir, "split");
+    createGenerator(merged, 42).generate();
+    createGenerator(split, 42).generate();
+
+    assertEquals(5, new File(split, "DocumentHeader").list().length);
+    assertEquals(15, new File(split, "PreparationHeader").list().length);
+
+    // throw an exception if invalid
+    new SplitTEI(merged, null, null, null, null).validate();
+    new MergeTEI(split, new File(tmpDir, "remerged.xml"), null, null, null).
+      merge();
+  }
+
+  public void testSameSeedGivesSameCorpus() throws Exception
+  {
+    File first = new File(tmpDir, "first.xml");
+    File second = new File(tmpDir, "second.xml");
+    File other = new File(tmpDir, "other.xml");
+    createGenerator(first, 1).generate();
+    createGenerator(second, 1).generate();
+    createGenerator(other, 2).generate();
+
+    assertTrue(Files.equal(first, second));
+    assertFalse(Files.equal(first, other));
+  }
+}
@@ -0,0 +1,185 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Tests for {@link ErrorReporter}.
+ */
+public class ErrorReporterTest extends TmpDirTestCase
+{
+
+  private File a;
+  private File b;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    a = new File(tmpDir, "a.xml");
+    b = new File(tmpDir, "b.xml");
+    Files.write("<a>\n  <b/>\n  <c/>\n  <d/>\n</a>\n", a, Charsets.UTF_8);
+    Files.write("<x/>\n", b, Charsets.UTF_8);
+  }
+
+  private static SAXParseException error(String msg, int line, int column)
+  {
+    return new SAXParseException(msg, null, null, line, column);
+  }
+
+  public void testShowsAffectedLines() throws Exception
+  {
+    TEIValidator.Errors errors = new TEIValidator.Errors();
+    errors.addError(a, error("element \"c\" not allowed", 3, 4));
+
+    String expected = a.getPath() + " has 1 error\n"
+      + Strings.repeat("=", a.getPath().length() + 12)
+      + "\n"
+      + "[line 3/column 4]\n"
+      + "element \"c\" not allowed\n"
+      + "  <c/>\n"
+      + "   ^\n"
+      + "-----------------------\n";
+    assertEquals(expected, TEIValidator.formatParserExceptions(errors));
+  }
+
+  public void testLimits() throws Exception
+  {
+    TEIValidator.Errors errors = new TEIValidator.Errors();
+    errors.addError(a, error("first", 2, 3));
+    errors.addError(a, error("second", 4, 3));
+    errors.addError(a, error("third", 99, 1));
+    errors.addError(b, error("broken", 1, 1));
+
+    StringWriter out = new StringWriter();
+    ErrorReporter reporter = new ErrorReporter(out);
+    reporter.setMaxErrorsPerFile(1);
+    reporter.report(errors);
+    String report = out.toString();
+    assertTrue(report.contains("first"));
+    assertFalse(report.contains("second"));
+    assertTrue(report.contains("... 2 more errors\n"));
+    assertTrue(report.contains("broken"));
+
+    out = new StringWriter();
+    reporter = new ErrorReporter(out);
+    reporter.setMaxErrors(2);
+    reporter.report(errors);
+    report = out.toString();
+    assertTrue(report.contains("  <d/>\n"));
+    assertFalse(report.contains("third"));
+    assertFalse(report.contains("broken"));
+    assertTrue(report.contains("... 1 more errors\n"));
+    assertTrue(report.contains("... 1 more errors in 1 other files\n"));
+  }
+
+  public void testTotalLimitPerReport() throws Exception
+  {
+    TEIValidator.Errors errors = new TEIValidator.Errors();
+    errors.addError(a, error("first", 2, 3));
+    errors.addError(a, error("second", 4, 3));
+
+    StringWriter out = new StringWriter();
+    ErrorReporter reporter = new ErrorReporter(out);
+    reporter.setMaxErrors(2);
+    reporter.report(errors);
+    // e.g. the next corpus of a batch
+    StringWriter next = new StringWriter();
+    new ErrorReporter(next).report(errors);
+    reporter.report(errors);
+    assertEquals(out.toString(), next.toString() + next.toString());
+  }
+
+  public void testLimitsOfSingleFileReports() throws Exception
+  {
+    StringWriter out = new StringWriter();
+    ErrorReporter reporter = new ErrorReporter(out);
+    reporter.setMaxErrorsPerFile(2);
+    reporter.setMaxErrors(3);
+    // e.g. two headers of the same merged corpus
+    reporter.report(a, Arrays.asList(error("first", 2, 3)));
+    reporter.report(a, Arrays.asList(error("second", 3, 3), 
+      error("third", 4, 3)));
+    reporter.report(b, Arrays.asList(error("broken", 1, 1)));
+    reporter.report(b, Arrays.asList(error("skipped", 1, 1)));
+    reporter.finish();
+    String report = out.toString();
+    assertTrue(report.contains("second"));
+    assertFalse(report.contains("third"));
+    assertTrue(report.contains("... 1 more errors\n"));
+    assertTrue(report.contains("broken"));
+    assertFalse(report.contains("skipped"));
+    assertTrue(report.endsWith("... 1 more errors in 1 file\n"));
+
+    // the limits start again after finishing
+    out.getBuffer().setLength(0);
+    reporter.report(b, Arrays.asList(error("again", 1, 1)));
+    assertTrue(out.toString().contains("again"));
+  }
+
+  public void testReportsEachFileWhenValidated() throws Exception
+  {
+    File corpusDir = new File(tmpDir, "corpus");
+    CorpusGenerator generator = new CorpusGenerator(corpusDir);
+    generator.setDocuments(3);
+    generator.generate();
+    File invalid = new File(corpusDir, "DocumentHeader").listFiles()[0];
+    Files.write(Files.toString(invalid, Charsets.UTF_8).replace("<title>", 
+      "<foo /><title>"), invalid, Charsets.UTF_8);
+
+    StringWriter out = new StringWriter();
+    MergeTEI merge = new MergeTEI(corpusDir, null, null, null, null);
+    merge.setErrorReporter(new ErrorReporter(out));
+    try
+    {
+      merge.validate();
+      fail("invalid document header was not detected");
+    }
+    catch (ValidationException ex)
+    {
+      // reported before the validation finished
+      assertTrue(out.toString().startsWith(invalid.getPath() + " has "));
+      assertTrue(out.toString().contains("<foo />"));
+      assertFalse(out.toString().contains("more errors"));
+    }
+  }
+
+  public void testSeeksToHeaderOfMergedCorpus() throws Exception
+  {
+    File corpusDir = new File(ErrorReporterTest.class.getResource("corpus").toURI());
+    for (boolean compact : new boolean[] {false, true})
+    {
+      File merged = new File(tmpDir, "merged" + compact + ".xml");
+      MergeTEI merge = new MergeTEI(corpusDir, merged, null, null, null);
+      merge.setCompact(compact);
+      merge.merge();
+      Files.write(Files.toString(merged, Charsets.UTF_8).replace(
+        "<title>Doc 2</title>", "<foo />"), merged, Charsets.UTF_8);
+      assertTrue(HeaderIndex.open(merged).getIndexFile().isFile());
+
+      StringWriter out = new StringWriter();
+      ExtractTEI extract = new ExtractTEI(merged, "d2", null, null, null);
+      extract.setErrorReporter(new ErrorReporter(out));
+      try
+      {
+        extract.validate();
+        fail("invalid document header was not detected");
+      }
+      catch (ValidationException ex)
+      {
+        List<String> lines = Files.readLines(merged, Charsets.UTF_8);
+        for (SAXParseException error : ex.getErrors().getErrors(merged))
+        {
+          String line = lines.get(error.getLineNumber() - 1);
+          assertTrue(out.toString().contains("\n" + line + "\n"));
+        }
+      }
+    }
+  }
+}
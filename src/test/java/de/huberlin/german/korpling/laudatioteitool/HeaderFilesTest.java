@@ -0,0 +1,83 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link HeaderFiles}.
+ */
+public class HeaderFilesTest extends TmpDirTestCase
+{
+
+  private List<String> expected;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    expected = new ArrayList<String>();
+    Random random = new Random(42);
+    for (int i = 0; i < 23; i++)
+    {
+      String name = "h" + random.nextInt(100000) + "_" + i + ".xml";
+      Files.write("<TEI />", new File(tmpDir, name), Charsets.UTF_8);
+      expected.add(name);
+    }
+    Collections.sort(expected);
+    // neither other files nor directories are headers
+    Files.write("", new File(tmpDir, "notes.txt"), Charsets.UTF_8);
+    assertTrue(new File(tmpDir, "old.xml").mkdir());
+  }
+
+  private static List<String> names(HeaderFiles files) throws Exception
+  {
+    List<String> result = new ArrayList<String>();
+    try
+    {
+      for (File f : files)
+      {
+        result.add(f.getName());
+      }
+    }
+    finally
+    {
+      files.close();
+    }
+    return result;
+  }
+
+  private static int countChunkFiles()
+  {
+    File dir = new File(System.getProperty("java.io.tmpdir"));
+    return dir.list(new FilenameFilter()
+    {
+      @Override
+      public boolean accept(File dir, String name)
+      {
+        return name.startsWith("teitool-names");
+      }
+    }).length;
+  }
+
+  public void testUnsorted() throws Exception
+  {
+    List<String> names = names(HeaderFiles.open(tmpDir, false));
+    assertEquals(expected.size(), names.size());
+    assertEquals(new HashSet<String>(expected), new HashSet<String>(names));
+  }
+
+  public void testExternalSort() throws Exception
+  {
+    int chunkFiles = countChunkFiles();
+    assertEquals(expected, names(HeaderFiles.open(tmpDir, true, 4)));
+    assertEquals(expected, names(HeaderFiles.open(tmpDir, true)));
+    assertEquals(chunkFiles, countChunkFiles());
+  }
+}
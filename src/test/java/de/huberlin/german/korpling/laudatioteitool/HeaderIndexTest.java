@@ -0,0 +1,110 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.List;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Tests for {@link HeaderIndex} and {@link ExtractTEI}.
+ */
+public class HeaderIndexTest extends TmpDirTestCase
+{
+
+  private File mergedFile;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    File corpusDir = new File(HeaderIndexTest.class.getResource("corpus").toURI());
+    mergedFile = new File(tmpDir, "merged.xml");
+    new MergeTEI(corpusDir, mergedFile, null, null, null).merge();
+  }
+
+  public void testIndexIsReused() throws Exception
+  {
+    HeaderIndex index = HeaderIndex.open(mergedFile);
+    assertTrue(index.isRebuilt());
+    assertTrue(index.getIndexFile().isFile());
+    assertEquals(7, index.getEntries().size());
+    assertEquals("document", index.get("d2").getType());
+    assertEquals("preparation", index.get("#pos_2").getType());
+
+    assertFalse(HeaderIndex.open(mergedFile).isRebuilt());
+
+    // a changed corpus file must not use the old offsets
+    String merged = Files.toString(mergedFile, Charsets.UTF_8);
+    Files.write(merged.replace("xml:id=\"d2\"", "xml:id=\"d22\""), mergedFile,
+      Charsets.UTF_8);
+    index = HeaderIndex.open(mergedFile);
+    assertTrue(index.isRebuilt());
+    assertNull(index.get("d2"));
+    assertNotNull(index.get("d22"));
+  }
+
+  public void testExtractEqualsRawSplit() throws Exception
+  {
+    File split = new File(tmpDir, "split");
+    SplitTEI raw = new SplitTEI(mergedFile, split, null, null, null);
+    raw.setRaw(true);
+    raw.split();
+
+    File extracted = new File(tmpDir, "d2.xml");
+    new ExtractTEI(mergedFile, "d2", null, null, null).extract(extracted);
+    assertTrue(Files.equal(new File(split, "DocumentHeader/d2.xml"), extracted));
+  }
+
+  public void testValidateOneReportsMergedLines() throws Exception
+  {
+    String merged = Files.toString(mergedFile, Charsets.UTF_8);
+    File invalid = new File(tmpDir, "invalid.xml");
+    Files.write(merged.replace("<title>Doc 2</title>", "<foo />"), invalid,
+      Charsets.UTF_8);
+
+    // the other headers are not affected
+    new ExtractTEI(invalid, "d1", null, null, null).validate();
+    try
+    {
+      new ExtractTEI(invalid, "d2", null, null, null).validate();
+      fail("invalid document header was not detected");
+    }
+    catch (ValidationException ex)
+    {
+      List<SAXParseException> errors = ex.getErrors().getErrors(invalid);
+      assertFalse(errors.isEmpty());
+      List<String> lines = Files.readLines(invalid, Charsets.UTF_8);
+      String line = lines.get(errors.get(0).getLineNumber() - 1);
+      assertEquals("<foo />", line.trim());
+    }
+  }
+
+  public void testValidateOneReportsMergedColumns() throws Exception
+  {
+    File corpusDir = new File(HeaderIndexTest.class.getResource("corpus").toURI());
+    MergeTEI merge = new MergeTEI(corpusDir, mergedFile, null, null, null);
+    merge.setCompact(true);
+    merge.merge();
+    String merged = Files.toString(mergedFile, Charsets.UTF_8);
+    File invalid = new File(tmpDir, "invalid.xml");
+    Files.write(merged.replace("<title>Doc 2</title>", "<foo />"), invalid,
+      Charsets.UTF_8);
+
+    try
+    {
+      new ExtractTEI(invalid, "d2", null, null, null).validate();
+      fail("invalid document header was not detected");
+    }
+    catch (ValidationException ex)
+    {
+      SAXParseException error = ex.getErrors().getErrors(invalid).get(0);
+      List<String> lines = Files.readLines(invalid, Charsets.UTF_8);
+      String line = lines.get(error.getLineNumber() - 1);
+      // the header does not start at the beginning of the line
+      assertTrue(line.indexOf("<teiHeader") > 0);
+      assertTrue(line.substring(0, error.getColumnNumber() - 1).endsWith(
+        "<foo />"));
+    }
+  }
+}
@@ -0,0 +1,367 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Tests for {@link MergeTEI}.
+ */
+public class MergeTEITest extends TmpDirTestCase
+{
+
+  private File corpusDir;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    corpusDir = new File(MergeTEITest.class.getResource("corpus").toURI());
+  }
+
+  public void testParallelMergeEqualsSequential() throws Exception
+  {
+    File sequential = new File(tmpDir, "sequential.xml");
+    File parallel = new File(tmpDir, "parallel.xml");
+
+    new MergeTEI(corpusDir, sequential, null, null, null).merge();
+
+    MergeTEI merge = new MergeTEI(corpusDir, parallel, null, null, null);
+    merge.setThreads(4);
+    merge.merge();
+
+    assertTrue(sequential.length() > 0);
+    assertTrue(Files.equal(sequential, parallel));
+  }
+
+  public void testStreamedOutputEqualsXMLOutputter() throws Exception
+  {
+    File merged = new File(tmpDir, "merged.xml");
+    MergeTEI merge = new MergeTEI(corpusDir, merged, null, null, null);
+    merge.setSorted(true);
+    merge.merge();
+
+    // build the teiCorpus tree like the merge did before it was streamed
+    Namespace teiNS = Namespace.getNamespace("http://www.tei-c.org/ns/1.0");
+    Element root = new Element("teiCorpus", teiNS);
+    Element documentRoot = new Element("teiCorpus", teiNS);
+    Element preparationRoot = new Element("teiCorpus", teiNS);
+    addHeaders(root, "CorpusHeader");
+    addHeaders(documentRoot, "DocumentHeader");
+    addHeaders(preparationRoot, "PreparationHeader");
+    root.addContent(documentRoot);
+    documentRoot.addContent(preparationRoot);
+
+    File expected = new File(tmpDir, "expected.xml");
+    Writer out = new OutputStreamWriter(new FileOutputStream(expected),
+      "UTF-8");
+    try
+    {
+      new XMLOutputter(Format.getPrettyFormat()).output(new Document(root),
+        out);
+    }
+    finally
+    {
+      out.close();
+    }
+
+    assertTrue(Files.equal(expected, merged));
+  }
+
+  private void addHeaders(Element root, String dir) throws Exception
+  {
+    File[] files = new File(corpusDir, dir).listFiles();
+    Arrays.sort(files);
+    SAXBuilder sax = new SAXBuilder();
+    for (File f : files)
+    {
+      Document doc = sax.build(f);
+      doc.getRootElement().removeChild("text", null);
+      root.addContent(doc.getRootElement().getChild("teiHeader", null).clone());
+    }
+  }
+
+  public void testMergeZipToGzip() throws Exception
+  {
+    File plain = new File(tmpDir, "plain.xml");
+    new MergeTEI(corpusDir, plain, null, null, null).merge();
+
+    File zip = createZip("corpus.zip");
+
+    File compressed = new File(tmpDir, "merged.xml.gz");
+    new MergeTEI(zip, compressed, null, null, null).merge();
+
+    InputStream in = new GZIPInputStream(new FileInputStream(compressed));
+    try
+    {
+      assertEquals(Files.toString(plain, Charsets.UTF_8), CharStreams.toString(
+        new InputStreamReader(in, Charsets.UTF_8)));
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  public void testEvictedArchiveStaysOpenWhileRead() throws Exception
+  {
+    File first = createZip("first.zip");
+    InputStream in = CorpusFiles.open(new File(first, 
+      "corpus/DocumentHeader/d1.xml"));
+    try
+    {
+      assertTrue(in.read() >= 0);
+      // more archives than are kept open
+      for (int i = 0; i < 6; i++)
+      {
+        assertEquals(3, CorpusFiles.listHeaders(createZip("other" + i 
+          + ".zip"), "DocumentHeader").length);
+      }
+      assertTrue(CharStreams.toString(new InputStreamReader(in, 
+        Charsets.UTF_8)).endsWith("</TEI>\n"));
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Creates an archive of the test corpus with a top-level directory.
+   */
+  private File createZip(String name) throws Exception
+  {
+    File zip = new File(tmpDir, name);
+    ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(zip));
+    for (File dir : corpusDir.listFiles())
+    {
+      for (File f : dir.listFiles())
+      {
+        zipOut.putNextEntry(new ZipEntry("corpus/" + dir.getName() + "/"
+          + f.getName()));
+        Files.copy(f, zipOut);
+        zipOut.closeEntry();
+      }
+    }
+    zipOut.close();
+    return zip;
+  }
+
+  public void testCompactMerge() throws Exception
+  {
+    File pretty = new File(tmpDir, "pretty.xml");
+    File compact = new File(tmpDir, "compact.xml");
+    new MergeTEI(corpusDir, pretty, null, null, null).merge();
+    MergeTEI merge = new MergeTEI(corpusDir, compact, null, null, null);
+    merge.setCompact(true);
+    merge.merge();
+
+    assertTrue(compact.length() < pretty.length());
+    XMLOutputter out = new XMLOutputter(Format.getCompactFormat());
+    assertEquals(out.outputString(new SAXBuilder().build(pretty)), 
+      Files.toString(compact, Charsets.UTF_8));
+  }
+
+  public void testErrorBudgetStopsParallelValidation() throws Exception
+  {
+    File split = new File(tmpDir, "split");
+    CorpusGenerator generator = new CorpusGenerator(split);
+    generator.setDocuments(40);
+    generator.generate();
+    // make every document header invalid
+    for (File f : new File(split, "DocumentHeader").listFiles())
+    {
+      String content = Files.toString(f, Charsets.UTF_8);
+      Files.write(content.replace("<title>", "<foo /><title>"), f, 
+        Charsets.UTF_8);
+    }
+
+    MergeTEI merge = new MergeTEI(split, null, null, null, null);
+    merge.setThreads(4);
+    merge.setErrorBudget(new ErrorBudget(3));
+    ValidationReport report = new ValidationReport();
+    merge.setReport(report);
+    try
+    {
+      merge.validate();
+      fail("invalid document headers were not detected");
+    }
+    catch (ValidationException ex)
+    {
+      int errors = 0;
+      for (List<SAXParseException> l : ex.getErrors().values())
+      {
+        errors += l.size();
+      }
+      assertEquals(3, errors);
+    }
+    // the corpus header and only some of the document headers were checked
+    assertTrue(report.size() < 41);
+  }
+
+  public void testSequentialAndParallelReportSameErrors() throws Exception
+  {
+    File split = new File(tmpDir, "split");
+    CorpusGenerator generator = new CorpusGenerator(split);
+    generator.setDocuments(5);
+    generator.generate();
+    for (File f : new File(split, "DocumentHeader").listFiles())
+    {
+      String content = Files.toString(f, Charsets.UTF_8);
+      Files.write(content.replace("<title>", "<foo /><title>"), f, 
+        Charsets.UTF_8);
+    }
+
+    List<String> sequential = describe(validateErrors(split, 1, null));
+    assertEquals(5, sequential.size());
+    assertEquals(sequential, describe(validateErrors(split, 4, null)));
+
+    // the budget also stops the sequential validation
+    int errors = 0;
+    for (List<SAXParseException> l : validateErrors(split, 1, 
+      new ErrorBudget(3)).values())
+    {
+      errors += l.size();
+    }
+    assertEquals(3, errors);
+  }
+
+  private static List<String> describe(TEIValidator.Errors errors)
+  {
+    List<String> result = new ArrayList<String>();
+    for (Map.Entry<File, List<SAXParseException>> e : errors.entrySet())
+    {
+      for (SAXParseException ex : e.getValue())
+      {
+        result.add(e.getKey().getName() + ":" + ex.getLineNumber() + ":"
+          + ex.getColumnNumber() + ": " + ex.getMessage());
+      }
+    }
+    return result;
+  }
+
+  private static TEIValidator.Errors validateErrors(File dir, int threads,
+    ErrorBudget budget) throws LaudatioException
+  {
+    MergeTEI merge = new MergeTEI(dir, null, null, null, null);
+    merge.setThreads(threads);
+    merge.setErrorBudget(budget);
+    try
+    {
+      merge.validate();
+      fail("invalid document headers were not detected");
+      return null;
+    }
+    catch (ValidationException ex)
+    {
+      return ex.getErrors();
+    }
+  }
+
+  public void testIncrementalMergeEqualsMerge() throws Exception
+  {
+    File generated = new File(tmpDir, "corpus");
+    CorpusGenerator generator = new CorpusGenerator(generated);
+    generator.setDocuments(5);
+    generator.generate();
+
+    File merged = new File(tmpDir, "merged.xml");
+    MergeTEI merge = new MergeTEI(generated, merged, null, null, null);
+    merge.setIncremental(true);
+    merge.merge();
+    assertTrue(new File(merged.getPath() + MergeState.FILE_SUFFIX).isFile());
+
+    File doc = new File(generated, "DocumentHeader/d2.xml");
+    String content = Files.toString(doc, Charsets.UTF_8);
+    Files.write(content.replace("<title>Document 2</title>", 
+      "<title>Document 2 (revised)</title>"), doc, Charsets.UTF_8);
+    // only touched, the content is the same
+    File touched = new File(generated, "DocumentHeader/d3.xml");
+    touched.setLastModified(touched.lastModified() + 5000);
+    assertTrue(new File(generated, "DocumentHeader/d4.xml").delete());
+
+    Metrics.Counter cached = Metrics.getInstance().counter("headers_cached", 
+      "document");
+    long cachedBefore = cached.get();
+    merge = new MergeTEI(generated, merged, null, null, null);
+    merge.setIncremental(true);
+    merge.setThreads(3);
+    merge.merge();
+    assertEquals(3, cached.get() - cachedBefore);
+
+    File expected = new File(tmpDir, "expected.xml");
+    new MergeTEI(generated, expected, null, null, null).merge();
+    assertTrue(Files.equal(expected, merged));
+  }
+
+  public void testHeaderChangedDuringMergeIsNotReused() throws Exception
+  {
+    File generated = new File(tmpDir, "corpus");
+    CorpusGenerator generator = new CorpusGenerator(generated);
+    generator.setDocuments(3);
+    generator.generate();
+    File merged = new File(tmpDir, "merged.xml");
+    MergeTEI merge = new MergeTEI(generated, merged, null, null, null);
+    merge.setSorted(true);
+    merge.merge();
+
+    File changed = new File(generated, "DocumentHeader/d1.xml");
+    MergeState state = MergeState.load(merged, generated, false);
+    addAll(state, new File(generated, "CorpusHeader"), 
+      new TEICorpusValidator(), null);
+    addAll(state, new File(generated, "DocumentHeader"), 
+      new TEIDocumentValidator(), changed);
+    addAll(state, new File(generated, "PreparationHeader"), 
+      new TEIPreparationValidator(), null);
+    state.save();
+
+    state = MergeState.load(merged, generated, false);
+    TEIValidator validator = new TEIDocumentValidator();
+    assertNull(state.getUnchanged(changed, validator));
+    assertNotNull(state.getUnchanged(new File(generated, 
+      "DocumentHeader/d2.xml"), validator));
+  }
+
+  /**
+   * Records the headers in the order of a sorted merge and edits one of them
+   * after its stamp was taken, as if it was changed while it was parsed.
+   */
+  private static void addAll(MergeState state, File dir, 
+    TEIValidator validator, File changed) throws Exception
+  {
+    File[] files = dir.listFiles();
+    Arrays.sort(files);
+    for (File f : files)
+    {
+      FileStamp stamp = FileStamp.of(f);
+      if (f.equals(changed))
+      {
+        String content = Files.toString(f, Charsets.UTF_8);
+        Files.write(content.replace("<title>Document 1</title>", 
+          "<title>Document X</title>"), f, Charsets.UTF_8);
+      }
+      state.add(f, validator, null, stamp);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Map;
+
+/**
+ * Tests for {@link Metrics}.
+ */
+public class MetricsTest extends TmpDirTestCase
+{
+
+  private File corpusDir;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    corpusDir = new File(MetricsTest.class.getResource("corpus").toURI());
+    Metrics.getInstance().reset();
+  }
+
+  public void testMergeAndSplitAreCounted() throws Exception
+  {
+    File merged = new File(tmpDir, "merged.xml");
+    new MergeTEI(corpusDir, merged, null, null, null).merge();
+    new SplitTEI(merged, new File(tmpDir, "split"), null, null, null).split();
+
+    Map<String, Long> values = Metrics.getInstance().getValues();
+    // every header is validated once when merging and once when splitting
+    assertEquals(Long.valueOf(2), values.get("headers_validated.corpus"));
+    assertEquals(Long.valueOf(6), values.get("headers_validated.document"));
+    assertEquals(Long.valueOf(6), values.get("headers_validated.preparation"));
+    assertEquals(Long.valueOf(6), values.get("validate.document.count"));
+    assertEquals(Long.valueOf(14), values.get("headers_written"));
+    assertEquals(Long.valueOf(7), values.get("clone.count"));
+    assertTrue(values.get("bytes_read") > 0);
+    assertEquals(Long.valueOf(merged.length() 
+      + sizeOf(new File(tmpDir, "split"))), values.get("bytes_written"));
+    assertEquals(Long.valueOf(0), values.get("validation_errors.document"));
+  }
+
+  private static long sizeOf(File f)
+  {
+    long size = 0;
+    if (f.isDirectory())
+    {
+      for (File c : f.listFiles())
+      {
+        size += sizeOf(c);
+      }
+    }
+    else
+    {
+      size = f.length();
+    }
+    return size;
+  }
+
+  public void testResetKeepsCounters() throws Exception
+  {
+    Metrics metrics = Metrics.getInstance();
+    Metrics.Counter counter = metrics.counter("headers_written");
+    counter.add(2);
+    metrics.reset();
+    assertEquals(0, counter.get());
+    counter.increment();
+    assertEquals(Long.valueOf(1), metrics.getValues().get("headers_written"));
+  }
+
+  public void testPrometheusFormat() throws Exception
+  {
+    Metrics metrics = Metrics.getInstance();
+    metrics.counter("headers_validated", "document").add(3);
+    metrics.timer("validate", "document").record(1500000000l);
+    metrics.timer("validate", "document").record(500000000l);
+
+    StringWriter out = new StringWriter();
+    metrics.writePrometheus(out);
+    String text = out.toString();
+    assertTrue(text, text.contains(
+      "# TYPE teitool_headers_validated_total counter\n"));
+    assertTrue(text, text.contains(
+      "teitool_headers_validated_total{type=\"document\"} 3\n"));
+    assertTrue(text, text.contains("# TYPE teitool_validate_seconds summary\n"));
+    assertTrue(text, text.contains(
+      "teitool_validate_seconds_count{type=\"document\"} 2\n"));
+    assertTrue(text, text.contains(
+      "teitool_validate_seconds_sum{type=\"document\"} 2.000000\n"));
+    assertFalse(text, text.contains("teitool_validate_count"));
+  }
+}
@@ -0,0 +1,78 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import javax.xml.validation.Schema;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the process-wide {@link SchemaCache}.
+ */
+public class SchemaCacheTest extends TestCase
+{
+
+  public void testValidatorsShareCompiledSchema()
+  {
+    SchemaCache cache = SchemaCache.getInstance();
+
+    Schema first = new TEIDocumentValidator().getSchema();
+    long misses = cache.getMissCount();
+    long hits = cache.getHitCount();
+
+    Schema second = new TEIDocumentValidator().getSchema();
+
+    assertNotNull(first);
+    assertSame(first, second);
+    assertEquals(misses, cache.getMissCount());
+    assertEquals(hits + 1, cache.getHitCount());
+  }
+
+  public void testChangedSchemaFileIsCompiledAgain() throws Exception
+  {
+    SchemaCache cache = SchemaCache.getInstance();
+    File file = File.createTempFile("schema", ".rnc");
+    try
+    {
+      Files.write("element a { empty }", file, Charsets.UTF_8);
+      Schema first = cache.getSchema(file.toURI().toURL());
+      assertSame(first, cache.getSchema(file.toURI().toURL()));
+
+      // touched, but the same content
+      assertTrue(file.setLastModified(file.lastModified() - 10000));
+      assertSame(first, cache.getSchema(file.toURI().toURL()));
+
+      Files.write("element b { empty }", file, Charsets.UTF_8);
+      assertTrue(file.setLastModified(file.lastModified() - 20000));
+      Schema changed = cache.getSchema(file.toURI().toURL());
+      assertNotSame(first, changed);
+      assertSame(changed, cache.getSchema(file.toURI().toURL()));
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  public void testValidatorIsPerThread() throws Exception
+  {
+    final TEIValidator validator = new TEICorpusValidator();
+    final Object[] other = new Object[1];
+
+    Thread t = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        other[0] = validator.getValidator();
+      }
+    };
+    t.start();
+    t.join();
+
+    assertNotNull(validator.getValidator());
+    assertSame(validator.getValidator(), validator.getValidator());
+    assertNotNull(other[0]);
+    assertNotSame(validator.getValidator(), other[0]);
+  }
+}
@@ -0,0 +1,107 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link SchemeCatalog}.
+ */
+public class SchemeCatalogTest extends TmpDirTestCase
+{
+
+  public void testDefaultSchemesAreBundled() throws Exception
+  {
+    URL resolved = new SchemeCatalog().resolve(
+      new URL(TEIDocumentValidator.DEFAULT_SCHEME_URL));
+    assertEquals(TEIDocumentValidator.class.getResource("default_document.rng"),
+      resolved);
+    assertNotNull(new FromURLValidator(TEIDocumentValidator.DEFAULT_SCHEME_URL).
+      getSchema());
+  }
+
+  public void testDownloadIsRevalidated() throws Exception
+  {
+    final byte[] scheme = Resources.toByteArray(TEIDocumentValidator.class.
+      getResource("default_document.rng"));
+    final AtomicInteger downloads = new AtomicInteger();
+    final AtomicInteger requests = new AtomicInteger();
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0),
+      0);
+    server.createContext("/scheme.rng", new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws java.io.IOException
+      {
+        requests.incrementAndGet();
+        exchange.getResponseHeaders().set("ETag", "\"v1\"");
+        if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst(
+          "If-None-Match")))
+        {
+          exchange.sendResponseHeaders(304, -1);
+        }
+        else
+        {
+          downloads.incrementAndGet();
+          exchange.sendResponseHeaders(200, scheme.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(scheme);
+          out.close();
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+
+    URL url = new URL("http", "localhost", server.getAddress().getPort(),
+      "/scheme.rng");
+    try
+    {
+      SchemeCatalog catalog = new SchemeCatalog();
+      catalog.setCacheDirectory(tmpDir);
+      URL first = catalog.resolve(url);
+      assertEquals("file", first.getProtocol());
+      assertTrue(first.getPath().endsWith(".rng"));
+      assertEquals(first, catalog.resolve(url));
+      assertEquals(1, requests.get());
+
+      // a new catalog asks the server again, but does not download it
+      catalog = new SchemeCatalog();
+      catalog.setCacheDirectory(tmpDir);
+      assertEquals(first, catalog.resolve(url));
+      assertEquals(2, requests.get());
+      assertEquals(1, downloads.get());
+    }
+    finally
+    {
+      server.stop(0);
+    }
+
+    // the cached copy is used without a server
+    SchemeCatalog catalog = new SchemeCatalog();
+    catalog.setCacheDirectory(tmpDir);
+    assertEquals("file", catalog.resolve(url).getProtocol());
+  }
+
+  public void testCatalogFile() throws Exception
+  {
+    File local = new File(tmpDir, "mirror.rng");
+    Files.write("<grammar/>".getBytes("UTF-8"), local);
+    File catalogFile = new File(tmpDir, "catalog.properties");
+    Files.write("http\\://example.com/scheme.rng=mirror.rng\n".getBytes(
+      "UTF-8"), catalogFile);
+
+    SchemeCatalog catalog = new SchemeCatalog();
+    catalog.setOffline(true);
+    catalog.addCatalog(catalogFile);
+    assertEquals(local.toURI().toURL(), catalog.resolve(new URL(
+      "http://example.com/scheme.rng")));
+  }
+}
@@ -0,0 +1,292 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Tests for {@link SplitTEI}.
+ */
+public class SplitTEITest extends TmpDirTestCase
+{
+
+  private File mergedFile;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    File corpusDir = new File(SplitTEITest.class.getResource("corpus").toURI());
+    mergedFile = new File(tmpDir, "merged.xml");
+    new MergeTEI(corpusDir, mergedFile, null, null, null).merge();
+  }
+
+  public void testStreamingSplitEqualsSplit() throws Exception
+  {
+    File regular = new File(tmpDir, "regular");
+    File streamed = new File(tmpDir, "streamed");
+
+    new SplitTEI(mergedFile, regular, null, null, null).split();
+
+    SplitTEI split = new SplitTEI(mergedFile, streamed, null, null, null);
+    split.setStreaming(true);
+    split.split();
+
+    assertSameFiles(regular, streamed);
+  }
+
+  public void testParallelSplitEqualsSplit() throws Exception
+  {
+    File regular = new File(tmpDir, "regular");
+    File parallel = new File(tmpDir, "parallel");
+
+    new SplitTEI(mergedFile, regular, null, null, null).split();
+
+    SplitTEI split = new SplitTEI(mergedFile, parallel, null, null, null);
+    split.setThreads(4);
+    split.split();
+
+    // two preparation headers have the same "corresp" attribute
+    assertEquals(3, new File(parallel, "PreparationHeader").list().length);
+    assertSameFiles(regular, parallel);
+  }
+
+  private static void assertSameFiles(File expected, File actual)
+    throws Exception
+  {
+    assertTrue(actual.getPath(), actual.exists());
+    if (expected.isDirectory())
+    {
+      assertEquals(expected.list().length, actual.list().length);
+      for (File c : expected.listFiles())
+      {
+        assertSameFiles(c, new File(actual, c.getName()));
+      }
+    }
+    else
+    {
+      assertTrue(actual.getPath(), Files.equal(expected, actual));
+    }
+  }
+
+  public void testRawSplitKeepsHeaders() throws Exception
+  {
+    // markup in comments must not be mistaken for a header
+    String merged = Files.toString(mergedFile, Charsets.UTF_8);
+    File commented = new File(tmpDir, "commented.xml");
+    Files.write(merged.replace("<teiCorpus>", 
+      "<teiCorpus><!-- <teiHeader type=\"x\"> --><![CDATA[</teiCorpus>]]>"), 
+      commented, Charsets.UTF_8);
+    
+    File regular = new File(tmpDir, "regular");
+    File raw = new File(tmpDir, "raw");
+    new SplitTEI(mergedFile, regular, null, null, null).split();
+    SplitTEI split = new SplitTEI(commented, raw, null, null, null);
+    split.setRaw(true);
+    split.split();
+    
+    // the content is the same, only the indentation of the header differs
+    XMLOutputter out = new XMLOutputter(Format.getCompactFormat());
+    SAXBuilder sax = new SAXBuilder();
+    for(String dir : regular.list())
+    {
+      String[] expected = new File(regular, dir).list();
+      assertEquals(expected.length, new File(raw, dir).list().length);
+      for(String name : expected)
+      {
+        assertEquals(out.outputString(sax.build(new File(regular, dir + "/" + name))),
+          out.outputString(sax.build(new File(raw, dir + "/" + name))));
+      }
+    }
+    String header = Files.toString(new File(raw, "DocumentHeader/d1.xml"), 
+      Charsets.UTF_8);
+    assertTrue(header.contains("\n      <fileDesc xml:id=\"d1\">"));
+  }
+
+  public void testParallelSplitNumbersSameNames() throws Exception
+  {
+    String merged = Files.toString(mergedFile, Charsets.UTF_8);
+    File sameNames = new File(tmpDir, "same.xml");
+    Files.write(merged.replace("xml:id=\"d2\"", "xml:id=\"d1\""), sameNames,
+      Charsets.UTF_8);
+
+    for (String mode : Arrays.asList("dom", "streaming", "raw"))
+    {
+      File out = new File(tmpDir, mode);
+      SplitTEI split = new SplitTEI(sameNames, out, null, null, null);
+      split.setThreads(4);
+      split.setStreaming("streaming".equals(mode));
+      split.setRaw("raw".equals(mode));
+      split.split();
+
+      File documents = new File(out, "DocumentHeader");
+      assertEquals(mode, Arrays.asList("d1.xml", "d1_2.xml", "d3.xml"), 
+        sortedNames(documents));
+      assertTrue(mode, Files.toString(new File(documents, "d1.xml"), 
+        Charsets.UTF_8).contains("<title>Doc 1</title>"));
+      assertTrue(mode, Files.toString(new File(documents, "d1_2.xml"), 
+        Charsets.UTF_8).contains("<title>Doc 2</title>"));
+    }
+  }
+
+  private static List<String> sortedNames(File dir)
+  {
+    List<String> names = Arrays.asList(dir.list());
+    Collections.sort(names);
+    return names;
+  }
+
+  public void testSplitGzip() throws Exception
+  {
+    File compressed = new File(tmpDir, "merged.xml.gz");
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed));
+    Files.copy(mergedFile, out);
+    out.close();
+
+    File regular = new File(tmpDir, "regular");
+    File fromGzip = new File(tmpDir, "gzip");
+    new SplitTEI(mergedFile, regular, null, null, null).split();
+    SplitTEI split = new SplitTEI(compressed, fromGzip, null, null, null);
+    split.setStreaming(true);
+    split.split();
+
+    assertSameFiles(regular, fromGzip);
+  }
+
+  public void testValidateInMemory() throws Exception
+  {
+    new SplitTEI(mergedFile, null, null, null, null).validate();
+    // nothing besides the merged file must have been written
+    assertEquals(1, tmpDir.listFiles().length);
+  }
+
+  public void testValidateInMemoryInvalid() throws Exception
+  {
+    String merged = Files.toString(mergedFile, Charsets.UTF_8);
+    File invalid = new File(tmpDir, "invalid.xml");
+    Files.write(merged.replace("<title>Doc 2</title>", "<foo />"), invalid,
+      Charsets.UTF_8);
+    try
+    {
+      new SplitTEI(invalid, null, null, null, null).validate();
+      fail("invalid document header was not detected");
+    }
+    catch (LaudatioException ex)
+    {
+      // expected
+    }
+  }
+
+  public void testValidateInMemoryReportsInputLine() throws Exception
+  {
+    String merged = Files.toString(mergedFile, Charsets.UTF_8);
+    File invalid = new File(tmpDir, "invalid.xml");
+    Files.write(merged.replace("<title>Doc 2</title>", "<foo />"), invalid,
+      Charsets.UTF_8);
+    try
+    {
+      new SplitTEI(invalid, null, null, null, null).validate();
+      fail("invalid document header was not detected");
+    }
+    catch (ValidationException ex)
+    {
+      // the position must point into the merged file and not the header
+      List<SAXParseException> errors = ex.getErrors().getErrors(invalid);
+      assertFalse(errors.isEmpty());
+      List<String> lines = Files.readLines(invalid, Charsets.UTF_8);
+      String line = lines.get(errors.get(0).getLineNumber() - 1);
+      assertEquals("<foo />", line.trim());
+      assertEquals(line.indexOf("<foo />") + "<foo />".length() + 1,
+        errors.get(0).getColumnNumber());
+    }
+  }
+
+  public void testValidationReport() throws Exception
+  {
+    String merged = Files.toString(mergedFile, Charsets.UTF_8);
+    File invalid = new File(tmpDir, "invalid.xml");
+    Files.write(merged.replace("<title>Doc 2</title>", "<foo />"), invalid,
+      Charsets.UTF_8);
+    
+    ValidationReport report = new ValidationReport();
+    SplitTEI split = new SplitTEI(invalid, null, null, null, null);
+    split.setReport(report);
+    try
+    {
+      split.validate();
+      fail("invalid document header was not detected");
+    }
+    catch (ValidationException ex)
+    {
+      // expected
+    }
+    
+    // one entry per schema, the headers are combined
+    assertFalse(report.isValid());
+    assertEquals(3, report.size());
+    
+    StringWriter json = new StringWriter();
+    report.writeJson(json);
+    assertTrue(json.toString().startsWith("{\"valid\":false,"));
+    assertTrue(json.toString().contains("\"headers\":3,"));
+    assertTrue(json.toString().contains("element \\\"foo\\\" not allowed"));
+    
+    StringWriter junit = new StringWriter();
+    report.writeJUnit(junit);
+    Document doc = new SAXBuilder().build(new StringReader(junit.toString()));
+    assertEquals("3", doc.getRootElement().getAttributeValue("tests"));
+    assertEquals("1", doc.getRootElement().getAttributeValue("failures"));
+  }
+
+  public void testValidationReportOfMalformedInput() throws Exception
+  {
+    File malformed = new File(tmpDir, "malformed.xml");
+    Files.write("<teiCorpus xmlns=\"http://www.tei-c.org/ns/1.0\"><teiHeader>",
+      malformed, Charsets.UTF_8);
+
+    ValidationReport report = new ValidationReport();
+    SplitTEI split = new SplitTEI(malformed, null, null, null, null);
+    split.setReport(report);
+    try
+    {
+      split.validate();
+      fail("malformed input was not detected");
+    }
+    catch (LaudatioException ex)
+    {
+      // expected
+    }
+
+    assertFalse(report.isValid());
+    StringWriter json = new StringWriter();
+    report.writeJson(json);
+    assertTrue(json.toString(), json.toString().startsWith(
+      "{\"valid\":false,"));
+    assertTrue(json.toString(), json.toString().contains(
+      "{\"file\":\"" + malformed.getPath().replace("\\", "\\\\")
+      + "\",\"valid\":false,\"aborted\":"));
+
+    StringWriter junit = new StringWriter();
+    report.writeJUnit(junit);
+    Document doc = new SAXBuilder().build(new StringReader(junit.toString()));
+    assertEquals("1", doc.getRootElement().getAttributeValue("failures"));
+    Element testcase = doc.getRootElement().getChild("testsuite").
+      getChild("testcase");
+    assertEquals(malformed.getPath(), testcase.getAttributeValue("name"));
+    assertNotNull(testcase.getChild("failure"));
+  }
+}
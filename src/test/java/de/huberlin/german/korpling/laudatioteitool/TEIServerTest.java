@@ -0,0 +1,188 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Tests for {@link TEIServer}.
+ */
+public class TEIServerTest extends TmpDirTestCase
+{
+
+  private TEIServer server;
+  private File corpusDir;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    File resources = new File(TEIServerTest.class.getResource("corpus").toURI());
+    // the server only accepts files inside of its root directory
+    corpusDir = new File(tmpDir, "corpus");
+    for (File dir : resources.listFiles())
+    {
+      for (File f : dir.listFiles())
+      {
+        File copy = new File(corpusDir, dir.getName() + "/" + f.getName());
+        Files.createParentDirs(copy);
+        Files.copy(f, copy);
+      }
+    }
+    server = new TEIServer(0, 2, tmpDir);
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    server.stop(0);
+    super.tearDown();
+  }
+
+  private String request(String path, int expectedStatus) throws Exception
+  {
+    return request("GET", path, null, server.getToken(), expectedStatus);
+  }
+
+  private String post(String path, String body, int expectedStatus)
+    throws Exception
+  {
+    return request("POST", path, body, server.getToken(), expectedStatus);
+  }
+
+  private String request(String method, String path, String body,
+    String token, int expectedStatus) throws Exception
+  {
+    URL url = new URL("http", "localhost", server.getAddress().getPort(), path);
+    HttpURLConnection con = (HttpURLConnection) url.openConnection();
+    con.setRequestMethod(method);
+    if (token != null)
+    {
+      con.setRequestProperty("Authorization", "Bearer " + token);
+    }
+    if (body != null)
+    {
+      con.setDoOutput(true);
+      con.setRequestProperty("Content-Type", 
+        "application/x-www-form-urlencoded");
+      OutputStream out = con.getOutputStream();
+      out.write(body.getBytes("UTF-8"));
+      out.close();
+    }
+    assertEquals(expectedStatus, con.getResponseCode());
+    InputStream in = con.getResponseCode() < 400 ? con.getInputStream() : con.
+      getErrorStream();
+    try
+    {
+      return CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8));
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private static String encode(File f) throws Exception
+  {
+    return URLEncoder.encode(f.getPath(), "UTF-8");
+  }
+
+  public void testMergeAndValidate() throws Exception
+  {
+    File merged = new File(tmpDir, "merged.xml");
+    String result = post("/merge", "input=" + encode(corpusDir) + "&output="
+      + encode(merged), 200);
+    assertTrue(result, result.contains("\"valid\":true"));
+    assertTrue(merged.isFile());
+
+    // relative to the root directory
+    result = post("/validate", "input=merged.xml", 200);
+    assertTrue(result, result.contains("\"valid\":true"));
+  }
+
+  public void testInvalidFile() throws Exception
+  {
+    File merged = new File(tmpDir, "merged.xml");
+    new MergeTEI(corpusDir, merged, null, null, null).merge();
+    File invalid = new File(tmpDir, "invalid.xml");
+    Files.write(Files.toString(merged, Charsets.UTF_8).replace(
+      "<title>Doc 2</title>", "<foo />"), invalid, Charsets.UTF_8);
+
+    String result = post("/validate", "input=" + encode(invalid), 422);
+    assertTrue(result, result.contains("\"valid\":false"));
+    assertTrue(result, result.contains("\"errors\":[{\"file\":"));
+  }
+
+  public void testMetrics() throws Exception
+  {
+    post("/validate", "input=" + encode(corpusDir), 200);
+    String result = request("/metrics", 200);
+    assertTrue(result, result.contains(
+      "# TYPE teitool_headers_validated_total counter\n"));
+    assertTrue(result, result.contains(
+      "teitool_validate_seconds_count{type=\"document\"} "));
+  }
+
+  public void testMissingInput() throws Exception
+  {
+    post("/split", "", 400);
+  }
+
+  public void testRejectedRequests() throws Exception
+  {
+    File merged = new File(tmpDir, "merged.xml");
+    String query = "?input=corpus&output=merged.xml";
+    // a link or an image in a web page must not write files
+    request("GET", "/merge" + query, null, server.getToken(), 405);
+    request("POST", "/merge" + query, null, null, 401);
+    request("POST", "/merge" + query, null, "wrong", 401);
+    request("GET", "/status", null, null, 401);
+    assertFalse(merged.exists());
+
+    post("/merge", "input=corpus&output=../merged.xml", 403);
+    post("/validate", "input=" + encode(new File(tmpDir.getParentFile(),
+      "other")), 403);
+    assertFalse(new File(tmpDir.getParentFile(), "merged.xml").exists());
+  }
+
+  public void testForeignHostIsRejected() throws Exception
+  {
+    assertTrue(rawRequest("Host: localhost:1234\r\n").startsWith(
+      "HTTP/1.1 200 "));
+    // DNS rebinding
+    assertTrue(rawRequest("Host: attacker.example\r\n").startsWith(
+      "HTTP/1.1 403 "));
+    assertTrue(rawRequest("Host: localhost\r\nOrigin: http://attacker.example\r\n")
+      .startsWith("HTTP/1.1 403 "));
+  }
+
+  /**
+   * HttpURLConnection does not allow to set the Host header.
+   */
+  private String rawRequest(String headers) throws Exception
+  {
+    Socket socket = new Socket("localhost", server.getAddress().getPort());
+    try
+    {
+      OutputStream out = socket.getOutputStream();
+      out.write(("GET /status HTTP/1.1\r\n" + headers + "Authorization: Bearer "
+        + server.getToken() + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+      out.flush();
+      return CharStreams.toString(new InputStreamReader(
+        socket.getInputStream(), Charsets.UTF_8));
+    }
+    finally
+    {
+      socket.close();
+    }
+  }
+}
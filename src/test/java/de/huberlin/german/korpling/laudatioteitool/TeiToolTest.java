@@ -0,0 +1,99 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Tests for {@link TeiTool}.
+ */
+public class TeiToolTest extends TmpDirTestCase
+{
+
+  private File corpusDir;
+  private File mergedFile;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    corpusDir = new File(TeiToolTest.class.getResource("corpus").toURI());
+    mergedFile = new File(tmpDir, "merged.xml");
+  }
+
+  public void testPaths() throws Exception
+  {
+    TeiTool tool = TeiTool.builder().threads(2).build();
+    assertTrue(tool.validate(corpusDir.toPath()).isValid());
+    assertTrue(tool.merge(corpusDir.toPath(), mergedFile.toPath()).isValid());
+    File split = new File(tmpDir, "split");
+    assertTrue(tool.split(mergedFile.toPath(), split.toPath()).isValid());
+    assertEquals(3, new File(split, "DocumentHeader").list().length);
+  }
+
+  public void testStreamsAndSources() throws Exception
+  {
+    TeiTool tool = TeiTool.builder().streaming(true).build();
+    tool.merge(corpusDir, mergedFile);
+    String merged = Files.toString(mergedFile, Charsets.UTF_8);
+
+    InputStream in = new ByteArrayInputStream(merged.getBytes(Charsets.UTF_8));
+    assertTrue(tool.validate(in).isValid());
+
+    // only the location is given
+    assertTrue(tool.validate(new StreamSource(mergedFile)).isValid());
+
+    // needs to be serialized first
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    org.w3c.dom.Document dom = factory.newDocumentBuilder().parse(mergedFile);
+    assertTrue(TeiTool.builder().build().validate(new DOMSource(dom)).
+      isValid());
+
+    StreamSource invalid = new StreamSource(new StringReader(merged.replace(
+      "<title>Doc 2</title>", "<foo />")), "invalid.xml");
+    TeiTool.Result result = tool.validate(invalid);
+    assertFalse(result.isValid());
+    assertTrue(result.getErrorCount() > 0);
+    assertEquals(new File("invalid.xml"), result.getErrors().firstKey());
+  }
+
+  public void testInvalidStreamIsNotReadAgain() throws Exception
+  {
+    TeiTool tool = TeiTool.builder().build();
+    tool.merge(corpusDir, mergedFile);
+    String merged = Files.toString(mergedFile, Charsets.UTF_8).replace(
+      "<title>Doc 2</title>", "<foo />");
+
+    TeiTool.Result result = tool.validate(new ByteArrayInputStream(
+      merged.getBytes(Charsets.UTF_8)));
+    assertFalse(result.isValid());
+    assertEquals(CorpusFiles.STREAM_INPUT, result.getErrors().firstKey());
+
+    StringWriter report = new StringWriter();
+    new ErrorReporter(report).report(result.getErrors());
+    assertTrue(report.toString().startsWith(
+      CorpusFiles.STREAM_INPUT.getPath() + " has "));
+    assertFalse(report.toString().contains("<foo />"));
+  }
+
+  public void testMissingInput() throws Exception
+  {
+    try
+    {
+      TeiTool.builder().build().validate(new File(tmpDir, "missing"));
+      fail("missing input was not detected");
+    }
+    catch (LaudatioException ex)
+    {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.io.Files;
+import java.io.File;
+import junit.framework.TestCase;
+
+/**
+ * A test case with its own temporary directory, which is created before
+ * and deleted after each test.
+ */
+public abstract class TmpDirTestCase extends TestCase
+{
+
+  protected File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    delete(tmpDir);
+  }
+
+  protected static void delete(File f)
+  {
+    if (f.isDirectory())
+    {
+      for (File c : f.listFiles())
+      {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+}
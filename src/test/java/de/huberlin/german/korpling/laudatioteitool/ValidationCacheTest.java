@@ -0,0 +1,94 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+
+/**
+ * Tests for {@link ValidationCache}.
+ */
+public class ValidationCacheTest extends TmpDirTestCase
+{
+
+  private File corpusDir;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    corpusDir = new File(tmpDir, "corpus");
+    CorpusGenerator generator = new CorpusGenerator(corpusDir);
+    generator.setDocuments(5);
+    generator.generate();
+  }
+
+  private ValidationCache validate() throws Exception
+  {
+    ValidationCache cache = ValidationCache.load(corpusDir);
+    MergeTEI merge = new MergeTEI(corpusDir, null, null, null, null);
+    merge.setValidationCache(cache);
+    merge.validate();
+    cache.save();
+    return cache;
+  }
+
+  public void testChangedFileIsValidatedAgain() throws Exception
+  {
+    validate();
+    ValidationCache cache = ValidationCache.load(corpusDir);
+    // one corpus, five document and ten preparation headers
+    assertEquals(16, cache.size());
+
+    File doc = new File(corpusDir, "DocumentHeader/d1.xml");
+    TEIValidator validator = new TEIDocumentValidator();
+    assertTrue(cache.isValid(doc, validator));
+    assertFalse(cache.isValid(doc, new TEICorpusValidator()));
+
+    String content = Files.toString(doc, Charsets.UTF_8);
+    Files.write(content.replace("<title>Document 1</title>", "<foo />"), doc,
+      Charsets.UTF_8);
+    assertFalse(cache.isValid(doc, validator));
+    try
+    {
+      validate();
+      fail("changed document header was not validated again");
+    }
+    catch (ValidationException ex)
+    {
+      assertEquals(1, ex.getErrors().size());
+    }
+  }
+
+  public void testFileChangedDuringValidationIsNotRecorded() throws Exception
+  {
+    ValidationCache cache = ValidationCache.load(corpusDir);
+    File doc = new File(corpusDir, "DocumentHeader/d1.xml");
+    TEIValidator validator = new TEIDocumentValidator();
+
+    FileStamp stamp = FileStamp.of(doc);
+    assertTrue(validator.validate(doc));
+    // edited after the validator read it, but the size stays the same
+    String content = Files.toString(doc, Charsets.UTF_8);
+    Files.write(content.replace("<title>Document 1</title>", 
+      "<title>Document X</title>"), doc, Charsets.UTF_8);
+    cache.setValid(doc, validator, stamp);
+    assertEquals(0, cache.size());
+
+    cache.setValid(doc, validator, FileStamp.of(doc));
+    assertTrue(cache.isValid(doc, validator));
+  }
+
+  public void testCachedMergeEqualsMerge() throws Exception
+  {
+    File expected = new File(tmpDir, "expected.xml");
+    new MergeTEI(corpusDir, expected, null, null, null).merge();
+
+    validate();
+    File cached = new File(tmpDir, "cached.xml");
+    MergeTEI merge = new MergeTEI(corpusDir, cached, null, null, null);
+    merge.setValidationCache(ValidationCache.load(corpusDir));
+    merge.merge();
+
+    assertTrue(Files.equal(expected, cached));
+  }
+}
@@ -0,0 +1,71 @@
+package de.huberlin.german.korpling.laudatioteitool;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.Collections;
+
+/**
+ * Tests for {@link WatchTEI}.
+ */
+public class WatchTEITest extends TmpDirTestCase
+{
+
+  private File corpusDir;
+  private WatchTEI watch;
+  private Thread thread;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    corpusDir = new File(tmpDir, "corpus");
+    CorpusGenerator generator = new CorpusGenerator(corpusDir);
+    generator.setDocuments(3);
+    generator.generate();
+
+    watch = new WatchTEI(corpusDir, null, null, null);
+    watch.setDebounce(50);
+    thread = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          watch.watch();
+        }
+        catch (LaudatioException ex)
+        {
+          throw new RuntimeException(ex);
+        }
+      }
+    };
+    thread.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    watch.stop();
+    thread.join(10000);
+    super.tearDown();
+  }
+
+  public void testChangedFileIsValidatedAgain() throws Exception
+  {
+    assertTrue(watch.awaitChecks(1, 30000));
+    assertTrue(watch.getInvalidFiles().isEmpty());
+
+    File doc = new File(corpusDir, "DocumentHeader/d2.xml");
+    String content = Files.toString(doc, Charsets.UTF_8);
+    Files.write(content.replace("<title>Document 2</title>", "<foo />"), doc,
+      Charsets.UTF_8);
+    assertTrue(watch.awaitInvalidFiles(Collections.singleton(doc), 30000));
+    assertFalse(watch.getErrors(doc).isEmpty());
+
+    // removing the file also removes its errors
+    assertTrue(doc.delete());
+    assertTrue(watch.awaitInvalidFiles(Collections.<File>emptySet(), 30000));
+  }
+}